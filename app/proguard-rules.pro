@@ -0,0 +1,4 @@
+# Started by name with app_process, see RootHelperLauncher
+-keep class com.github.sryze.wirebug.RootHelper {
+    public static void main(java.lang.String[]);
+}
@@ -0,0 +1,81 @@
+/*
+ * This file is part of Wirebug.
+ *
+ * Wirebug is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Wirebug is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Wirebug.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.sryze.wirebug;
+
+import java.util.Map;
+
+/**
+ * A consistent view of the system properties that describe the state of adbd.
+ */
+public final class AdbProperties {
+
+    public static final String TCP_PORT = "service.adb.tcp.port";
+    public static final String PERSIST_TCP_PORT = "persist.adb.tcp.port";
+    public static final String ADBD_STATE = "init.svc.adbd";
+    public static final String USB_STATE = "sys.usb.state";
+
+    static final String[] NAMES = {TCP_PORT, PERSIST_TCP_PORT, ADBD_STATE, USB_STATE};
+
+    private final int tcpPort;
+    private final int persistTcpPort;
+    private final String adbdState;
+    private final String usbState;
+
+    public AdbProperties(int tcpPort, int persistTcpPort, String adbdState, String usbState) {
+        this.tcpPort = tcpPort;
+        this.persistTcpPort = persistTcpPort;
+        this.adbdState = adbdState;
+        this.usbState = usbState;
+    }
+
+    static AdbProperties fromValues(Map<String, String> values) {
+        return new AdbProperties(
+            PropertyReader.parseInt(values.get(TCP_PORT), 0),
+            PropertyReader.parseInt(values.get(PERSIST_TCP_PORT), 0),
+            values.get(ADBD_STATE),
+            values.get(USB_STATE));
+    }
+
+    public int getTcpPort() {
+        return tcpPort;
+    }
+
+    public int getPersistTcpPort() {
+        return persistTcpPort;
+    }
+
+    /**
+     * Returns the port adbd listens on: service.adb.tcp.port takes precedence over
+     * persist.adb.tcp.port, the same way adbd itself picks it.
+     */
+    public int getEffectiveTcpPort() {
+        return tcpPort > 0 ? tcpPort : persistTcpPort;
+    }
+
+    public String getAdbdState() {
+        return adbdState;
+    }
+
+    public boolean isAdbdRunning() {
+        return "running".equals(adbdState);
+    }
+
+    public String getUsbState() {
+        return usbState;
+    }
+}
@@ -0,0 +1,199 @@
+/*
+ * This file is part of Wirebug.
+ *
+ * Wirebug is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Wirebug is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Wirebug.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.sryze.wirebug;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+
+import timber.log.Timber;
+
+/**
+ * Checks whether adbd actually accepts connections on its TCP port by sending it a CNXN
+ * message, the same way a host does when running "adb connect". Any well-formed reply
+ * (CNXN, or AUTH/STLS if the daemon wants the host to authenticate first) means that it's
+ * ready. The connection is closed before authentication, so no prompt is shown.
+ */
+public class AdbReadinessProbe {
+
+    static final int COMMAND_CNXN = 0x4e584e43;
+    static final int COMMAND_AUTH = 0x48545541;
+    static final int COMMAND_STLS = 0x534c5453;
+    static final int HEADER_SIZE = 24;
+
+    private static final int VERSION = 0x01000001;
+    private static final int MAX_PAYLOAD = 256 * 1024;
+    private static final String SYSTEM_IDENTITY = "host::wirebug\0";
+    private static final int CONNECT_TIMEOUT = 1000;
+    private static final int READ_TIMEOUT = 2000;
+    private static final long MIN_RETRY_DELAY = 50;
+    private static final long MAX_RETRY_DELAY = 500;
+
+    private static volatile long lastHandshakeLatency = -1;
+
+    private final String host;
+    private final int port;
+
+    public static final class Result {
+
+        private final boolean isReady;
+        private final long timeToReady;
+        private final long handshakeLatency;
+        private final int attemptCount;
+
+        Result(boolean isReady, long timeToReady, long handshakeLatency, int attemptCount) {
+            this.isReady = isReady;
+            this.timeToReady = timeToReady;
+            this.handshakeLatency = handshakeLatency;
+            this.attemptCount = attemptCount;
+        }
+
+        public boolean isReady() {
+            return isReady;
+        }
+
+        /**
+         * Returns the time from the start of probing to the first successful handshake.
+         */
+        public long getTimeToReady() {
+            return timeToReady;
+        }
+
+        /**
+         * Returns how long the successful handshake itself took (connect included).
+         */
+        public long getHandshakeLatency() {
+            return handshakeLatency;
+        }
+
+        public int getAttemptCount() {
+            return attemptCount;
+        }
+    }
+
+    public AdbReadinessProbe(String host, int port) {
+        this.host = host;
+        this.port = port;
+    }
+
+    /**
+     * Returns the latency of the most recent successful handshake in the process, or -1.
+     */
+    public static long getLastHandshakeLatency() {
+        return lastHandshakeLatency;
+    }
+
+    /**
+     * Keeps trying to handshake until it succeeds or until the timeout expires.
+     */
+    public Result waitUntilReady(long timeoutMillis) throws InterruptedException {
+        long startTime = System.nanoTime();
+        long deadline = startTime + timeoutMillis * 1000000;
+        long retryDelay = MIN_RETRY_DELAY;
+        int attemptCount = 0;
+        while (true) {
+            attemptCount++;
+            try {
+                long latency = handshake();
+                long timeToReady = (System.nanoTime() - startTime) / 1000000;
+                Timber.i("adbd is ready on port %d after %d ms (%d attempts, handshake %d ms)",
+                    port, timeToReady, attemptCount, latency);
+                return new Result(true, timeToReady, latency, attemptCount);
+            } catch (IOException e) {
+                Timber.d("adbd is not ready yet: %s", e.getMessage());
+            }
+            long remaining = (deadline - System.nanoTime()) / 1000000;
+            if (remaining <= 0) {
+                Timber.w("adbd is not ready on port %d after %d attempts", port, attemptCount);
+                return new Result(false, -1, -1, attemptCount);
+            }
+            Thread.sleep(Math.min(retryDelay, remaining));
+            retryDelay = Math.min(retryDelay * 2, MAX_RETRY_DELAY);
+        }
+    }
+
+    /**
+     * Performs a single handshake and returns how long it took, in milliseconds.
+     */
+    public long handshake() throws IOException {
+        long startTime = System.nanoTime();
+        Socket socket = new Socket();
+        try {
+            socket.connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT);
+            socket.setSoTimeout(READ_TIMEOUT);
+            socket.setTcpNoDelay(true);
+            OutputStream outputStream = socket.getOutputStream();
+            outputStream.write(createConnectMessage());
+            outputStream.flush();
+            int command = readReplyCommand(socket.getInputStream());
+            if (command != COMMAND_CNXN && command != COMMAND_AUTH && command != COMMAND_STLS) {
+                throw new IOException(String.format("Unexpected reply: 0x%08x", command));
+            }
+        } finally {
+            socket.close();
+        }
+        long elapsedNanos = System.nanoTime() - startTime;
+        Metrics.histogram(Metrics.ADB_HANDSHAKE).record(elapsedNanos);
+        long latency = elapsedNanos / 1000000;
+        lastHandshakeLatency = latency;
+        return latency;
+    }
+
+    static byte[] createConnectMessage() {
+        byte[] payload = SYSTEM_IDENTITY.getBytes(Charset.forName("UTF-8"));
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + payload.length);
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putInt(COMMAND_CNXN);
+        buffer.putInt(VERSION);
+        buffer.putInt(MAX_PAYLOAD);
+        buffer.putInt(payload.length);
+        buffer.putInt(checksum(payload));
+        buffer.putInt(~COMMAND_CNXN);
+        buffer.put(payload);
+        return buffer.array();
+    }
+
+    /**
+     * Reads a message header and returns its command if the header is valid.
+     */
+    static int readReplyCommand(InputStream inputStream) throws IOException {
+        byte[] header = new byte[HEADER_SIZE];
+        new DataInputStream(inputStream).readFully(header);
+        ByteBuffer buffer = ByteBuffer.wrap(header).order(ByteOrder.LITTLE_ENDIAN);
+        int command = buffer.getInt(0);
+        int magic = buffer.getInt(20);
+        if (magic != ~command) {
+            throw new IOException("Invalid message header");
+        }
+        return command;
+    }
+
+    private static int checksum(byte[] payload) {
+        int sum = 0;
+        for (byte b : payload) {
+            sum += b & 0xFF;
+        }
+        return sum;
+    }
+}
@@ -0,0 +1,537 @@
+/*
+ * This file is part of Wirebug.
+ *
+ * Wirebug is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Wirebug is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Wirebug.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.sryze.wirebug;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import timber.log.Timber;
+
+/**
+ * Forwards TCP connections from a public address to adbd listening on loopback, keeping
+ * track of how much goes through each connection.
+ *
+ * Everything runs on a single thread with a selector. Each connection needs two buffers
+ * (one per direction) which are taken from a pool of direct buffers.
+ *
+ * Both the listening socket and the connections to adbd are AF_INET sockets, which the app
+ * may only open because it holds the INTERNET permission (even for loopback).
+ */
+public class AdbRelay {
+
+    public static final int DEFAULT_MAX_CONNECTIONS = 8;
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int MAX_CLOSED_CONNECTIONS = 16;
+
+    /**
+     * A snapshot of a connection's statistics.
+     */
+    public static final class ConnectionStats {
+
+        private final String remoteAddress;
+        private final long durationMillis;
+        private final long bytesFromClient;
+        private final long bytesToClient;
+        private final long connectLatencyNanos;
+        private final long responseLatencyNanos;
+        private final boolean isOpen;
+
+        ConnectionStats(
+                String remoteAddress,
+                long durationMillis,
+                long bytesFromClient,
+                long bytesToClient,
+                long connectLatencyNanos,
+                long responseLatencyNanos,
+                boolean isOpen) {
+            this.remoteAddress = remoteAddress;
+            this.durationMillis = durationMillis;
+            this.bytesFromClient = bytesFromClient;
+            this.bytesToClient = bytesToClient;
+            this.connectLatencyNanos = connectLatencyNanos;
+            this.responseLatencyNanos = responseLatencyNanos;
+            this.isOpen = isOpen;
+        }
+
+        public String getRemoteAddress() {
+            return remoteAddress;
+        }
+
+        public long getDurationMillis() {
+            return durationMillis;
+        }
+
+        public long getBytesFromClient() {
+            return bytesFromClient;
+        }
+
+        public long getBytesToClient() {
+            return bytesToClient;
+        }
+
+        /**
+         * Returns the average number of bytes per second in both directions.
+         */
+        public double getThroughput() {
+            return (bytesFromClient + bytesToClient) * 1000.0 / Math.max(durationMillis, 1);
+        }
+
+        /**
+         * Returns how long it took to connect to adbd, or -1 if it hasn't connected yet.
+         */
+        public double getConnectLatencyMillis() {
+            return toMillis(connectLatencyNanos);
+        }
+
+        /**
+         * Returns the time between the first bytes sent by the client and the first bytes
+         * of adbd's response, or -1 if there hasn't been a response yet.
+         */
+        public double getResponseLatencyMillis() {
+            return toMillis(responseLatencyNanos);
+        }
+
+        public boolean isOpen() {
+            return isOpen;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US,
+                "%s%s: %d ms, %d bytes in, %d bytes out, %.0f bytes/s,"
+                    + " connect %.1f ms, response %.1f ms",
+                remoteAddress,
+                isOpen ? "" : " (closed)",
+                durationMillis,
+                bytesFromClient,
+                bytesToClient,
+                getThroughput(),
+                getConnectLatencyMillis(),
+                getResponseLatencyMillis());
+        }
+
+        private static double toMillis(long nanos) {
+            return nanos >= 0 ? nanos / 1e6 : -1;
+        }
+    }
+
+    private final InetSocketAddress listenAddress;
+    private final InetSocketAddress backendAddress;
+    private final int maxConnections;
+    private final BufferPool bufferPool;
+    private final List<Connection> connections = new CopyOnWriteArrayList<>();
+    private final ArrayDeque<ConnectionStats> closedConnections = new ArrayDeque<>();
+
+    private Selector selector;
+    private ServerSocketChannel serverChannel;
+    private Thread thread;
+    private volatile boolean isRunning;
+
+    public AdbRelay(
+            InetSocketAddress listenAddress,
+            InetSocketAddress backendAddress,
+            int maxConnections) {
+        this.listenAddress = listenAddress;
+        this.backendAddress = backendAddress;
+        this.maxConnections = maxConnections;
+        this.bufferPool = new BufferPool(BUFFER_SIZE, maxConnections * 2);
+    }
+
+    public synchronized void start() throws IOException {
+        if (isRunning) {
+            return;
+        }
+        selector = Selector.open();
+        try {
+            serverChannel = ServerSocketChannel.open();
+            serverChannel.socket().setReuseAddress(true);
+            serverChannel.socket().bind(listenAddress);
+            serverChannel.configureBlocking(false);
+            serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+        } catch (IOException e) {
+            closeQuietly();
+            throw e;
+        }
+        Timber.i("Relaying %s to %s", serverChannel.socket().getLocalSocketAddress(),
+            backendAddress);
+        isRunning = true;
+        thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                runLoop();
+            }
+        }, "AdbRelay");
+        thread.start();
+    }
+
+    /**
+     * Stops accepting connections and closes the existing ones.
+     */
+    public synchronized void stop() {
+        if (!isRunning) {
+            return;
+        }
+        isRunning = false;
+        selector.wakeup();
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        thread = null;
+        Timber.i("Relay has stopped");
+    }
+
+    public boolean isRunning() {
+        return isRunning;
+    }
+
+    /**
+     * Returns the port the relay is listening on, or -1 if it's not running.
+     */
+    public synchronized int getLocalPort() {
+        return isRunning ? serverChannel.socket().getLocalPort() : -1;
+    }
+
+    public InetSocketAddress getListenAddress() {
+        return listenAddress;
+    }
+
+    public int getConnectionCount() {
+        return connections.size();
+    }
+
+    /**
+     * Returns statistics for the open connections followed by the most recently closed ones.
+     */
+    public List<ConnectionStats> getConnectionStats() {
+        List<ConnectionStats> stats = new ArrayList<>();
+        for (Connection connection : connections) {
+            stats.add(connection.getStats(true));
+        }
+        synchronized (closedConnections) {
+            stats.addAll(closedConnections);
+        }
+        return stats;
+    }
+
+    public void dump(PrintWriter writer) {
+        writer.printf("Relay: %s -> %s (%s)%n", listenAddress, backendAddress,
+            isRunning ? "running" : "stopped");
+        for (ConnectionStats stats : getConnectionStats()) {
+            writer.printf("  %s%n", stats);
+        }
+    }
+
+    private void runLoop() {
+        try {
+            while (isRunning) {
+                selector.select();
+                Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
+                while (iterator.hasNext()) {
+                    SelectionKey key = iterator.next();
+                    iterator.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isAcceptable()) {
+                        try {
+                            accept();
+                        } catch (IOException e) {
+                            Timber.w("Could not accept a connection: %s", e.getMessage());
+                        }
+                    } else {
+                        Connection connection = (Connection) key.attachment();
+                        try {
+                            connection.onReady(key);
+                        } catch (IOException e) {
+                            Timber.d("Relay connection from %s failed: %s",
+                                connection.remoteAddress, e.getMessage());
+                            connection.close();
+                        }
+                    }
+                }
+            }
+        } catch (IOException | ClosedSelectorException e) {
+            Timber.e(e, "Relay has failed");
+            isRunning = false;
+        } finally {
+            for (Connection connection : connections) {
+                connection.close();
+            }
+            closeQuietly();
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel client = serverChannel.accept();
+        if (client == null) {
+            return;
+        }
+        if (connections.size() >= maxConnections) {
+            Timber.w("Rejecting connection from %s: too many connections",
+                client.socket().getRemoteSocketAddress());
+            Metrics.counter(Metrics.RELAY_REJECTED).increment();
+            client.close();
+            return;
+        }
+        Metrics.counter(Metrics.RELAY_CONNECTIONS).increment();
+        SocketChannel backend = SocketChannel.open();
+        Connection connection;
+        try {
+            client.configureBlocking(false);
+            client.socket().setTcpNoDelay(true);
+            backend.configureBlocking(false);
+            backend.socket().setTcpNoDelay(true);
+            connection = new Connection(client, backend);
+        } catch (IOException e) {
+            client.close();
+            backend.close();
+            throw e;
+        }
+        connections.add(connection);
+        try {
+            if (backend.connect(backendAddress)) {
+                connection.onBackendConnected();
+            }
+        } catch (IOException e) {
+            Timber.w("Could not connect to %s: %s", backendAddress, e.getMessage());
+            connection.close();
+        }
+    }
+
+    private void closeQuietly() {
+        try {
+            if (serverChannel != null) {
+                serverChannel.close();
+            }
+            selector.close();
+        } catch (IOException e) {
+            // Nothing we can do about it
+        }
+    }
+
+    /**
+     * One direction of a connection. Data read from the source is kept in the buffer until
+     * it has been written to the target. The buffer is always left in "fill" mode.
+     */
+    private static final class Pipe {
+
+        final SocketChannel source;
+        final SocketChannel target;
+        final ByteBuffer buffer;
+        SelectionKey sourceKey;
+        SelectionKey targetKey;
+        boolean isSourceClosed;
+        boolean isTargetShutDown;
+        volatile long byteCount;
+
+        Pipe(SocketChannel source, SocketChannel target, ByteBuffer buffer) {
+            this.source = source;
+            this.target = target;
+            this.buffer = buffer;
+        }
+
+        /**
+         * Returns the number of bytes read, or -1 at the end of stream.
+         */
+        int read() throws IOException {
+            int count = source.read(buffer);
+            if (count < 0) {
+                isSourceClosed = true;
+                removeInterest(sourceKey, SelectionKey.OP_READ);
+                if (buffer.position() == 0) {
+                    shutDownTarget();
+                }
+                return count;
+            }
+            if (count > 0) {
+                addInterest(targetKey, SelectionKey.OP_WRITE);
+            }
+            if (!buffer.hasRemaining()) {
+                // Stop reading until the other side catches up
+                removeInterest(sourceKey, SelectionKey.OP_READ);
+            }
+            return count;
+        }
+
+        /**
+         * Returns the number of bytes written.
+         */
+        int write() throws IOException {
+            buffer.flip();
+            int count = target.write(buffer);
+            buffer.compact();
+            byteCount += count;
+            if (buffer.position() == 0) {
+                removeInterest(targetKey, SelectionKey.OP_WRITE);
+                if (isSourceClosed) {
+                    shutDownTarget();
+                }
+            }
+            if (!isSourceClosed && buffer.hasRemaining()) {
+                addInterest(sourceKey, SelectionKey.OP_READ);
+            }
+            return count;
+        }
+
+        private void shutDownTarget() throws IOException {
+            if (!isTargetShutDown) {
+                isTargetShutDown = true;
+                target.socket().shutdownOutput();
+            }
+        }
+
+        private static void addInterest(SelectionKey key, int ops) {
+            key.interestOps(key.interestOps() | ops);
+        }
+
+        private static void removeInterest(SelectionKey key, int ops) {
+            key.interestOps(key.interestOps() & ~ops);
+        }
+    }
+
+    private final class Connection {
+
+        final String remoteAddress;
+        final SocketChannel client;
+        final SocketChannel backend;
+        final Pipe upstream;
+        final Pipe downstream;
+        final SelectionKey clientKey;
+        final SelectionKey backendKey;
+        final long startTime = System.nanoTime();
+        volatile long connectLatency = -1;
+        volatile long responseLatency = -1;
+        long requestTime;
+        boolean isClosed;
+
+        Connection(SocketChannel client, SocketChannel backend) throws IOException {
+            this.remoteAddress = String.valueOf(client.socket().getRemoteSocketAddress());
+            this.client = client;
+            this.backend = backend;
+            upstream = new Pipe(client, backend, bufferPool.acquire());
+            downstream = new Pipe(backend, client, bufferPool.acquire());
+            // Nothing is read from the client until adbd has accepted the connection
+            clientKey = client.register(selector, 0, this);
+            backendKey = backend.register(selector, SelectionKey.OP_CONNECT, this);
+            upstream.sourceKey = clientKey;
+            upstream.targetKey = backendKey;
+            downstream.sourceKey = backendKey;
+            downstream.targetKey = clientKey;
+        }
+
+        void onReady(SelectionKey key) throws IOException {
+            if (key == backendKey && key.isConnectable()) {
+                backend.finishConnect();
+                onBackendConnected();
+                return;
+            }
+            Pipe readPipe = key == clientKey ? upstream : downstream;
+            Pipe writePipe = key == clientKey ? downstream : upstream;
+            if (key.isReadable()) {
+                int count = readPipe.read();
+                if (count > 0) {
+                    onData(readPipe);
+                }
+            }
+            if (key.isValid() && key.isWritable()) {
+                int count = writePipe.write();
+                Metrics.counter(writePipe == upstream
+                    ? Metrics.RELAY_BYTES_FROM_CLIENT
+                    : Metrics.RELAY_BYTES_TO_CLIENT).add(count);
+            }
+            if (upstream.isTargetShutDown && downstream.isTargetShutDown) {
+                close();
+            }
+        }
+
+        void onBackendConnected() {
+            connectLatency = System.nanoTime() - startTime;
+            Metrics.histogram(Metrics.RELAY_CONNECT).record(connectLatency);
+            Timber.d("Relaying connection from %s", remoteAddress);
+            backendKey.interestOps(SelectionKey.OP_READ);
+            clientKey.interestOps(SelectionKey.OP_READ);
+        }
+
+        void onData(Pipe pipe) {
+            if (pipe == upstream) {
+                if (requestTime == 0) {
+                    requestTime = System.nanoTime();
+                }
+            } else if (responseLatency < 0 && requestTime != 0) {
+                responseLatency = System.nanoTime() - requestTime;
+                Metrics.histogram(Metrics.RELAY_RESPONSE).record(responseLatency);
+            }
+        }
+
+        void close() {
+            if (isClosed) {
+                return;
+            }
+            isClosed = true;
+            connections.remove(this);
+            try {
+                client.close();
+            } catch (IOException e) {
+                // Already closed
+            }
+            try {
+                backend.close();
+            } catch (IOException e) {
+                // Already closed
+            }
+            bufferPool.release(upstream.buffer);
+            bufferPool.release(downstream.buffer);
+            ConnectionStats stats = getStats(false);
+            Timber.d("Relay connection closed: %s", stats);
+            synchronized (closedConnections) {
+                if (closedConnections.size() >= MAX_CLOSED_CONNECTIONS) {
+                    closedConnections.removeLast();
+                }
+                closedConnections.addFirst(stats);
+            }
+        }
+
+        ConnectionStats getStats(boolean isOpen) {
+            return new ConnectionStats(
+                remoteAddress,
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTime),
+                upstream.byteCount,
+                downstream.byteCount,
+                connectLatency,
+                responseLatency,
+                isOpen);
+        }
+    }
+}
@@ -23,14 +23,46 @@ import android.content.Intent;
 
 import timber.log.Timber;
 
+/**
+ * Restores debugging over TCP after a reboot. It's direct boot aware, so on devices with
+ * file-based encryption the port comes back as soon as LOCKED_BOOT_COMPLETED is sent,
+ * without waiting for the user to unlock. The status service is started once the device
+ * has been unlocked (BOOT_COMPLETED).
+ */
 public class BootCompletedReceiver extends BroadcastReceiver {
 
     @Override
-    public void onReceive(Context context, Intent intent) {
-        String action = intent.getAction();
-        if (action != null && action.equals(Intent.ACTION_BOOT_COMPLETED)) {
-            Timber.i("Starting status update service");
-            context.startService(new Intent(context, DebugStatusService.class));
+    public void onReceive(final Context context, Intent intent) {
+        final String action = intent.getAction();
+        if (!Intent.ACTION_BOOT_COMPLETED.equals(action)
+            && !Intent.ACTION_LOCKED_BOOT_COMPLETED.equals(action)) {
+            return;
         }
+
+        Timber.i("Received %s", action);
+        final PendingResult pendingResult = goAsync();
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    if (!BootRestore.getBootRestore().restore()) {
+                        Timber.e("Could not restore debugging after boot");
+                    }
+                    if (Intent.ACTION_BOOT_COMPLETED.equals(action)) {
+                        startStatusService(context);
+                    }
+                } finally {
+                    pendingResult.finish();
+                }
+            }
+        }, "BootCompletedReceiver").start();
+    }
+
+    private static void startStatusService(Context context) {
+        ((WirebugApp) context.getApplicationContext()).onUserUnlocked();
+        Timber.i("Starting status update service");
+        Intent serviceIntent = new Intent(context, DebugStatusService.class);
+        serviceIntent.setAction(DebugStatusService.ACTION_UPDATE_STATUS);
+        context.startService(serviceIntent);
     }
 }
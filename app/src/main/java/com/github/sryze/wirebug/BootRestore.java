@@ -0,0 +1,137 @@
+/*
+ * This file is part of Wirebug.
+ *
+ * Wirebug is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Wirebug is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Wirebug.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.sryze.wirebug;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.SystemClock;
+
+import timber.log.Timber;
+
+/**
+ * Brings debugging over TCP back after a reboot.
+ *
+ * The port that debugging was last left on (0 if it was disabled) is kept in device
+ * protected storage, so that it can be read before the user unlocks the device. On boot
+ * it's applied with a single root invocation, and the time from boot until adbd accepts
+ * connections is recorded.
+ */
+public class BootRestore {
+
+    private static final String PREFERENCES_NAME = "boot_restore";
+    private static final String KEY_DESIRED_PORT = "desired_port";
+    private static final String KEY_BOOT_TO_READY = "boot_to_ready";
+    private static final long READY_TIMEOUT = 10000;
+    private static final String LOOPBACK_ADDRESS = "127.0.0.1";
+
+    private static BootRestore globalBootRestore;
+
+    private final SharedPreferences preferences;
+    private boolean isRestored;
+
+    private BootRestore(Context context) {
+        preferences = StorageUtils.getDeviceProtectedContext(context)
+            .getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE);
+    }
+
+    public static synchronized void init(Context context) {
+        if (globalBootRestore == null) {
+            globalBootRestore = new BootRestore(context.getApplicationContext());
+        }
+    }
+
+    public static synchronized BootRestore getBootRestore() {
+        if (globalBootRestore == null) {
+            throw new IllegalStateException("BootRestore is not initialized");
+        }
+        return globalBootRestore;
+    }
+
+    /**
+     * Remembers the port to restore on the next boot, 0 to leave debugging disabled.
+     */
+    public void setDesiredPort(int port) {
+        if (preferences.getInt(KEY_DESIRED_PORT, 0) != port) {
+            Timber.d("Desired port: %d", port);
+            preferences.edit().putInt(KEY_DESIRED_PORT, port).apply();
+        }
+    }
+
+    public int getDesiredPort() {
+        return preferences.getInt(KEY_DESIRED_PORT, 0);
+    }
+
+    /**
+     * Returns how long after the last boot adbd was ready on the restored port, or -1 if
+     * nothing was restored.
+     */
+    public long getBootToReadyMillis() {
+        return preferences.getLong(KEY_BOOT_TO_READY, -1);
+    }
+
+    /**
+     * Applies the desired port unless adbd is already listening on it (e.g. because of
+     * persist.adb.tcp.port), then waits for adbd to accept connections. Only does the work
+     * once per process, so it's fine to call it for each of the boot broadcasts. Blocks,
+     * so must not be called on the main thread.
+     *
+     * A failure leaves the desired port alone: the next boot broadcast (or the next boot)
+     * tries again, and only a toggle by the user changes what is restored.
+     *
+     * @return true if debugging is in the desired state
+     */
+    public synchronized boolean restore() {
+        if (isRestored) {
+            return true;
+        }
+        int port = getDesiredPort();
+        if (port <= 0) {
+            // Debugging was disabled, and whatever the system has set up is none of our
+            // business
+            isRestored = true;
+            return true;
+        }
+
+        if (DebugManager.getAdbTcpPort() != port) {
+            Timber.i("Restoring TCP port %d", port);
+            if (!DebugManager.applyAdbTcpPort(port, null)) {
+                Timber.w("Could not restore TCP port %d, will try again", port);
+                return false;
+            }
+        }
+
+        try {
+            AdbReadinessProbe.Result result =
+                new AdbReadinessProbe(LOOPBACK_ADDRESS, port).waitUntilReady(READY_TIMEOUT);
+            if (!result.isReady()) {
+                Timber.w("adbd is not accepting connections on port %d, will try again", port);
+                return false;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+
+        long bootToReady = SystemClock.elapsedRealtime();
+        Timber.i("adbd is ready on port %d, %d ms after boot", port, bootToReady);
+        Metrics.histogram(Metrics.BOOT_TO_READY).record(bootToReady * 1000000);
+        preferences.edit().putLong(KEY_BOOT_TO_READY, bootToReady).apply();
+        isRestored = true;
+        return true;
+    }
+}
@@ -0,0 +1,62 @@
+/*
+ * This file is part of Wirebug.
+ *
+ * Wirebug is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Wirebug is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Wirebug.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.sryze.wirebug;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+/**
+ * A free list of direct buffers of the same size, so that connections coming and going
+ * don't keep allocating native memory.
+ */
+class BufferPool {
+
+    private final int bufferSize;
+    private final int maxPooledBuffers;
+    private final ArrayDeque<ByteBuffer> buffers = new ArrayDeque<>();
+
+    BufferPool(int bufferSize, int maxPooledBuffers) {
+        this.bufferSize = bufferSize;
+        this.maxPooledBuffers = maxPooledBuffers;
+    }
+
+    /**
+     * Returns a cleared buffer, either from the pool or a newly allocated one.
+     */
+    synchronized ByteBuffer acquire() {
+        ByteBuffer buffer = buffers.pollFirst();
+        if (buffer == null) {
+            return ByteBuffer.allocateDirect(bufferSize);
+        }
+        return buffer;
+    }
+
+    /**
+     * Puts a buffer back into the pool. It must not be used by the caller afterwards.
+     */
+    synchronized void release(ByteBuffer buffer) {
+        if (buffers.size() < maxPooledBuffers) {
+            buffer.clear();
+            buffers.addFirst(buffer);
+        }
+    }
+
+    synchronized int getPooledBufferCount() {
+        return buffers.size();
+    }
+}
@@ -0,0 +1,65 @@
+/*
+ * This file is part of Wirebug.
+ *
+ * Wirebug is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Wirebug is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Wirebug.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.sryze.wirebug;
+
+import java.io.File;
+
+public final class CommandResult {
+
+    private final String output;
+    private final int exitStatus;
+    private final boolean isTruncated;
+    private final File spillFile;
+
+    public CommandResult(String output, int exitStatus) {
+        this(output, exitStatus, false, null);
+    }
+
+    public CommandResult(String output, int exitStatus, boolean isTruncated, File spillFile) {
+        this.output = output;
+        this.exitStatus = exitStatus;
+        this.isTruncated = isTruncated;
+        this.spillFile = spillFile;
+    }
+
+    public String getOutput() {
+        return output;
+    }
+
+    public int getExitStatus() {
+        return exitStatus;
+    }
+
+    /**
+     * Returns true if the output didn't fit into memory and only its beginning is kept.
+     */
+    public boolean isTruncated() {
+        return isTruncated;
+    }
+
+    /**
+     * Returns the file containing the complete output if it was truncated, or null.
+     */
+    public File getSpillFile() {
+        return spillFile;
+    }
+
+    public boolean isSuccess() {
+        return exitStatus == 0;
+    }
+}
@@ -0,0 +1,141 @@
+/*
+ * This file is part of Wirebug.
+ *
+ * Wirebug is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Wirebug is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Wirebug.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.sryze.wirebug;
+
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Immutable state of the Wi-Fi connection as last seen by {@link ConnectivityTracker}.
+ */
+public final class ConnectivitySnapshot {
+
+    public static final ConnectivitySnapshot DISCONNECTED =
+        new ConnectivitySnapshot(false, null, Collections.<InetAddress>emptyList(), null);
+
+    private final boolean isConnectedToWifi;
+    private final String interfaceName;
+    private final List<InetAddress> addresses;
+    private final String ssid;
+
+    ConnectivitySnapshot(
+            boolean isConnectedToWifi,
+            String interfaceName,
+            List<InetAddress> addresses,
+            String ssid) {
+        this.isConnectedToWifi = isConnectedToWifi;
+        this.interfaceName = interfaceName;
+        this.addresses = Collections.unmodifiableList(new ArrayList<>(addresses));
+        this.ssid = ssid;
+    }
+
+    public boolean isConnectedToWifi() {
+        return isConnectedToWifi;
+    }
+
+    /**
+     * Returns the name of the Wi-Fi interface (e.g. wlan0), or null if unknown.
+     */
+    public String getInterfaceName() {
+        return interfaceName;
+    }
+
+    /**
+     * Returns all IPv4 and IPv6 addresses assigned to the Wi-Fi interface.
+     */
+    public List<InetAddress> getAddresses() {
+        return addresses;
+    }
+
+    public String getSsid() {
+        return ssid;
+    }
+
+    /**
+     * Returns the address that should be passed to "adb connect": the first IPv4 address if
+     * there is one, otherwise the first IPv6 address that isn't link-local. Returns null
+     * if there are no usable addresses.
+     */
+    public String getPreferredAddress() {
+        InetAddress address = getPreferredInetAddress();
+        if (address == null) {
+            return null;
+        }
+        if (address instanceof Inet4Address) {
+            return address.getHostAddress();
+        }
+        return "[" + address.getHostAddress() + "]";
+    }
+
+    /**
+     * Same as {@link #getPreferredAddress()}, but returns an InetAddress.
+     */
+    public InetAddress getPreferredInetAddress() {
+        InetAddress ipv6Address = null;
+        for (InetAddress address : addresses) {
+            if (address instanceof Inet4Address) {
+                return address;
+            }
+            if (ipv6Address == null && !address.isLinkLocalAddress()) {
+                ipv6Address = address;
+            }
+        }
+        return ipv6Address;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        if (this == other) {
+            return true;
+        }
+        if (!(other instanceof ConnectivitySnapshot)) {
+            return false;
+        }
+        ConnectivitySnapshot snapshot = (ConnectivitySnapshot) other;
+        return isConnectedToWifi == snapshot.isConnectedToWifi
+            && equalsOrNull(interfaceName, snapshot.interfaceName)
+            && addresses.equals(snapshot.addresses)
+            && equalsOrNull(ssid, snapshot.ssid);
+    }
+
+    @Override
+    public int hashCode() {
+        int result = isConnectedToWifi ? 1 : 0;
+        result = 31 * result + (interfaceName != null ? interfaceName.hashCode() : 0);
+        result = 31 * result + addresses.hashCode();
+        result = 31 * result + (ssid != null ? ssid.hashCode() : 0);
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        return "ConnectivitySnapshot{"
+            + "isConnectedToWifi=" + isConnectedToWifi
+            + ", interfaceName=" + interfaceName
+            + ", addresses=" + addresses
+            + ", ssid=" + ssid
+            + "}";
+    }
+
+    private static boolean equalsOrNull(Object a, Object b) {
+        return a == null ? b == null : a.equals(b);
+    }
+}
@@ -0,0 +1,214 @@
+/*
+ * This file is part of Wirebug.
+ *
+ * Wirebug is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Wirebug is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Wirebug.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.sryze.wirebug;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.net.ConnectivityManager;
+import android.net.LinkAddress;
+import android.net.LinkProperties;
+import android.net.Network;
+import android.net.NetworkCapabilities;
+import android.net.NetworkInfo;
+import android.net.NetworkRequest;
+import android.net.wifi.WifiInfo;
+import android.net.wifi.WifiManager;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import androidx.annotation.RequiresApi;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+import timber.log.Timber;
+
+/**
+ * Keeps track of the Wi-Fi connection so that nobody has to query the system for it.
+ *
+ * A network callback (or the connectivity broadcast before Lollipop) is registered once for
+ * the lifetime of the app. Every time it fires a new {@link ConnectivitySnapshot} is built
+ * and swapped in, so reading the current state is just a field read. Listeners are only
+ * notified when the snapshot is actually different from the previous one.
+ */
+public class ConnectivityTracker {
+
+    /**
+     * Listeners are always called on the main thread.
+     */
+    public interface Listener {
+        void onConnectivityChanged(ConnectivitySnapshot snapshot);
+    }
+
+    private static ConnectivityTracker globalTracker;
+
+    private final ConnectivityManager connectivityManager;
+    private final WifiManager wifiManager;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final AtomicReference<ConnectivitySnapshot> snapshot =
+        new AtomicReference<>(ConnectivitySnapshot.DISCONNECTED);
+    private final List<Listener> listeners = new ArrayList<>();
+
+    // Only touched from the network callback
+    private Network wifiNetwork;
+
+    private ConnectivityTracker(Context context) {
+        connectivityManager =
+            (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+        wifiManager =
+            (WifiManager) context.getApplicationContext().getSystemService(Context.WIFI_SERVICE);
+    }
+
+    public static synchronized void init(Context context) {
+        if (globalTracker == null) {
+            globalTracker = new ConnectivityTracker(context.getApplicationContext());
+            globalTracker.start(context.getApplicationContext());
+        }
+    }
+
+    public static synchronized ConnectivityTracker getTracker() {
+        if (globalTracker == null) {
+            throw new IllegalStateException("ConnectivityTracker.init() has not been called");
+        }
+        return globalTracker;
+    }
+
+    public ConnectivitySnapshot getSnapshot() {
+        return snapshot.get();
+    }
+
+    public void addListener(Listener listener) {
+        synchronized (listeners) {
+            listeners.add(listener);
+        }
+    }
+
+    public void removeListener(Listener listener) {
+        synchronized (listeners) {
+            listeners.remove(listener);
+        }
+    }
+
+    private void start(Context context) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            registerNetworkCallback();
+        } else {
+            setSnapshot(getLegacySnapshot());
+            context.registerReceiver(new BroadcastReceiver() {
+                @Override
+                public void onReceive(Context context, Intent intent) {
+                    Timber.d("Received connectivity change broadcast");
+                    setSnapshot(getLegacySnapshot());
+                }
+            }, new IntentFilter(ConnectivityManager.CONNECTIVITY_ACTION));
+        }
+    }
+
+    @RequiresApi(Build.VERSION_CODES.LOLLIPOP)
+    private void registerNetworkCallback() {
+        NetworkRequest request = new NetworkRequest.Builder()
+            .addTransportType(NetworkCapabilities.TRANSPORT_WIFI)
+            .build();
+        connectivityManager.registerNetworkCallback(request,
+            new ConnectivityManager.NetworkCallback() {
+                @Override
+                public void onAvailable(Network network) {
+                    Timber.d("Wi-Fi network is available");
+                    wifiNetwork = network;
+                    setSnapshot(createSnapshot(connectivityManager.getLinkProperties(network)));
+                }
+
+                @Override
+                public void onLost(Network network) {
+                    Timber.d("Wi-Fi network is lost");
+                    if (network.equals(wifiNetwork)) {
+                        wifiNetwork = null;
+                        setSnapshot(ConnectivitySnapshot.DISCONNECTED);
+                    }
+                }
+
+                @Override
+                public void onLinkPropertiesChanged(
+                        Network network,
+                        LinkProperties linkProperties) {
+                    Timber.d("Wi-Fi link properties have changed");
+                    if (network.equals(wifiNetwork)) {
+                        setSnapshot(createSnapshot(linkProperties));
+                    }
+                }
+            });
+    }
+
+    @RequiresApi(Build.VERSION_CODES.LOLLIPOP)
+    private ConnectivitySnapshot createSnapshot(LinkProperties linkProperties) {
+        List<InetAddress> addresses = new ArrayList<>();
+        String interfaceName = null;
+        if (linkProperties != null) {
+            for (LinkAddress linkAddress : linkProperties.getLinkAddresses()) {
+                addresses.add(linkAddress.getAddress());
+            }
+            interfaceName = linkProperties.getInterfaceName();
+        }
+        return new ConnectivitySnapshot(true, interfaceName, addresses, getSsid());
+    }
+
+    @SuppressWarnings("deprecation")
+    private ConnectivitySnapshot getLegacySnapshot() {
+        NetworkInfo networkInfo = connectivityManager.getNetworkInfo(ConnectivityManager.TYPE_WIFI);
+        if (networkInfo == null || !networkInfo.isConnected()) {
+            return ConnectivitySnapshot.DISCONNECTED;
+        }
+        List<InetAddress> addresses = Collections.emptyList();
+        WifiInfo wifiInfo = wifiManager.getConnectionInfo();
+        if (wifiInfo != null && wifiInfo.getIpAddress() != 0) {
+            addresses = Collections.singletonList(
+                NetworkUtils.getInetAddressFromIpAddress(wifiInfo.getIpAddress()));
+        }
+        return new ConnectivitySnapshot(true, null, addresses, getSsid());
+    }
+
+    private String getSsid() {
+        WifiInfo wifiInfo = wifiManager.getConnectionInfo();
+        return wifiInfo != null ? wifiInfo.getSSID() : null;
+    }
+
+    private void setSnapshot(final ConnectivitySnapshot newSnapshot) {
+        ConnectivitySnapshot oldSnapshot = snapshot.getAndSet(newSnapshot);
+        if (newSnapshot.equals(oldSnapshot)) {
+            return;
+        }
+        Timber.i("Connectivity has changed: %s", newSnapshot);
+        mainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                List<Listener> listenersCopy;
+                synchronized (listeners) {
+                    listenersCopy = new ArrayList<>(listeners);
+                }
+                for (Listener listener : listenersCopy) {
+                    listener.onConnectivityChanged(newSnapshot);
+                }
+            }
+        });
+    }
+}
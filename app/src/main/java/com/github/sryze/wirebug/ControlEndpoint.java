@@ -0,0 +1,181 @@
+/*
+ * This file is part of Wirebug.
+ *
+ * Wirebug is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Wirebug is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Wirebug.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.sryze.wirebug;
+
+import android.os.SystemClock;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.net.InetAddress;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Answers requests to the {@link ControlServer}:
+ *
+ * GET /status - the current status as JSON
+ * POST /enable, POST /disable - toggles debugging; the reply is sent right away, and the
+ * status shows when the toggle is done
+ * GET /metrics - everything in {@link Metrics}, in the Prometheus text format
+ *
+ * Enabling and disabling requires the token from the control_server_token preference in
+ * the X-Wirebug-Token header. Besides keeping out anyone who doesn't know the token, a
+ * custom header makes browsers send a CORS preflight, which we don't answer, so a web page
+ * can't toggle debugging from the user's browser.
+ *
+ * The status comes from {@link DebugStatusStore} and {@link StatusCache}, so answering
+ * never runs any commands.
+ */
+class ControlEndpoint implements ControlServer.RequestHandler {
+
+    private static final String METHOD_GET = "GET";
+    private static final String METHOD_POST = "POST";
+    private static final String TOKEN_HEADER = "x-wirebug-token";
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    @Override
+    public ControlServer.Response handle(
+            String method,
+            String path,
+            Map<String, String> headers) {
+        switch (path) {
+            case "/status":
+                if (!METHOD_GET.equals(method)) {
+                    return ControlServer.Response.error(405);
+                }
+                return ControlServer.Response.json(200, getStatusJson());
+            case "/enable":
+            case "/disable":
+                if (!METHOD_POST.equals(method)) {
+                    return ControlServer.Response.error(405);
+                }
+                if (!isAuthorized(headers)) {
+                    return ControlServer.Response.error(403);
+                }
+                boolean isEnabled = path.equals("/enable");
+                DebugToggleController.getController().setEnabled(isEnabled);
+                return ControlServer.Response.json(
+                    202, String.format("{\"target_enabled\":%s}", isEnabled));
+            case "/metrics":
+                if (!METHOD_GET.equals(method)) {
+                    return ControlServer.Response.error(405);
+                }
+                StringWriter stringWriter = new StringWriter();
+                PrintWriter writer = new PrintWriter(stringWriter);
+                Metrics.dumpPrometheus(writer);
+                writer.flush();
+                return new ControlServer.Response(
+                    200,
+                    ControlServer.Response.CONTENT_TYPE_PROMETHEUS,
+                    stringWriter.toString());
+            default:
+                return ControlServer.Response.error(404);
+        }
+    }
+
+    /**
+     * An empty token (e.g. cleared by the user) doesn't let anyone in.
+     */
+    private static boolean isAuthorized(Map<String, String> headers) {
+        String token = DebugStatusStore.getStore().getControlToken();
+        String providedToken = headers.get(TOKEN_HEADER);
+        return !token.isEmpty()
+            && providedToken != null
+            && MessageDigest.isEqual(token.getBytes(UTF_8), providedToken.getBytes(UTF_8));
+    }
+
+    private static String getStatusJson() {
+        DebugStatus status = DebugStatusStore.getStore().getStatus();
+        StatusCache.Snapshot snapshot = StatusCache.getCache().getSnapshot();
+        ConnectivitySnapshot connectivity = status.getConnectivity();
+
+        StringBuilder addresses = new StringBuilder();
+        for (InetAddress address : connectivity.getAddresses()) {
+            appendSeparator(addresses).append(quote(address.getHostAddress()));
+        }
+        StringBuilder connectedHosts = new StringBuilder();
+        for (String host : status.getConnectedHosts()) {
+            appendSeparator(connectedHosts).append(quote(host));
+        }
+
+        return String.format(Locale.US,
+            "{\"enabled\":%s,\"target_enabled\":%s,\"state\":%s,\"port\":%d,"
+                + "\"connect_address\":%s,\"wifi\":%s,\"ssid\":%s,\"addresses\":[%s],"
+                + "\"connected_hosts\":[%s],\"relay_mode\":%s,\"uptime_ms\":%d}",
+            status.isEnabled(),
+            snapshot.isTargetEnabled(),
+            quote(DebugToggleController.getController().getState().name().toLowerCase(
+                Locale.US)),
+            status.getPort(),
+            quote(snapshot.getConnectAddress()),
+            connectivity.isConnectedToWifi(),
+            quote(connectivity.getSsid()),
+            addresses,
+            connectedHosts,
+            status.isRelayMode(),
+            SystemClock.elapsedRealtime());
+    }
+
+    private static StringBuilder appendSeparator(StringBuilder builder) {
+        if (builder.length() > 0) {
+            builder.append(',');
+        }
+        return builder;
+    }
+
+    /**
+     * Returns the string as a JSON string literal, or null as a JSON null.
+     */
+    static String quote(String string) {
+        if (string == null) {
+            return "null";
+        }
+        StringBuilder builder = new StringBuilder(string.length() + 2);
+        builder.append('"');
+        for (int i = 0; i < string.length(); i++) {
+            char c = string.charAt(i);
+            switch (c) {
+                case '"':
+                    builder.append("\\\"");
+                    break;
+                case '\\':
+                    builder.append("\\\\");
+                    break;
+                case '\n':
+                    builder.append("\\n");
+                    break;
+                case '\r':
+                    builder.append("\\r");
+                    break;
+                case '\t':
+                    builder.append("\\t");
+                    break;
+                default:
+                    if (c < 0x20) {
+                        builder.append(String.format(Locale.US, "\\u%04x", (int) c));
+                    } else {
+                        builder.append(c);
+                    }
+                    break;
+            }
+        }
+        return builder.append('"').toString();
+    }
+}
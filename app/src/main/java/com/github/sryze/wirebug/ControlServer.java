@@ -0,0 +1,438 @@
+/*
+ * This file is part of Wirebug.
+ *
+ * Wirebug is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Wirebug is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Wirebug.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.sryze.wirebug;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.Map;
+
+import timber.log.Timber;
+
+/**
+ * A minimal HTTP server that lets scripts (e.g. a device farm controller) query and
+ * control Wirebug without going through the UI or adb.
+ *
+ * Only what such scripts need is supported: one request per connection, no request body,
+ * and the response is always followed by closing the connection. Everything runs on a
+ * single thread with a selector, and requests are answered by a {@link RequestHandler}
+ * on that thread, so the handler must not block.
+ */
+public class ControlServer {
+
+    public static final int DEFAULT_PORT = 8555;
+
+    /**
+     * Called on the server thread for each request.
+     */
+    public interface RequestHandler {
+        /**
+         * @param method request method, e.g. "GET"
+         * @param path request path without the query string, e.g. "/status"
+         * @param headers request headers, with names in lower case
+         */
+        Response handle(String method, String path, Map<String, String> headers);
+    }
+
+    /**
+     * A complete response.
+     */
+    public static final class Response {
+
+        public static final String CONTENT_TYPE_JSON = "application/json";
+        public static final String CONTENT_TYPE_TEXT = "text/plain; charset=utf-8";
+        public static final String CONTENT_TYPE_PROMETHEUS = "text/plain; version=0.0.4";
+
+        private final int statusCode;
+        private final String contentType;
+        private final byte[] body;
+
+        public Response(int statusCode, String contentType, String body) {
+            this.statusCode = statusCode;
+            this.contentType = contentType;
+            this.body = body.getBytes(UTF_8);
+        }
+
+        public static Response json(int statusCode, String json) {
+            return new Response(statusCode, CONTENT_TYPE_JSON, json + "\n");
+        }
+
+        public static Response error(int statusCode) {
+            return json(statusCode,
+                String.format(Locale.US, "{\"error\":\"%s\"}", getReasonPhrase(statusCode)));
+        }
+
+        public int getStatusCode() {
+            return statusCode;
+        }
+
+        ByteBuffer encode() {
+            String header = String.format(Locale.US,
+                "HTTP/1.1 %d %s\r\n"
+                    + "Content-Type: %s\r\n"
+                    + "Content-Length: %d\r\n"
+                    + "Cache-Control: no-store\r\n"
+                    + "Connection: close\r\n"
+                    + "\r\n",
+                statusCode,
+                getReasonPhrase(statusCode),
+                contentType,
+                body.length);
+            byte[] headerBytes = header.getBytes(US_ASCII);
+            ByteBuffer buffer = ByteBuffer.allocate(headerBytes.length + body.length);
+            buffer.put(headerBytes).put(body);
+            buffer.flip();
+            return buffer;
+        }
+    }
+
+    static final int MAX_REQUEST_SIZE = 4096;
+
+    private static final Charset US_ASCII = Charset.forName("US-ASCII");
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final int MAX_CONNECTIONS = 16;
+    // Connections that don't finish sending a request by then are dropped
+    private static final long REQUEST_TIMEOUT = 10000;
+
+    private final InetSocketAddress listenAddress;
+    private final RequestHandler handler;
+
+    private Selector selector;
+    private ServerSocketChannel serverChannel;
+    private Thread thread;
+    private volatile boolean isRunning;
+    private int connectionCount;
+
+    public ControlServer(InetSocketAddress listenAddress, RequestHandler handler) {
+        this.listenAddress = listenAddress;
+        this.handler = handler;
+    }
+
+    public synchronized void start() throws IOException {
+        if (isRunning) {
+            return;
+        }
+        selector = Selector.open();
+        try {
+            serverChannel = ServerSocketChannel.open();
+            serverChannel.socket().setReuseAddress(true);
+            serverChannel.socket().bind(listenAddress);
+            serverChannel.configureBlocking(false);
+            serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+        } catch (IOException e) {
+            closeQuietly();
+            throw e;
+        }
+        Timber.i("Control server is listening on %s",
+            serverChannel.socket().getLocalSocketAddress());
+        isRunning = true;
+        thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                runLoop();
+            }
+        }, "ControlServer");
+        thread.start();
+    }
+
+    public synchronized void stop() {
+        if (!isRunning) {
+            return;
+        }
+        isRunning = false;
+        selector.wakeup();
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        thread = null;
+        Timber.i("Control server has stopped");
+    }
+
+    public boolean isRunning() {
+        return isRunning;
+    }
+
+    /**
+     * Returns the port the server is listening on, or -1 if it's not running.
+     */
+    public synchronized int getLocalPort() {
+        return isRunning ? serverChannel.socket().getLocalPort() : -1;
+    }
+
+    public InetSocketAddress getListenAddress() {
+        return listenAddress;
+    }
+
+    /**
+     * Returns the index just past the blank line that ends the request headers, or -1 if
+     * the headers are not complete yet. Bare LF line endings are accepted too.
+     */
+    static int findEndOfHeaders(ByteBuffer buffer, int length) {
+        int lineLength = 0;
+        for (int i = 0; i < length; i++) {
+            byte b = buffer.get(i);
+            if (b == '\n') {
+                if (lineLength == 0) {
+                    return i + 1;
+                }
+                lineLength = 0;
+            } else if (b != '\r') {
+                lineLength++;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Parses the request line (e.g. "GET /status HTTP/1.1") at the start of the buffer and
+     * returns the method and the path without the query string, or null if it's malformed.
+     */
+    static String[] parseRequestLine(ByteBuffer buffer, int length) {
+        int end = 0;
+        while (end < length && buffer.get(end) != '\n') {
+            end++;
+        }
+        byte[] bytes = new byte[end];
+        for (int i = 0; i < end; i++) {
+            bytes[i] = buffer.get(i);
+        }
+        String[] parts = new String(bytes, US_ASCII).trim().split(" ");
+        if (parts.length != 3 || !parts[2].startsWith("HTTP/") || !parts[1].startsWith("/")) {
+            return null;
+        }
+        String path = parts[1];
+        int queryIndex = path.indexOf('?');
+        if (queryIndex >= 0) {
+            path = path.substring(0, queryIndex);
+        }
+        return new String[]{parts[0], path};
+    }
+
+    /**
+     * Parses the header lines that follow the request line. Names are converted to lower
+     * case; lines without a colon are skipped.
+     */
+    static Map<String, String> parseHeaders(ByteBuffer buffer, int length) {
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++) {
+            bytes[i] = buffer.get(i);
+        }
+        String[] lines = new String(bytes, US_ASCII).split("\n");
+        Map<String, String> headers = new HashMap<>();
+        for (int i = 1; i < lines.length; i++) {
+            int colonIndex = lines[i].indexOf(':');
+            if (colonIndex > 0) {
+                headers.put(
+                    lines[i].substring(0, colonIndex).trim().toLowerCase(Locale.US),
+                    lines[i].substring(colonIndex + 1).trim());
+            }
+        }
+        return headers;
+    }
+
+    static String getReasonPhrase(int statusCode) {
+        switch (statusCode) {
+            case 200:
+                return "OK";
+            case 202:
+                return "Accepted";
+            case 400:
+                return "Bad Request";
+            case 403:
+                return "Forbidden";
+            case 404:
+                return "Not Found";
+            case 405:
+                return "Method Not Allowed";
+            case 431:
+                return "Request Header Fields Too Large";
+            case 503:
+                return "Service Unavailable";
+            default:
+                return "Internal Server Error";
+        }
+    }
+
+    private void runLoop() {
+        try {
+            while (isRunning) {
+                selector.select(REQUEST_TIMEOUT);
+                Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
+                while (iterator.hasNext()) {
+                    SelectionKey key = iterator.next();
+                    iterator.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isAcceptable()) {
+                        try {
+                            accept();
+                        } catch (IOException e) {
+                            Timber.w("Could not accept a connection: %s", e.getMessage());
+                        }
+                    } else {
+                        Connection connection = (Connection) key.attachment();
+                        try {
+                            connection.onReady();
+                        } catch (IOException e) {
+                            Timber.d("Control connection failed: %s", e.getMessage());
+                            connection.close();
+                        }
+                    }
+                }
+                closeExpiredConnections();
+            }
+        } catch (IOException | ClosedSelectorException e) {
+            Timber.e(e, "Control server has failed");
+            isRunning = false;
+        } finally {
+            for (SelectionKey key : selector.keys()) {
+                if (key.attachment() instanceof Connection) {
+                    ((Connection) key.attachment()).close();
+                }
+            }
+            closeQuietly();
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel client = serverChannel.accept();
+        if (client == null) {
+            return;
+        }
+        if (connectionCount >= MAX_CONNECTIONS) {
+            client.close();
+            return;
+        }
+        try {
+            client.configureBlocking(false);
+            new Connection(client);
+        } catch (IOException e) {
+            client.close();
+            throw e;
+        }
+    }
+
+    private void closeExpiredConnections() {
+        long now = System.nanoTime();
+        for (SelectionKey key : selector.keys()) {
+            if (key.attachment() instanceof Connection) {
+                Connection connection = (Connection) key.attachment();
+                if (now - connection.startTime > REQUEST_TIMEOUT * 1000000) {
+                    connection.close();
+                }
+            }
+        }
+    }
+
+    private void closeQuietly() {
+        try {
+            if (serverChannel != null) {
+                serverChannel.close();
+            }
+            selector.close();
+        } catch (IOException e) {
+            // Nothing we can do about it
+        }
+    }
+
+    private final class Connection {
+
+        final SocketChannel channel;
+        final SelectionKey key;
+        final long startTime = System.nanoTime();
+        ByteBuffer request = ByteBuffer.allocate(MAX_REQUEST_SIZE);
+        ByteBuffer response;
+        boolean isClosed;
+
+        Connection(SocketChannel channel) throws IOException {
+            this.channel = channel;
+            this.key = channel.register(selector, SelectionKey.OP_READ, this);
+            connectionCount++;
+        }
+
+        void onReady() throws IOException {
+            if (response == null && key.isReadable()) {
+                if (channel.read(request) < 0) {
+                    close();
+                    return;
+                }
+                int length = request.position();
+                int headersLength = findEndOfHeaders(request, length);
+                if (headersLength >= 0) {
+                    respond(handleRequest(
+                        parseRequestLine(request, headersLength),
+                        parseHeaders(request, headersLength)));
+                } else if (!request.hasRemaining()) {
+                    respond(Response.error(431));
+                }
+            }
+            // Most responses fit in the socket buffer, so this is usually the only write
+            if (response != null) {
+                channel.write(response);
+                if (!response.hasRemaining()) {
+                    close();
+                } else {
+                    key.interestOps(SelectionKey.OP_WRITE);
+                }
+            }
+        }
+
+        void respond(Response newResponse) {
+            request = null;
+            response = newResponse.encode();
+        }
+
+        Response handleRequest(String[] requestLine, Map<String, String> headers) {
+            if (requestLine == null) {
+                return Response.error(400);
+            }
+            try {
+                return handler.handle(requestLine[0], requestLine[1], headers);
+            } catch (RuntimeException e) {
+                Timber.e(e, "Could not handle %s %s", requestLine[0], requestLine[1]);
+                return Response.error(500);
+            }
+        }
+
+        void close() {
+            if (isClosed) {
+                return;
+            }
+            isClosed = true;
+            connectionCount--;
+            key.cancel();
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // Already closed
+            }
+        }
+    }
+}
@@ -17,55 +17,239 @@
 
 package com.github.sryze.wirebug;
 
+import java.io.IOException;
 import java.util.Locale;
+import java.util.concurrent.TimeUnit;
 
 import timber.log.Timber;
 
 public class DebugManager {
-    private static final String ADB_TCP_PORT_PROPERTY = "service.adb.tcp.port";
-    private static final int ADB_TCP_PORT_DEFAULT = 5555;
+    private static final String ADB_TCP_PORT_PROPERTY = AdbProperties.TCP_PORT;
+    public static final int ADB_TCP_PORT_DEFAULT = 5555;
+
+    /**
+     * Port used by adbd in relay mode. Connections to it are only accepted from loopback,
+     * everyone else has to go through {@link AdbRelay} on the default port.
+     */
+    public static final int ADB_RELAY_BACKEND_PORT = 15555;
+
+    /** Steps of the batch run by {@link #applyAdbTcpPort} */
+    public static final int STEP_UPDATE_FIREWALL = 0;
+    public static final int STEP_SET_PORT = 1;
+    public static final int STEP_RESTART_ADB_DAEMON = 2;
+    public static final int STEP_WAIT_FOR_ADB_DAEMON = 3;
+
+    private static final long APPLY_TIMEOUT = 30000;
+    private static final String ADB_DAEMON_SERVICE = "adbd";
+    private static final String ADB_DAEMON_RUNNING = "running";
+    private static final long WAIT_FOR_ADB_DAEMON_TIMEOUT = 10000;
+    private static final long WAIT_FOR_ADB_DAEMON_INTERVAL = 200;
+    private static final String RESTART_ADB_DAEMON_COMMAND = "stop adbd; start adbd";
+    private static final String WAIT_FOR_ADB_DAEMON_COMMAND =
+        "i=0; while [ \"$(getprop " + AdbProperties.ADBD_STATE + ")\" != running ]; do"
+            + " [ $i -ge 10 ] && exit 1; i=$((i + 1)); sleep 1; done";
+
+    // adbd can't be told which address to listen on, so anything that isn't coming from
+    // loopback is rejected by the firewall instead
+    private static final String LOOPBACK_ONLY_RULE = String.format(Locale.US,
+        "INPUT -p tcp --dport %d ! -i lo -j REJECT", ADB_RELAY_BACKEND_PORT);
+    private static final String ADD_LOOPBACK_ONLY_RULE_COMMAND =
+        "for t in iptables ip6tables; do"
+            + " $t -C " + LOOPBACK_ONLY_RULE + " 2>/dev/null"
+            + " || $t -I " + LOOPBACK_ONLY_RULE + " || exit 1; done";
+    private static final String REMOVE_LOOPBACK_ONLY_RULE_COMMAND =
+        "for t in iptables ip6tables; do"
+            + " while $t -D " + LOOPBACK_ONLY_RULE + " 2>/dev/null; do :; done; done; true";
 
     public static boolean isTcpDebuggingEnabled() {
         return getAdbTcpPort() > 0;
     }
 
-    public static void setTcpDebuggingEnabled(boolean isEnabled) {
-        if (setAdbTcpPort(isEnabled ? ADB_TCP_PORT_DEFAULT : 0)) {
+    public static boolean setTcpDebuggingEnabled(boolean isEnabled) {
+        if (applyAdbTcpPort(isEnabled ? ADB_TCP_PORT_DEFAULT : 0, null)) {
             Timber.i("Debugging over TCP is enabled: %s", isEnabled ? "YES" : "NO");
-            Timber.i("Restarting ADB daemon (this will kill your debugging session)");
-            restartAdbDaemon();
+            return true;
         }
+        return false;
     }
 
-    public static int getAdbTcpPort() {
+    /**
+     * Sets the TCP port and restarts adbd, then waits for adbd to be running again. If adbd
+     * doesn't come back the previous port is restored.
+     *
+     * This goes through the root helper when it's available, otherwise everything is done
+     * with a single root invocation. The relay backend port is only reachable from
+     * loopback; for any other port the firewall rule is removed.
+     */
+    public static boolean applyAdbTcpPort(int port, RootBatch.ProgressListener listener) {
+        int previousPort = getAdbTcpPort();
+        Timber.i("Restarting ADB daemon (this will kill your debugging session)");
+        long startTime = System.nanoTime();
         try {
-            String output = Shell.getShell().exec("getprop " + ADB_TCP_PORT_PROPERTY);
-            return Integer.parseInt(output.trim());
+            // The helper doesn't do firewall rules, so relay mode is left to the shell
+            RootHelperClient helper =
+                port != ADB_RELAY_BACKEND_PORT && previousPort != ADB_RELAY_BACKEND_PORT
+                    ? RootHelperLauncher.getLauncher().getClient()
+                    : null;
+            boolean isApplied;
+            if (helper != null) {
+                try {
+                    isApplied = applyWithRootHelper(helper, port, previousPort, listener);
+                } catch (IOException e) {
+                    Timber.w("Root helper failed, using the shell: %s", e.getMessage());
+                    isApplied = applyWithShell(port, previousPort, listener);
+                }
+            } else {
+                isApplied = applyWithShell(port, previousPort, listener);
+            }
+            if (isApplied) {
+                return true;
+            }
+        } finally {
+            Metrics.histogram(Metrics.DEBUG_APPLY_PORT).recordSince(startTime);
+        }
+        Metrics.counter(Metrics.DEBUG_APPLY_PORT_FAILURES).increment();
+        RootCapabilityCache.getCache().invalidate();
+        return false;
+    }
+
+    private static boolean applyWithShell(
+            int port,
+            int previousPort,
+            RootBatch.ProgressListener listener) {
+        RootBatch batch = new RootBatch()
+            .add(getUpdateFirewallCommand(port), getUpdateFirewallCommand(previousPort))
+            .add(getSetAdbTcpPortCommand(port),
+                getSetAdbTcpPortCommand(previousPort) + "; " + RESTART_ADB_DAEMON_COMMAND)
+            .add(RESTART_ADB_DAEMON_COMMAND)
+            .add(WAIT_FOR_ADB_DAEMON_COMMAND);
+        try {
+            RootBatch.Result result =
+                batch.execute(Shell.getShell(), APPLY_TIMEOUT, listener);
+            if (result.isSuccess()) {
+                return true;
+            }
+            int failedStep = result.getFailedStep();
+            Timber.e("Error setting TCP port (%s): step %d exited with status %d: %s",
+                port,
+                failedStep,
+                result.getExitStatus(failedStep),
+                result.getOutput(failedStep).trim());
+            if (result.isRolledBack()) {
+                Timber.i("Restored previous TCP port (%s)", previousPort);
+            }
         } catch (ShellException e) {
-            Timber.e("Error getting current TCP port: %s", e.getMessage());
-        } catch (NumberFormatException e) {
-            // OK
+            Timber.e("Error setting TCP port (%s): %s", port, e.getMessage());
+        }
+        return false;
+    }
+
+    /**
+     * Does the same steps as the shell batch (except for the firewall), each of them with a
+     * single call to the helper. Throws if the helper fails, in which case the caller
+     * should start over with the shell.
+     */
+    private static boolean applyWithRootHelper(
+            RootHelperClient helper,
+            int port,
+            int previousPort,
+            RootBatch.ProgressListener listener) throws IOException {
+        notifyStepStarted(listener, STEP_SET_PORT);
+        helper.setProperty(ADB_TCP_PORT_PROPERTY, formatPort(port));
+        notifyStepStarted(listener, STEP_RESTART_ADB_DAEMON);
+        helper.restartService(ADB_DAEMON_SERVICE);
+        notifyStepStarted(listener, STEP_WAIT_FOR_ADB_DAEMON);
+        if (waitForAdbDaemon(helper)) {
+            return true;
+        }
+        Timber.e("Error setting TCP port (%s): ADB daemon is not running", port);
+        helper.setProperty(ADB_TCP_PORT_PROPERTY, formatPort(previousPort));
+        helper.restartService(ADB_DAEMON_SERVICE);
+        Timber.i("Restored previous TCP port (%s)", previousPort);
+        return false;
+    }
+
+    private static boolean waitForAdbDaemon(RootHelperClient helper) throws IOException {
+        long deadline = System.nanoTime()
+            + TimeUnit.MILLISECONDS.toNanos(WAIT_FOR_ADB_DAEMON_TIMEOUT);
+        while (!ADB_DAEMON_RUNNING.equals(helper.getProperty(AdbProperties.ADBD_STATE))) {
+            if (System.nanoTime() >= deadline) {
+                return false;
+            }
+            try {
+                Thread.sleep(WAIT_FOR_ADB_DAEMON_INTERVAL);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
         }
-        return 0;
+        return true;
+    }
+
+    private static void notifyStepStarted(RootBatch.ProgressListener listener, int step) {
+        if (listener != null) {
+            listener.onStepStarted(step);
+        }
+    }
+
+    public static int getAdbTcpPort() {
+        return PropertyReader.getReader().getInt(ADB_TCP_PORT_PROPERTY, 0);
+    }
+
+    public static AdbProperties getAdbProperties() {
+        return PropertyReader.getReader().getAdbProperties();
+    }
+
+    private static String getSetAdbTcpPortCommand(int port) {
+        String portArg = port > 0 ? String.format(Locale.getDefault(), "%d", port) : "\"\"";
+        return String.format("setprop %s %s", ADB_TCP_PORT_PROPERTY, portArg);
+    }
+
+    private static String formatPort(int port) {
+        return port > 0 ? Integer.toString(port) : "";
+    }
+
+    private static String getUpdateFirewallCommand(int port) {
+        return port == ADB_RELAY_BACKEND_PORT
+            ? ADD_LOOPBACK_ONLY_RULE_COMMAND
+            : REMOVE_LOOPBACK_ONLY_RULE_COMMAND;
     }
 
     public static boolean setAdbTcpPort(int port) {
+        RootHelperClient helper = RootHelperLauncher.getLauncher().getClient();
+        if (helper != null) {
+            try {
+                helper.setProperty(ADB_TCP_PORT_PROPERTY, formatPort(port));
+                return true;
+            } catch (IOException e) {
+                Timber.w("Root helper failed, using the shell: %s", e.getMessage());
+            }
+        }
         try {
-            String portArg = port > 0 ? String.format(Locale.getDefault(), "%d", port) : "\"\"";
-            String command = String.format("setprop %s %s", ADB_TCP_PORT_PROPERTY, portArg);
-            Shell.getShell().execAsRoot(command);
+            Shell.getShell().execAsRoot(getSetAdbTcpPortCommand(port));
             return true;
         } catch (ShellException e) {
             Timber.e("Error setting TCP port (%s): %s", port, e.getMessage());
+            RootCapabilityCache.getCache().invalidate();
             return false;
         }
     }
 
     public static void restartAdbDaemon() {
+        RootHelperClient helper = RootHelperLauncher.getLauncher().getClient();
+        if (helper != null) {
+            try {
+                helper.restartService(ADB_DAEMON_SERVICE);
+                return;
+            } catch (IOException e) {
+                Timber.w("Root helper failed, using the shell: %s", e.getMessage());
+            }
+        }
         try {
-            Shell.getShell().execAsRoot("stop adbd; start adbd");
+            Shell.getShell().execAsRoot(RESTART_ADB_DAEMON_COMMAND);
         } catch (ShellException e) {
             Timber.e("Error restarting ADB daemon: %s", e.getMessage());
+            RootCapabilityCache.getCache().invalidate();
         }
     }
 }
@@ -0,0 +1,234 @@
+/*
+ * This file is part of Wirebug.
+ *
+ * Wirebug is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Wirebug is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Wirebug.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.sryze.wirebug;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Immutable snapshot of everything that the notification, the wake lock and the UI depend
+ * on. New snapshots are published through {@link DebugStatusStore}.
+ */
+public final class DebugStatus {
+
+    public static final int FIELD_PORT = 1;
+    public static final int FIELD_ENABLED = 1 << 1;
+    public static final int FIELD_CONNECTIVITY = 1 << 2;
+    public static final int FIELD_DISABLE_ON_LOCK = 1 << 3;
+    public static final int FIELD_STAY_AWAKE = 1 << 4;
+    public static final int FIELD_RELAY_MODE = 1 << 5;
+    public static final int FIELD_CONNECTED_HOSTS = 1 << 6;
+    public static final int FIELD_IDLE_TIMEOUT = 1 << 7;
+    public static final int FIELD_CONTROL_PORT = 1 << 8;
+    public static final int ALL_FIELDS = (1 << 9) - 1;
+
+    private final int port;
+    private final ConnectivitySnapshot connectivity;
+    private final boolean isDisableOnLock;
+    private final boolean isStayAwake;
+    private final boolean isRelayMode;
+    private final long idleTimeout;
+    private final int controlPort;
+    private final List<String> connectedHosts;
+
+    DebugStatus(
+            int port,
+            ConnectivitySnapshot connectivity,
+            boolean isDisableOnLock,
+            boolean isStayAwake,
+            boolean isRelayMode,
+            long idleTimeout,
+            int controlPort,
+            List<String> connectedHosts) {
+        this.port = port;
+        this.connectivity = connectivity;
+        this.isDisableOnLock = isDisableOnLock;
+        this.isStayAwake = isStayAwake;
+        this.isRelayMode = isRelayMode;
+        this.idleTimeout = idleTimeout;
+        this.controlPort = controlPort;
+        this.connectedHosts = connectedHosts;
+    }
+
+    /**
+     * Returns the port adbd listens on, or 0 if debugging over TCP is disabled.
+     */
+    public int getPort() {
+        return port;
+    }
+
+    public boolean isEnabled() {
+        return port > 0;
+    }
+
+    public ConnectivitySnapshot getConnectivity() {
+        return connectivity;
+    }
+
+    /**
+     * Returns the value of the disable_on_lock preference.
+     */
+    public boolean isDisableOnLock() {
+        return isDisableOnLock;
+    }
+
+    /**
+     * Returns the value of the stay_awake preference.
+     */
+    public boolean isStayAwake() {
+        return isStayAwake;
+    }
+
+    /**
+     * Returns the value of the relay_mode preference.
+     */
+    public boolean isRelayMode() {
+        return isRelayMode;
+    }
+
+    /**
+     * Returns the value of the idle_timeout preference in milliseconds, 0 if debugging
+     * should never be disabled for being idle.
+     */
+    public long getIdleTimeout() {
+        return idleTimeout;
+    }
+
+    /**
+     * Returns the port of the control server, or 0 if the control_server preference is
+     * off.
+     */
+    public int getControlPort() {
+        return controlPort;
+    }
+
+    /**
+     * Returns the addresses of the hosts that are connected to adbd, or an empty list if
+     * nobody is connected (or if it's not possible to find out).
+     */
+    public List<String> getConnectedHosts() {
+        return connectedHosts;
+    }
+
+    DebugStatus withPort(int port) {
+        // Connections to the old port are not interesting anymore
+        List<String> newConnectedHosts = port == this.port
+            ? connectedHosts
+            : Collections.<String>emptyList();
+        return new DebugStatus(
+            port,
+            connectivity,
+            isDisableOnLock,
+            isStayAwake,
+            isRelayMode,
+            idleTimeout,
+            controlPort,
+            newConnectedHosts);
+    }
+
+    DebugStatus withConnectivity(ConnectivitySnapshot connectivity) {
+        return new DebugStatus(
+            port,
+            connectivity,
+            isDisableOnLock,
+            isStayAwake,
+            isRelayMode,
+            idleTimeout,
+            controlPort,
+            connectedHosts);
+    }
+
+    DebugStatus withPreferences(
+            boolean isDisableOnLock,
+            boolean isStayAwake,
+            boolean isRelayMode,
+            long idleTimeout,
+            int controlPort) {
+        return new DebugStatus(
+            port,
+            connectivity,
+            isDisableOnLock,
+            isStayAwake,
+            isRelayMode,
+            idleTimeout,
+            controlPort,
+            connectedHosts);
+    }
+
+    DebugStatus withConnectedHosts(List<String> connectedHosts) {
+        return new DebugStatus(
+            port,
+            connectivity,
+            isDisableOnLock,
+            isStayAwake,
+            isRelayMode,
+            idleTimeout,
+            controlPort,
+            connectedHosts);
+    }
+
+    /**
+     * Returns a bit mask of the FIELD_* constants for the fields that differ between
+     * this snapshot and the other one.
+     */
+    public int diff(DebugStatus other) {
+        int changes = 0;
+        if (port != other.port) {
+            changes |= FIELD_PORT;
+        }
+        if (isEnabled() != other.isEnabled()) {
+            changes |= FIELD_ENABLED;
+        }
+        if (!connectivity.equals(other.connectivity)) {
+            changes |= FIELD_CONNECTIVITY;
+        }
+        if (isDisableOnLock != other.isDisableOnLock) {
+            changes |= FIELD_DISABLE_ON_LOCK;
+        }
+        if (isStayAwake != other.isStayAwake) {
+            changes |= FIELD_STAY_AWAKE;
+        }
+        if (isRelayMode != other.isRelayMode) {
+            changes |= FIELD_RELAY_MODE;
+        }
+        if (idleTimeout != other.idleTimeout) {
+            changes |= FIELD_IDLE_TIMEOUT;
+        }
+        if (controlPort != other.controlPort) {
+            changes |= FIELD_CONTROL_PORT;
+        }
+        if (!connectedHosts.equals(other.connectedHosts)) {
+            changes |= FIELD_CONNECTED_HOSTS;
+        }
+        return changes;
+    }
+
+    @Override
+    public String toString() {
+        return "DebugStatus{"
+            + "port=" + port
+            + ", connectivity=" + connectivity
+            + ", isDisableOnLock=" + isDisableOnLock
+            + ", isStayAwake=" + isStayAwake
+            + ", isRelayMode=" + isRelayMode
+            + ", idleTimeout=" + idleTimeout
+            + ", controlPort=" + controlPort
+            + ", connectedHosts=" + connectedHosts
+            + "}";
+    }
+}
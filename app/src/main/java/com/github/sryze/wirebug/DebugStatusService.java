@@ -17,25 +17,34 @@
 
 package com.github.sryze.wirebug;
 
-import android.app.AlarmManager;
 import android.app.KeyguardManager;
 import android.app.Notification;
 import android.app.NotificationChannel;
 import android.app.NotificationManager;
 import android.app.PendingIntent;
 import android.app.Service;
+import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
-import android.content.SharedPreferences;
-import android.net.ConnectivityManager;
-import android.net.wifi.WifiManager;
+import android.content.IntentFilter;
+import android.net.TrafficStats;
+import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.IBinder;
 import android.os.PowerManager;
 import android.os.SystemClock;
-import android.preference.PreferenceManager;
+import android.text.TextUtils;
 import androidx.annotation.Nullable;
 import androidx.core.app.NotificationCompat;
 
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.List;
+
 import timber.log.Timber;
 
 public class DebugStatusService extends Service {
@@ -50,21 +59,52 @@ public class DebugStatusService extends Service {
         "com.github.sryze.wirebug.debugstatus.extra.IS_ENABLED";
 
     private static final String TAG = "DebugStatusService";
+    private static final String LOOPBACK_ADDRESS = "127.0.0.1";
     private static final int STATUS_NOTIFICATION_ID = 1;
     private static final String STATUS_NOTIFICATION_CHANNEL_ID = "wirebug_debug_status_channel";
-    private static final long STATUS_UPDATE_INTERVAL = 5000;
-
-    private boolean isCurrentlyEnabled;
-    private PowerManager.WakeLock wakeLock;
+    private static final long ACTIVITY_SAMPLE_INTERVAL = 2000;
+    // Going through su is much more expensive than reading a file, so do it less often
+    private static final long ROOT_ACTIVITY_SAMPLE_INTERVAL = 10000;
+    private static final String ROOT_CONNECTION_SCAN_COMMAND =
+        "cat /proc/net/tcp /proc/net/tcp6 2>/dev/null; true";
+    private static final long IDLE_CHECK_INTERVAL = 60 * 1000;
+    // How often the keyguard is checked while disable_on_lock is on (as it used to be polled)
+    private static final long LOCK_CHECK_INTERVAL = 5000;
+    // adbd drops privileges to the shell user (AID_SHELL)
+    private static final int ADB_UID = 2000;
+
+    private HandlerThread workerThread;
+    private Handler workerHandler;
+    private StatusUpdateScheduler updateScheduler;
+    private BroadcastReceiver screenStateReceiver;
+    private DebugStatusStore.Listener statusListener;
+    private volatile AdbRelay relay;
+    private volatile ControlServer controlServer;
+    private WakeLockPolicy wakeLockPolicy;
+
+    // Only touched on the worker thread
+    private TcpConnectionMonitor connectionMonitor;
+    private final int[] monitoredPorts = new int[2];
+    private boolean canReadProcNet = true;
+    private boolean canSeeActivity;
+    private final Runnable activitySampleRunnable = new Runnable() {
+        @Override
+        public void run() {
+            sampleActivity();
+        }
+    };
+    private final IdleTracker idleTracker = new IdleTracker();
+    private final Runnable idleCheckRunnable = new Runnable() {
+        @Override
+        public void run() {
+            checkIdle();
+        }
+    };
 
-    private SharedPreferences preferences;
-    private AlarmManager alarmManager;
     private NotificationManager notificationManager;
     private NotificationCompat.Builder notificationBuilder;
     private boolean isNotificationActive;
     private KeyguardManager keyguardManager;
-    private ConnectivityManager connectivityManager;
-    private WifiManager wifiManager;
 
     @Override
     public void onCreate() {
@@ -72,23 +112,8 @@ public class DebugStatusService extends Service {
 
         Timber.d("Service is created");
 
-        preferences = PreferenceManager.getDefaultSharedPreferences(this);
-
-        PowerManager powerManager = (PowerManager) getSystemService(POWER_SERVICE);
-        if (powerManager == null) {
-            Timber.e("Not able to access PowerManager");
-            return;
-        }
-
-        wakeLock = powerManager.newWakeLock(
-            PowerManager.SCREEN_DIM_WAKE_LOCK | PowerManager.ON_AFTER_RELEASE,
-            "wirebug:stay_awake_while_debugging");
-
-        alarmManager = (AlarmManager) getSystemService(ALARM_SERVICE);
         notificationManager = (NotificationManager) getSystemService(NOTIFICATION_SERVICE);
         keyguardManager = (KeyguardManager) getSystemService(Context.KEYGUARD_SERVICE);
-        connectivityManager = (ConnectivityManager) getSystemService(Context.CONNECTIVITY_SERVICE);
-        wifiManager = (WifiManager) getApplicationContext().getSystemService(WIFI_SERVICE);
         notificationBuilder = createNotificationBuilder();
 
         if (android.os.Build.VERSION.SDK_INT >= android.os.Build.VERSION_CODES.O) {
@@ -97,6 +122,93 @@ public class DebugStatusService extends Service {
                 "Debugging Status", NotificationManager.IMPORTANCE_DEFAULT);
             notificationManager.createNotificationChannel(channel);
         }
+
+        workerThread = new HandlerThread("DebugStatusService");
+        workerThread.start();
+        workerHandler = new Handler(workerThread.getLooper());
+
+        PowerManager powerManager = (PowerManager) getSystemService(POWER_SERVICE);
+        if (powerManager != null) {
+            wakeLockPolicy = new WakeLockPolicy(powerManager, workerHandler);
+        } else {
+            Timber.e("Not able to access PowerManager");
+        }
+
+        updateScheduler = new StatusUpdateScheduler(workerHandler, new Runnable() {
+            @Override
+            public void run() {
+                long startTime = System.nanoTime();
+                boolean isChanged = updateStatus();
+                Metrics.histogram(Metrics.STATUS_UPDATE).recordSince(startTime);
+                updateScheduler.onUpdateFinished(isChanged);
+            }
+        });
+        registerEventListeners();
+
+        // Catch up with whatever was published before the service was started
+        DebugStatus status = DebugStatusStore.getStore().getStatus();
+        updateNotification(status);
+        updateWakeLock(status);
+        updateRelay(status);
+        updateControlServer(status);
+        restartActivitySampling();
+        restartIdleCheck();
+    }
+
+    /**
+     * Prints metrics, e.g. when running:
+     * adb shell dumpsys activity service com.github.sryze.wirebug/.DebugStatusService
+     */
+    @Override
+    protected void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+        DebugStatus status = DebugStatusStore.getStore().getStatus();
+        writer.printf("Debugging over TCP enabled: %s (port %d)%n",
+            status.isEnabled() ? "yes" : "no", status.getPort());
+        writer.printf("Connected hosts: %s%n", status.getConnectedHosts());
+        writer.printf("Status update interval: %d ms%n", updateScheduler.getInterval());
+        BootRestore bootRestore = BootRestore.getBootRestore();
+        writer.printf("Port restored on boot: %d (ready %d ms after the last boot)%n",
+            bootRestore.getDesiredPort(), bootRestore.getBootToReadyMillis());
+        if (wakeLockPolicy != null) {
+            wakeLockPolicy.dump(writer);
+        }
+        AdbRelay currentRelay = relay;
+        if (currentRelay != null) {
+            currentRelay.dump(writer);
+        }
+        ControlServer currentControlServer = controlServer;
+        if (currentControlServer != null) {
+            writer.printf("Control server: %s%n", currentControlServer.getListenAddress());
+        }
+        Metrics.dump(writer);
+    }
+
+    private void registerEventListeners() {
+        screenStateReceiver = new BroadcastReceiver() {
+            @Override
+            public void onReceive(Context context, Intent intent) {
+                Timber.d("Received %s", intent.getAction());
+                updateScheduler.requestUpdate();
+            }
+        };
+        IntentFilter screenStateFilter = new IntentFilter();
+        screenStateFilter.addAction(Intent.ACTION_SCREEN_OFF);
+        screenStateFilter.addAction(Intent.ACTION_SCREEN_ON);
+        screenStateFilter.addAction(Intent.ACTION_USER_PRESENT);
+        registerReceiver(screenStateReceiver, screenStateFilter);
+
+        statusListener = new DebugStatusStore.Listener() {
+            @Override
+            public void onStatusChanged(DebugStatus status, int changes) {
+                onDebugStatusChanged(status, changes);
+            }
+        };
+        DebugStatusStore.getStore().addListener(statusListener);
+    }
+
+    private void unregisterEventListeners() {
+        unregisterReceiver(screenStateReceiver);
+        DebugStatusStore.getStore().removeListener(statusListener);
     }
 
     private NotificationCompat.Builder createNotificationBuilder() {
@@ -145,27 +257,12 @@ public class DebugStatusService extends Service {
 
     @Override
     public int onStartCommand(Intent intent, int flags, int startId) {
-        if (intent != null && intent.getAction() != null) {
-            if (intent.getAction().equals(ACTION_UPDATE_STATUS)) {
-                updateStatus();
-                Intent updateStatusIntent =
-                    new Intent(DebugStatusService.this, DebugStatusService.class);
-                updateStatusIntent.setAction(ACTION_UPDATE_STATUS);
-                PendingIntent alarmPendingIntent = PendingIntent.getService(
-                    DebugStatusService.this,
-                    0,
-                    updateStatusIntent,
-                    PendingIntent.FLAG_CANCEL_CURRENT);
-                alarmManager.cancel(alarmPendingIntent);
-                alarmManager.set(
-                    AlarmManager.ELAPSED_REALTIME,
-                    SystemClock.elapsedRealtime() + STATUS_UPDATE_INTERVAL,
-                    alarmPendingIntent);
-            } else if (intent.getAction().equals(ACTION_STOP)) {
-                DebugManager.setTcpDebuggingEnabled(false);
-                updateStatus();
-            }
+        if (intent != null && ACTION_STOP.equals(intent.getAction())) {
+            DebugToggleController.getController().setEnabled(false);
         }
+        // Anything that starts the service (including ACTION_UPDATE_STATUS sent after a
+        // toggle) means the status is likely to change soon, so poll fast for a while
+        updateScheduler.requestUpdate();
         return START_STICKY;
     }
 
@@ -173,41 +270,124 @@ public class DebugStatusService extends Service {
     public void onDestroy() {
         super.onDestroy();
 
-        if (wakeLock != null && wakeLock.isHeld()) {
-            Timber.i("Releasing the wake lock");
-            wakeLock.release();
+        unregisterEventListeners();
+        updateScheduler.stop();
+        workerHandler.removeCallbacks(activitySampleRunnable);
+        workerHandler.removeCallbacks(idleCheckRunnable);
+        // quit() drops pending messages, so it has to come after the relay is stopped
+        workerHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                stopRelay();
+                stopControlServer();
+                if (connectionMonitor != null) {
+                    connectionMonitor.close();
+                }
+                workerThread.quit();
+            }
+        });
+
+        if (wakeLockPolicy != null) {
+            wakeLockPolicy.release();
         }
 
         Timber.d("Service is destroyed");
     }
 
-    private void updateStatus() {
+    /**
+     * Polls the port and publishes it to the store, which calls us back if anything has
+     * changed. Runs on the worker thread. Returns true if the state has changed since the
+     * previous update.
+     */
+    private boolean updateStatus() {
         Timber.i("Performing a status update...");
 
-        boolean isEnabled = DebugManager.isTcpDebuggingEnabled();
-        if (isEnabled != isCurrentlyEnabled) {
-            Timber.i("Status has changed to %s", isEnabled ? "enabled" : "disabled");
-            sendStatusChangedBroadcast(isEnabled);
-        } else {
+        DebugStatusStore store = DebugStatusStore.getStore();
+        int changes = store.setPort(DebugManager.getAdbTcpPort());
+        if (changes == 0) {
             Timber.i("Status is unchanged");
         }
 
-        if (keyguardManager.inKeyguardRestrictedInputMode()
-            && preferences.getBoolean("disable_on_lock", false)) {
+        // Only ask the keyguard when it matters
+        DebugStatus status = store.getStatus();
+        boolean isWatchingLock = status.isEnabled() && status.isDisableOnLock();
+        if (isWatchingLock && keyguardManager.inKeyguardRestrictedInputMode()) {
             Timber.i("Disabling debugging because disable_on_lock is true");
-            DebugManager.setTcpDebuggingEnabled(false);
+            disableDebugging();
+        }
+
+        // The keyguard usually engages some time after the screen goes off and there is no
+        // broadcast for that, so keep polling often enough to notice it
+        updateScheduler.setMaxInterval(isWatchingLock
+            ? LOCK_CHECK_INTERVAL
+            : StatusUpdateScheduler.MAX_INTERVAL);
+
+        return changes != 0;
+    }
+
+    /**
+     * Disables debugging on behalf of the user, who has asked for it through the
+     * preferences, so it also stays disabled after a reboot. Goes through the controller
+     * like any other toggle, so it can't run at the same time as one; the store is updated
+     * once it's done.
+     */
+    private void disableDebugging() {
+        DebugToggleController.getController().setEnabled(false);
+    }
+
+    /**
+     * Redoes only the work that depends on the fields that have changed. Runs on the main
+     * thread.
+     */
+    private void onDebugStatusChanged(DebugStatus status, int changes) {
+        if ((changes & (DebugStatus.FIELD_ENABLED | DebugStatus.FIELD_PORT
+                | DebugStatus.FIELD_CONNECTIVITY | DebugStatus.FIELD_CONNECTED_HOSTS)) != 0) {
+            updateNotification(status);
+        }
+        if ((changes & (DebugStatus.FIELD_ENABLED | DebugStatus.FIELD_STAY_AWAKE)) != 0) {
+            updateWakeLock(status);
+        }
+        if ((changes & DebugStatus.FIELD_ENABLED) != 0) {
+            Timber.i("Status has changed to %s", status.isEnabled() ? "enabled" : "disabled");
+            sendStatusChangedBroadcast(status.isEnabled());
         }
+        if ((changes & DebugStatus.FIELD_RELAY_MODE) != 0 && status.isEnabled()) {
+            updateRelayMode();
+        }
+        if ((changes & (DebugStatus.FIELD_PORT | DebugStatus.FIELD_CONNECTIVITY)) != 0) {
+            updateRelay(status);
+        }
+        if ((changes & DebugStatus.FIELD_PORT) != 0) {
+            restartActivitySampling();
+        }
+        if ((changes & (DebugStatus.FIELD_PORT | DebugStatus.FIELD_IDLE_TIMEOUT)) != 0) {
+            restartIdleCheck();
+        }
+        if ((changes & (DebugStatus.FIELD_CONTROL_PORT | DebugStatus.FIELD_CONNECTIVITY)) != 0) {
+            updateControlServer(status);
+        }
+        if ((changes & DebugStatus.FIELD_DISABLE_ON_LOCK) != 0) {
+            updateScheduler.requestUpdate();
+        }
+    }
 
-        if (isEnabled) {
-            boolean isConnectedToWifi = NetworkUtils.isConnectedToWifi(connectivityManager);
-            Timber.d("Connected to Wi-Fi: %s", isConnectedToWifi ? "yes" : "no");
+    private void updateNotification(DebugStatus status) {
+        if (status.isEnabled()) {
+            ConnectivitySnapshot connectivity = status.getConnectivity();
+            Timber.d("Connected to Wi-Fi: %s", connectivity.isConnectedToWifi() ? "yes" : "no");
 
-            if (isConnectedToWifi) {
+            List<String> connectedHosts = status.getConnectedHosts();
+            if (!connectedHosts.isEmpty()) {
+                notificationBuilder.setContentText(
+                    String.format(
+                        getString(R.string.notification_text_connected),
+                        TextUtils.join(", ", connectedHosts)));
+            } else if (connectivity.isConnectedToWifi()) {
                 notificationBuilder.setContentText(
                     String.format(
                         getString(R.string.notification_text),
-                        NetworkUtils.getWifiIpAddressString(wifiManager),
-                        NetworkUtils.getWifiNetworkName(wifiManager)));
+                        connectivity.getPreferredAddress(),
+                        connectivity.getSsid()));
             } else {
                 notificationBuilder.setContentText(
                     getString(R.string.notification_text_not_connected));
@@ -224,20 +404,312 @@ public class DebugStatusService extends Service {
                 isNotificationActive = false;
             }
         }
+    }
+
+    private void updateWakeLock(DebugStatus status) {
+        if (wakeLockPolicy != null) {
+            wakeLockPolicy.setStatus(status.isEnabled(), status.isStayAwake());
+        }
+    }
+
+    /**
+     * Moves adbd to or from the relay backend port after relay_mode has been changed while
+     * debugging is enabled. The relay follows once the port has changed.
+     */
+    private void updateRelayMode() {
+        DebugToggleController controller = DebugToggleController.getController();
+        // Leave it alone if debugging is being disabled anyway
+        if (controller.isTargetEnabled() || !controller.isEnabled()) {
+            Timber.i("Relay mode has changed, moving adbd");
+            controller.setEnabled(true);
+        }
+    }
+
+    /**
+     * Runs the relay while adbd is on the relay backend port, listening on the Wi-Fi
+     * address. It's moved whenever the address changes.
+     */
+    private void updateRelay(DebugStatus status) {
+        InetAddress address = status.getConnectivity().getPreferredInetAddress();
+        final InetSocketAddress listenAddress =
+            status.getPort() == DebugManager.ADB_RELAY_BACKEND_PORT && address != null
+                ? new InetSocketAddress(address, DebugManager.ADB_TCP_PORT_DEFAULT)
+                : null;
+        workerHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (relay != null && relay.isRunning()
+                    && relay.getListenAddress().equals(listenAddress)) {
+                    return;
+                }
+                stopRelay();
+                if (listenAddress != null) {
+                    startRelay(listenAddress);
+                }
+            }
+        });
+    }
+
+    private void startRelay(InetSocketAddress listenAddress) {
+        AdbRelay newRelay = new AdbRelay(
+            listenAddress,
+            new InetSocketAddress(LOOPBACK_ADDRESS, DebugManager.ADB_RELAY_BACKEND_PORT),
+            AdbRelay.DEFAULT_MAX_CONNECTIONS);
+        try {
+            newRelay.start();
+            relay = newRelay;
+        } catch (IOException e) {
+            Timber.e("Could not start relay on %s: %s", listenAddress, e.getMessage());
+        }
+    }
 
-        if (isEnabled && preferences.getBoolean("stay_awake", false)) {
-            if (wakeLock != null && !wakeLock.isHeld()) {
-                Timber.i("Acquiring a wake lock because stay_awake is true. Lock will expire after 1 day.");
-                wakeLock.acquire(24 * 60 * 60 * 1000);
+    private void stopRelay() {
+        if (relay != null) {
+            relay.stop();
+            relay = null;
+        }
+    }
+
+    /**
+     * Runs the control server while the control_server preference is on, listening only on
+     * the Wi-Fi address (it can enable adb, so it must not be reachable over cellular or a
+     * VPN). It's moved whenever the address changes, just like the relay.
+     */
+    private void updateControlServer(DebugStatus status) {
+        InetAddress address = status.getConnectivity().getPreferredInetAddress();
+        final InetSocketAddress listenAddress =
+            status.getControlPort() > 0 && address != null
+                ? new InetSocketAddress(address, status.getControlPort())
+                : null;
+        workerHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (controlServer != null && controlServer.isRunning()
+                    && controlServer.getListenAddress().equals(listenAddress)) {
+                    return;
+                }
+                stopControlServer();
+                if (listenAddress != null) {
+                    startControlServer(listenAddress);
+                }
             }
-        } else {
-            if (wakeLock != null && wakeLock.isHeld()) {
-                Timber.i("Releasing the wake lock");
-                wakeLock.release();
+        });
+    }
+
+    private void startControlServer(InetSocketAddress listenAddress) {
+        ControlServer newControlServer =
+            new ControlServer(listenAddress, new ControlEndpoint());
+        try {
+            newControlServer.start();
+            controlServer = newControlServer;
+        } catch (IOException e) {
+            Timber.e("Could not start control server on %s: %s",
+                listenAddress, e.getMessage());
+        }
+    }
+
+    private void stopControlServer() {
+        if (controlServer != null) {
+            controlServer.stop();
+            controlServer = null;
+        }
+    }
+
+    /**
+     * Samples adbd's activity every few seconds while it's listening on a port. Samples
+     * are (re)scheduled on the worker thread, so there can't be two of them going.
+     */
+    private void restartActivitySampling() {
+        workerHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                workerHandler.removeCallbacks(activitySampleRunnable);
+                sampleActivity();
+            }
+        });
+    }
+
+    /**
+     * Runs on the worker thread. Looks for connected hosts and reads the traffic counters,
+     * then tells the idle tracker and the wake lock policy whether adbd is being used.
+     */
+    private void sampleActivity() {
+        DebugStatus status = DebugStatusStore.getStore().getStatus();
+        if (!status.isEnabled()) {
+            return;
+        }
+
+        boolean canSeeConnections = scanConnections(status);
+        long trafficBytes = getAdbTrafficBytes(status);
+        boolean couldSeeActivity = canSeeActivity;
+        canSeeActivity = canSeeConnections || trafficBytes != IdleTracker.UNKNOWN;
+        if (canSeeActivity && !couldSeeActivity) {
+            // Whatever happened while we were blind doesn't count as idle time
+            idleTracker.reset(SystemClock.elapsedRealtime());
+        }
+        if (!canSeeActivity) {
+            // Root may not have been probed yet, so keep looking, but not as often
+            Timber.i("Not able to tell whether adbd is being used");
+            workerHandler.postDelayed(activitySampleRunnable, ROOT_ACTIVITY_SAMPLE_INTERVAL);
+            return;
+        }
+
+        boolean isActive = idleTracker.onSample(
+            SystemClock.elapsedRealtime(),
+            canSeeConnections && !connectionMonitor.getHosts().isEmpty(),
+            trafficBytes);
+        if (isActive && wakeLockPolicy != null) {
+            wakeLockPolicy.onActivity();
+        }
+
+        workerHandler.postDelayed(activitySampleRunnable,
+            canReadProcNet ? ACTIVITY_SAMPLE_INTERVAL : ROOT_ACTIVITY_SAMPLE_INTERVAL);
+    }
+
+    /**
+     * Publishes the hosts connected to adbd. Newer versions of Android don't let apps read
+     * /proc/net, in which case the files are read as root (if possible). Returns false if
+     * there's no way to see the connections.
+     */
+    private boolean scanConnections(DebugStatus status) {
+        // In relay mode clients connect to the relay, while adbd only sees the relay itself
+        int port = status.getPort();
+        monitoredPorts[0] = port;
+        monitoredPorts[1] = port == DebugManager.ADB_RELAY_BACKEND_PORT
+            ? DebugManager.ADB_TCP_PORT_DEFAULT
+            : port;
+
+        if (connectionMonitor == null) {
+            connectionMonitor = new TcpConnectionMonitor();
+        }
+        if (canReadProcNet) {
+            try {
+                connectionMonitor.scan(monitoredPorts);
+            } catch (IOException e) {
+                Timber.w("Could not read /proc/net: %s", e.getMessage());
+                canReadProcNet = false;
+                connectionMonitor.close();
+            }
+        }
+        if (!canReadProcNet) {
+            if (!RootCapabilityCache.getCache().isRooted()) {
+                return false;
+            }
+            byte[] data = readProcNetAsRoot();
+            if (data != null) {
+                connectionMonitor.scan(data, data.length, monitoredPorts);
+            }
+        }
+        DebugStatusStore.getStore().setConnectedHosts(connectionMonitor.getHosts());
+        return true;
+    }
+
+    /**
+     * Returns the contents of /proc/net/tcp and /proc/net/tcp6, read by the root helper if
+     * it's available or with su otherwise, or null if they can't be read at all.
+     */
+    private static byte[] readProcNetAsRoot() {
+        RootHelperClient helper = RootHelperLauncher.getLauncher().getClient();
+        if (helper != null) {
+            try {
+                byte[] data = new byte[0];
+                for (String path : TcpConnectionMonitor.PROC_FILES) {
+                    byte[] fileData;
+                    try {
+                        fileData = helper.readFile(path);
+                    } catch (RootHelperClient.RemoteException e) {
+                        // There's no tcp6 without IPv6
+                        continue;
+                    }
+                    int length = data.length;
+                    data = Arrays.copyOf(data, length + fileData.length);
+                    System.arraycopy(fileData, 0, data, length, fileData.length);
+                }
+                return data;
+            } catch (IOException e) {
+                Timber.w("Root helper failed, using the shell: %s", e.getMessage());
+            }
+        }
+        try {
+            return Shell.getShell().queryAsRoot(ROOT_CONNECTION_SCAN_COMMAND).getBytes();
+        } catch (ShellException e) {
+            Timber.w("Could not read /proc/net as root: %s", e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Starts counting idle time from scratch and checks it once in a while, as long as
+     * debugging is enabled and idle_timeout is set.
+     */
+    private void restartIdleCheck() {
+        workerHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                workerHandler.removeCallbacks(idleCheckRunnable);
+                idleTracker.reset(SystemClock.elapsedRealtime());
+                scheduleIdleCheck(DebugStatusStore.getStore().getStatus());
             }
+        });
+    }
+
+    private void scheduleIdleCheck(DebugStatus status) {
+        if (status.isEnabled() && status.getIdleTimeout() > 0) {
+            workerHandler.postDelayed(idleCheckRunnable,
+                Math.min(IDLE_CHECK_INTERVAL, status.getIdleTimeout()));
+        }
+    }
+
+    /**
+     * Runs on the worker thread. Disables debugging if nobody has been connected and adbd
+     * hasn't sent or received anything for idle_timeout, as seen by the activity samples.
+     */
+    private void checkIdle() {
+        DebugStatusStore store = DebugStatusStore.getStore();
+        DebugStatus status = store.getStatus();
+        if (!status.isEnabled() || status.getIdleTimeout() <= 0) {
+            return;
+        }
+        // Better to leave debugging on than to kill a session we can't see, but check again
+        // later in case sampling starts to see it
+        if (canSeeActivity) {
+            long idleTime = idleTracker.getIdleTime(SystemClock.elapsedRealtime());
+            if (idleTime >= status.getIdleTimeout()) {
+                Timber.i("Disabling debugging because adbd has been idle for %d s",
+                    idleTime / 1000);
+                Metrics.counter(Metrics.IDLE_DISABLES).increment();
+                disableDebugging();
+            }
+        }
+
+        // If disabling has failed we'll try again next time
+        scheduleIdleCheck(store.getStatus());
+    }
+
+    /**
+     * Returns the number of bytes adbd has sent and received so far, or
+     * {@link IdleTracker#UNKNOWN}. Only the difference between two readings matters.
+     */
+    private long getAdbTrafficBytes(DebugStatus status) {
+        long trafficBytes = IdleTracker.UNKNOWN;
+
+        // Newer versions of Android only report traffic of the calling app
+        long rxBytes = TrafficStats.getUidRxBytes(ADB_UID);
+        long txBytes = TrafficStats.getUidTxBytes(ADB_UID);
+        if (rxBytes != TrafficStats.UNSUPPORTED && txBytes != TrafficStats.UNSUPPORTED) {
+            trafficBytes = rxBytes + txBytes;
+        }
+
+        // In relay mode all traffic goes through us, so we always know
+        if (status.getPort() == DebugManager.ADB_RELAY_BACKEND_PORT) {
+            long relayBytes = Metrics.counter(Metrics.RELAY_BYTES_FROM_CLIENT).get()
+                + Metrics.counter(Metrics.RELAY_BYTES_TO_CLIENT).get();
+            trafficBytes = trafficBytes == IdleTracker.UNKNOWN
+                ? relayBytes
+                : trafficBytes + relayBytes;
         }
 
-        isCurrentlyEnabled = isEnabled;
+        return trafficBytes;
     }
 
     private void sendStatusChangedBroadcast(boolean isEnabled) {
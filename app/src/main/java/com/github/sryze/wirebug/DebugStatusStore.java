@@ -0,0 +1,276 @@
+/*
+ * This file is part of Wirebug.
+ *
+ * Wirebug is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Wirebug is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Wirebug.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.sryze.wirebug;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Handler;
+import android.os.Looper;
+import android.preference.PreferenceManager;
+
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+import timber.log.Timber;
+
+/**
+ * Holds the current {@link DebugStatus} for the whole process.
+ *
+ * Whoever finds out something new (the status service polling the port, the toggle
+ * controller, connectivity or preference changes) publishes it here. Listeners are told
+ * exactly which fields have changed, so they only redo the work that depends on them.
+ * Publishing a value that is already known costs nothing and notifies nobody.
+ */
+public class DebugStatusStore {
+
+    /**
+     * Listeners are always called on the main thread.
+     */
+    public interface Listener {
+        /**
+         * @param changes bit mask of the DebugStatus.FIELD_* constants
+         */
+        void onStatusChanged(DebugStatus status, int changes);
+    }
+
+    static final String PREF_DISABLE_ON_LOCK = "disable_on_lock";
+    static final String PREF_STAY_AWAKE = "stay_awake";
+    static final String PREF_RELAY_MODE = "relay_mode";
+    static final String PREF_IDLE_TIMEOUT = "idle_timeout";
+    static final String PREF_CONTROL_SERVER = "control_server";
+    static final String PREF_CONTROL_SERVER_PORT = "control_server_port";
+    static final String PREF_CONTROL_SERVER_TOKEN = "control_server_token";
+
+    private static final int CONTROL_TOKEN_LENGTH = 16;
+
+    private static DebugStatusStore globalStore;
+
+    private final SharedPreferences preferences;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final List<Listener> listeners = new ArrayList<>();
+
+    // The listener is held weakly by SharedPreferences, so it must be kept in a field
+    private final SharedPreferences.OnSharedPreferenceChangeListener preferenceChangeListener =
+        new SharedPreferences.OnSharedPreferenceChangeListener() {
+            @Override
+            public void onSharedPreferenceChanged(SharedPreferences preferences, String key) {
+                if (PREF_DISABLE_ON_LOCK.equals(key)
+                    || PREF_STAY_AWAKE.equals(key)
+                    || PREF_RELAY_MODE.equals(key)
+                    || PREF_IDLE_TIMEOUT.equals(key)
+                    || PREF_CONTROL_SERVER.equals(key)
+                    || PREF_CONTROL_SERVER_PORT.equals(key)) {
+                    Timber.d("Preference %s has changed", key);
+                    setPreferences(
+                        readPreference(PREF_DISABLE_ON_LOCK),
+                        readPreference(PREF_STAY_AWAKE),
+                        readPreference(PREF_RELAY_MODE),
+                        readIdleTimeout(),
+                        readControlPort());
+                }
+            }
+        };
+    private final ConnectivityTracker.Listener connectivityListener =
+        new ConnectivityTracker.Listener() {
+            @Override
+            public void onConnectivityChanged(ConnectivitySnapshot snapshot) {
+                setConnectivity(snapshot);
+            }
+        };
+
+    private volatile DebugStatus status;
+
+    private DebugStatusStore(Context context) {
+        preferences = PreferenceManager.getDefaultSharedPreferences(context);
+        status = new DebugStatus(
+            0,
+            ConnectivityTracker.getTracker().getSnapshot(),
+            readPreference(PREF_DISABLE_ON_LOCK),
+            readPreference(PREF_STAY_AWAKE),
+            readPreference(PREF_RELAY_MODE),
+            readIdleTimeout(),
+            readControlPort(),
+            Collections.<String>emptyList());
+        preferences.registerOnSharedPreferenceChangeListener(preferenceChangeListener);
+        ConnectivityTracker.getTracker().addListener(connectivityListener);
+        if (!preferences.contains(PREF_CONTROL_SERVER_TOKEN)) {
+            preferences.edit()
+                .putString(PREF_CONTROL_SERVER_TOKEN, generateControlToken())
+                .apply();
+        }
+    }
+
+    /**
+     * Must be called after {@link ConnectivityTracker#init}.
+     */
+    public static synchronized void init(Context context) {
+        if (globalStore == null) {
+            globalStore = new DebugStatusStore(context.getApplicationContext());
+        }
+    }
+
+    public static synchronized DebugStatusStore getStore() {
+        if (globalStore == null) {
+            throw new IllegalStateException("DebugStatusStore.init() has not been called");
+        }
+        return globalStore;
+    }
+
+    public DebugStatus getStatus() {
+        return status;
+    }
+
+    public void addListener(Listener listener) {
+        synchronized (listeners) {
+            listeners.add(listener);
+        }
+    }
+
+    public void removeListener(Listener listener) {
+        synchronized (listeners) {
+            listeners.remove(listener);
+        }
+    }
+
+    /**
+     * Publishes the port adbd listens on (0 if disabled). Can be called from any thread.
+     *
+     * @return bit mask of the fields that have changed, 0 if the port is already known
+     */
+    public synchronized int setPort(int port) {
+        if (status.getPort() == port) {
+            return 0;
+        }
+        return publish(status.withPort(port));
+    }
+
+    /**
+     * Publishes the addresses of the hosts connected to adbd. Can be called from any
+     * thread.
+     */
+    public synchronized void setConnectedHosts(List<String> connectedHosts) {
+        if (status.getConnectedHosts().equals(connectedHosts)) {
+            return;
+        }
+        publish(status.withConnectedHosts(connectedHosts));
+    }
+
+    private synchronized void setConnectivity(ConnectivitySnapshot connectivity) {
+        if (status.getConnectivity().equals(connectivity)) {
+            return;
+        }
+        publish(status.withConnectivity(connectivity));
+    }
+
+    private synchronized void setPreferences(
+            boolean isDisableOnLock,
+            boolean isStayAwake,
+            boolean isRelayMode,
+            long idleTimeout,
+            int controlPort) {
+        if (status.isDisableOnLock() == isDisableOnLock
+            && status.isStayAwake() == isStayAwake
+            && status.isRelayMode() == isRelayMode
+            && status.getIdleTimeout() == idleTimeout
+            && status.getControlPort() == controlPort) {
+            return;
+        }
+        publish(status.withPreferences(
+            isDisableOnLock, isStayAwake, isRelayMode, idleTimeout, controlPort));
+    }
+
+    private boolean readPreference(String key) {
+        return preferences.getBoolean(key, false);
+    }
+
+    /**
+     * The preference is a ListPreference, so the number of minutes is stored as a string.
+     */
+    private long readIdleTimeout() {
+        String minutes = preferences.getString(PREF_IDLE_TIMEOUT, "0");
+        try {
+            return Math.max(Long.parseLong(minutes), 0) * 60 * 1000;
+        } catch (NumberFormatException e) {
+            Timber.w("Invalid idle timeout: %s", minutes);
+            return 0;
+        }
+    }
+
+    /**
+     * Returns the token that control server requests must carry to change anything, or an
+     * empty string if the user has cleared it. Read on every request, so changes to the
+     * preference apply right away.
+     */
+    public String getControlToken() {
+        return preferences.getString(PREF_CONTROL_SERVER_TOKEN, "").trim();
+    }
+
+    private static String generateControlToken() {
+        byte[] bytes = new byte[CONTROL_TOKEN_LENGTH];
+        new SecureRandom().nextBytes(bytes);
+        StringBuilder token = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            token.append(String.format(Locale.US, "%02x", b & 0xFF));
+        }
+        return token.toString();
+    }
+
+    /**
+     * Returns the port from the control_server_port preference (stored as a string by an
+     * EditTextPreference), or 0 if the control server is off.
+     */
+    private int readControlPort() {
+        if (!readPreference(PREF_CONTROL_SERVER)) {
+            return 0;
+        }
+        String port = preferences.getString(
+            PREF_CONTROL_SERVER_PORT, String.valueOf(ControlServer.DEFAULT_PORT));
+        try {
+            int value = Integer.parseInt(port.trim());
+            if (value > 0 && value <= 0xFFFF) {
+                return value;
+            }
+        } catch (NumberFormatException e) {
+            // Handled below
+        }
+        Timber.w("Invalid control server port: %s", port);
+        return 0;
+    }
+
+    private int publish(final DebugStatus newStatus) {
+        final int changes = newStatus.diff(status);
+        status = newStatus;
+        Timber.d("Status has changed: %s", newStatus);
+        mainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                List<Listener> listenersCopy;
+                synchronized (listeners) {
+                    listenersCopy = new ArrayList<>(listeners);
+                }
+                for (Listener listener : listenersCopy) {
+                    listener.onStatusChanged(newStatus, changes);
+                }
+            }
+        });
+        return changes;
+    }
+}
@@ -0,0 +1,87 @@
+/*
+ * This file is part of Wirebug.
+ *
+ * Wirebug is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Wirebug is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Wirebug.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.sryze.wirebug;
+
+import android.os.Build;
+import android.service.quicksettings.Tile;
+import android.service.quicksettings.TileService;
+import androidx.annotation.RequiresApi;
+
+/**
+ * Quick Settings tile that toggles debugging. It's drawn from {@link StatusCache}, so
+ * opening the panel doesn't run any commands.
+ */
+@RequiresApi(Build.VERSION_CODES.N)
+public class DebugTileService extends TileService {
+
+    private final StatusCache.Listener cacheListener = new StatusCache.Listener() {
+        @Override
+        public void onSnapshotChanged(StatusCache.Snapshot snapshot) {
+            updateTile(snapshot);
+        }
+    };
+
+    @Override
+    public void onStartListening() {
+        super.onStartListening();
+        StatusCache cache = StatusCache.getCache();
+        cache.addListener(cacheListener);
+        updateTile(cache.getSnapshot());
+    }
+
+    @Override
+    public void onStopListening() {
+        StatusCache.getCache().removeListener(cacheListener);
+        super.onStopListening();
+    }
+
+    @Override
+    public void onClick() {
+        super.onClick();
+        // Don't let anyone holding a locked phone open it up for debugging
+        if (isLocked() && isSecure()) {
+            unlockAndRun(new Runnable() {
+                @Override
+                public void run() {
+                    StatusCache.getCache().toggle();
+                }
+            });
+        } else {
+            StatusCache.getCache().toggle();
+        }
+    }
+
+    private void updateTile(StatusCache.Snapshot snapshot) {
+        Tile tile = getQsTile();
+        if (tile == null) {
+            return;
+        }
+        tile.setState(snapshot.isTargetEnabled() ? Tile.STATE_ACTIVE : Tile.STATE_INACTIVE);
+        String status = DebugWidgetProvider.getStatusText(this, snapshot);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+            tile.setLabel(getString(R.string.tile_label));
+            tile.setSubtitle(status);
+        } else {
+            // There's no subtitle, so show the address instead of the name once it matters
+            tile.setLabel(snapshot.isEnabled() || snapshot.isBusy()
+                ? status
+                : getString(R.string.tile_label));
+        }
+        tile.updateTile();
+    }
+}
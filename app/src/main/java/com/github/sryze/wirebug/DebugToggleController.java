@@ -0,0 +1,278 @@
+/*
+ * This file is part of Wirebug.
+ *
+ * Wirebug is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Wirebug is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Wirebug.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.sryze.wirebug;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import timber.log.Timber;
+
+/**
+ * Toggles debugging over TCP on a background thread and lets the UI observe the progress.
+ *
+ * Requests are debounced and coalesced: only the most recent request matters, so a burst
+ * of taps on the toggle results in at most one adbd restart (or none if the taps cancel
+ * each other out).
+ */
+public class DebugToggleController {
+
+    public enum State {
+        /** Debugging over TCP is disabled */
+        IDLE,
+        /** Setting the TCP port property */
+        ENABLING,
+        /** Clearing the TCP port property */
+        DISABLING,
+        /** Waiting for adbd to come back after a restart */
+        RESTARTING_ADBD,
+        /** Debugging over TCP is enabled */
+        ENABLED,
+        /** The last toggle didn't go through */
+        FAILED
+    }
+
+    /**
+     * Listeners are always called on the main thread.
+     */
+    public interface Listener {
+        void onStateChanged(State state);
+    }
+
+    private static final long DEBOUNCE_DELAY = 300;
+    private static final long READY_TIMEOUT = 10000;
+    private static final String LOOPBACK_ADDRESS = "127.0.0.1";
+
+    private static DebugToggleController globalController;
+
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final ExecutorService executor =
+        Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "DebugToggleController");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    private final List<Listener> listeners = new ArrayList<>();
+    private final Runnable applyRunnable = new Runnable() {
+        @Override
+        public void run() {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    apply();
+                }
+            });
+        }
+    };
+
+    private State state = State.IDLE;
+    private boolean isEnabled;
+    private boolean isTargetEnabled;
+    private boolean isApplyPending;
+    private boolean isBusy;
+
+    public static synchronized DebugToggleController getController() {
+        if (globalController == null) {
+            globalController = new DebugToggleController();
+        }
+        return globalController;
+    }
+
+    public synchronized State getState() {
+        return state;
+    }
+
+    /**
+     * Returns whether debugging was enabled as of the last operation or refresh.
+     */
+    public synchronized boolean isEnabled() {
+        return isEnabled;
+    }
+
+    /**
+     * Returns the state requested by the most recent call to {@link #setEnabled}.
+     */
+    public synchronized boolean isTargetEnabled() {
+        return isTargetEnabled;
+    }
+
+    public void addListener(Listener listener) {
+        synchronized (listeners) {
+            listeners.add(listener);
+        }
+    }
+
+    public void removeListener(Listener listener) {
+        synchronized (listeners) {
+            listeners.remove(listener);
+        }
+    }
+
+    /**
+     * Requests debugging to be enabled or disabled. Can be called from any thread.
+     */
+    public void setEnabled(boolean isEnabled) {
+        synchronized (this) {
+            isTargetEnabled = isEnabled;
+            isApplyPending = true;
+        }
+        mainHandler.removeCallbacks(applyRunnable);
+        mainHandler.postDelayed(applyRunnable, DEBOUNCE_DELAY);
+    }
+
+    /**
+     * Re-reads the current state in the background, unless a toggle is in progress. The
+     * target is left alone while a toggle is waiting to be applied, so that it isn't lost.
+     */
+    public void refresh() {
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (DebugToggleController.this) {
+                    if (isBusy) {
+                        return;
+                    }
+                }
+                int port = DebugManager.getAdbTcpPort();
+                DebugStatusStore.getStore().setPort(port);
+                boolean isActuallyEnabled = port > 0;
+                synchronized (DebugToggleController.this) {
+                    isEnabled = isActuallyEnabled;
+                    if (isApplyPending) {
+                        return;
+                    }
+                    isTargetEnabled = isActuallyEnabled;
+                }
+                setState(isActuallyEnabled ? State.ENABLED : State.IDLE);
+            }
+        });
+    }
+
+    private void apply() {
+        synchronized (this) {
+            // Requests that come in from now on are picked up by this run or the next one
+            isApplyPending = false;
+            isBusy = true;
+        }
+        boolean isReady = true;
+        try {
+            boolean target;
+            int port = DebugManager.getAdbTcpPort();
+            // Comparing ports rather than just on and off also moves adbd when relay_mode
+            // changes while debugging is enabled
+            while (!isTargetPort(target = isTargetEnabled(), port)) {
+                setState(target ? State.ENABLING : State.DISABLING);
+                boolean isApplied = DebugManager.applyAdbTcpPort(
+                    target ? getTargetPort() : 0,
+                    new RootBatch.ProgressListener() {
+                        @Override
+                        public void onStepStarted(int step) {
+                            if (step == DebugManager.STEP_RESTART_ADB_DAEMON) {
+                                setState(State.RESTARTING_ADBD);
+                            }
+                        }
+                    });
+                port = DebugManager.getAdbTcpPort();
+                if (!isApplied) {
+                    break;
+                }
+                Timber.i("Debugging over TCP is enabled: %s", target ? "YES" : "NO");
+                if (!isTargetPort(target, port)) {
+                    break;
+                }
+                if (target && !waitForAdbDaemon()) {
+                    isReady = false;
+                    break;
+                }
+                // The loop goes on if the target has changed while we were busy
+            }
+            DebugStatusStore.getStore().setPort(port);
+            boolean isActuallyEnabled = port > 0;
+            synchronized (this) {
+                isEnabled = isActuallyEnabled;
+            }
+            if (isReady && isTargetPort(isTargetEnabled(), port)) {
+                BootRestore.getBootRestore().setDesiredPort(port);
+                setState(isActuallyEnabled ? State.ENABLED : State.IDLE);
+            } else {
+                Timber.i("Could NOT %s debugging", isTargetEnabled() ? "enable" : "disable");
+                setState(State.FAILED);
+            }
+        } finally {
+            synchronized (this) {
+                isBusy = false;
+            }
+        }
+    }
+
+    private static boolean isTargetPort(boolean isTargetEnabled, int port) {
+        return isTargetEnabled ? port == getTargetPort() : port == 0;
+    }
+
+    /**
+     * In relay mode adbd is moved out of the way so that {@link AdbRelay} can take its
+     * usual port.
+     */
+    private static int getTargetPort() {
+        return DebugStatusStore.getStore().getStatus().isRelayMode()
+            ? DebugManager.ADB_RELAY_BACKEND_PORT
+            : DebugManager.ADB_TCP_PORT_DEFAULT;
+    }
+
+    /**
+     * Waits until adbd accepts connections on its new port, so that we don't report
+     * debugging as enabled while hosts would still be refused.
+     */
+    private boolean waitForAdbDaemon() {
+        int port = DebugManager.getAdbTcpPort();
+        try {
+            AdbReadinessProbe.Result result =
+                new AdbReadinessProbe(LOOPBACK_ADDRESS, port).waitUntilReady(READY_TIMEOUT);
+            return result.isReady();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    private void setState(final State newState) {
+        synchronized (this) {
+            state = newState;
+        }
+        mainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                List<Listener> listenersCopy;
+                synchronized (listeners) {
+                    listenersCopy = new ArrayList<>(listeners);
+                }
+                for (Listener listener : listenersCopy) {
+                    listener.onStateChanged(newState);
+                }
+            }
+        });
+    }
+}
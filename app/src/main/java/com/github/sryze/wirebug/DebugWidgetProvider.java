@@ -0,0 +1,105 @@
+/*
+ * This file is part of Wirebug.
+ *
+ * Wirebug is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Wirebug is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Wirebug.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.sryze.wirebug;
+
+import android.app.PendingIntent;
+import android.appwidget.AppWidgetManager;
+import android.appwidget.AppWidgetProvider;
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.widget.RemoteViews;
+
+/**
+ * Home screen widget that shows whether debugging is enabled and where to connect, and
+ * toggles it when tapped. Like the tile, it's drawn from {@link StatusCache}.
+ */
+public class DebugWidgetProvider extends AppWidgetProvider {
+
+    public static final String ACTION_TOGGLE =
+        "com.github.sryze.wirebug.widget.action.TOGGLE";
+
+    @Override
+    public void onReceive(Context context, Intent intent) {
+        if (ACTION_TOGGLE.equals(intent.getAction())) {
+            StatusCache.getCache().toggle();
+            return;
+        }
+        super.onReceive(context, intent);
+    }
+
+    @Override
+    public void onUpdate(Context context, AppWidgetManager appWidgetManager, int[] appWidgetIds) {
+        appWidgetManager.updateAppWidget(
+            appWidgetIds, createViews(context, StatusCache.getCache().getSnapshot()));
+    }
+
+    /**
+     * Redraws all instances of the widget, if there are any.
+     */
+    static void updateWidgets(Context context, StatusCache.Snapshot snapshot) {
+        AppWidgetManager appWidgetManager = AppWidgetManager.getInstance(context);
+        if (appWidgetManager == null) {
+            return;
+        }
+        int[] appWidgetIds = appWidgetManager.getAppWidgetIds(
+            new ComponentName(context, DebugWidgetProvider.class));
+        if (appWidgetIds.length > 0) {
+            appWidgetManager.updateAppWidget(appWidgetIds, createViews(context, snapshot));
+        }
+    }
+
+    /**
+     * Returns a short description of the snapshot: the address to connect to when
+     * debugging is enabled, otherwise what's going on.
+     */
+    static String getStatusText(Context context, StatusCache.Snapshot snapshot) {
+        if (snapshot.isBusy()) {
+            return context.getString(snapshot.isTargetEnabled()
+                ? R.string.status_enabling
+                : R.string.status_disabling);
+        }
+        if (!snapshot.isEnabled()) {
+            return context.getString(R.string.status_disabled);
+        }
+        String address = snapshot.getConnectAddress();
+        return address != null ? address : context.getString(R.string.status_no_wifi);
+    }
+
+    private static RemoteViews createViews(Context context, StatusCache.Snapshot snapshot) {
+        Intent toggleIntent = new Intent(context, DebugWidgetProvider.class);
+        toggleIntent.setAction(ACTION_TOGGLE);
+
+        RemoteViews views = new RemoteViews(context.getPackageName(), R.layout.widget_debug);
+        views.setInt(
+            R.id.layout_widget,
+            "setBackgroundResource",
+            snapshot.isTargetEnabled()
+                ? R.drawable.widget_background_enabled
+                : R.drawable.widget_background_disabled);
+        views.setTextViewText(R.id.text_widget_status, getStatusText(context, snapshot));
+        views.setOnClickPendingIntent(
+            R.id.layout_widget,
+            PendingIntent.getBroadcast(
+                context,
+                0,
+                toggleIntent,
+                PendingIntent.FLAG_UPDATE_CURRENT));
+        return views;
+    }
+}
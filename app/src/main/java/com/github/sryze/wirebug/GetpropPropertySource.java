@@ -0,0 +1,118 @@
+/*
+ * This file is part of Wirebug.
+ *
+ * Wirebug is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Wirebug is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Wirebug.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.sryze.wirebug;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import timber.log.Timber;
+
+/**
+ * Reads properties by running getprop. This is the slow path, used only when properties
+ * can't be read in-process.
+ */
+public class GetpropPropertySource extends PropertySource {
+
+    private static final long GETPROP_TIMEOUT = 10000;
+
+    private final Shell shell;
+
+    public GetpropPropertySource(Shell shell) {
+        this.shell = shell;
+    }
+
+    @Override
+    public String get(String name) {
+        try {
+            return shell.query(new String[]{"getprop", name}).trim();
+        } catch (ShellException e) {
+            Timber.e("Error getting property %s: %s", name, e.getMessage());
+            return "";
+        }
+    }
+
+    /**
+     * Reads all of the requested properties with a single getprop invocation. The full
+     * listing can be longer than {@link Shell} keeps of a command's output, so it's
+     * streamed and only the requested properties are picked out of it.
+     */
+    @Override
+    public Map<String, String> get(String[] names) {
+        final Map<String, String> values = new HashMap<>();
+        for (String name : names) {
+            values.put(name, "");
+        }
+        try {
+            shell.exec(new String[]{"getprop"}, new Shell.OutputListener() {
+                @Override
+                public void onOutputLine(String line, boolean isError) {
+                    // stderr is reported on another thread, and there's nothing for us there
+                    if (!isError) {
+                        parseGetpropLine(line, 0, line.length(), values, true);
+                    }
+                }
+            }, GETPROP_TIMEOUT);
+        } catch (ShellException e) {
+            Timber.e("Error listing properties: %s", e.getMessage());
+            for (String name : names) {
+                values.put(name, "");
+            }
+        }
+        return values;
+    }
+
+    /**
+     * Parses the output of getprop run without arguments, which is a list of lines in
+     * the form of "[name]: [value]".
+     */
+    public static Map<String, String> parseGetpropOutput(String output) {
+        Map<String, String> values = new HashMap<>();
+        int lineStart = 0;
+        while (lineStart < output.length()) {
+            int lineEnd = output.indexOf('\n', lineStart);
+            if (lineEnd < 0) {
+                lineEnd = output.length();
+            }
+            parseGetpropLine(output, lineStart, lineEnd, values, false);
+            lineStart = lineEnd + 1;
+        }
+        return values;
+    }
+
+    /**
+     * Parses a "[name]: [value]" line found between lineStart and lineEnd and puts it into
+     * values. If onlyExisting is true, properties that aren't already in values are skipped.
+     */
+    private static void parseGetpropLine(
+            String output,
+            int lineStart,
+            int lineEnd,
+            Map<String, String> values,
+            boolean onlyExisting) {
+        int nameEnd = output.indexOf("]: [", lineStart);
+        if (output.startsWith("[", lineStart) && nameEnd > 0 && nameEnd < lineEnd) {
+            int valueEnd = output.lastIndexOf(']', lineEnd);
+            if (valueEnd > nameEnd) {
+                String name = output.substring(lineStart + 1, nameEnd);
+                if (!onlyExisting || values.containsKey(name)) {
+                    values.put(name, output.substring(nameEnd + 4, valueEnd));
+                }
+            }
+        }
+    }
+}
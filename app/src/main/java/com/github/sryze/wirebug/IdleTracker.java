@@ -0,0 +1,68 @@
+/*
+ * This file is part of Wirebug.
+ *
+ * Wirebug is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Wirebug is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Wirebug.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.sryze.wirebug;
+
+/**
+ * Keeps track of how long adbd has gone without being used.
+ *
+ * Activity is judged from signals that are cheap to get: whether anybody is connected (as
+ * found by {@link TcpConnectionMonitor}) and the number of bytes adbd has sent and
+ * received so far. Taking a sample is just a comparison, so it can go on for as long as
+ * debugging is enabled. Not thread-safe.
+ */
+class IdleTracker {
+
+    static final long UNKNOWN = -1;
+
+    private long lastActivityTime;
+    private long lastTrafficBytes = UNKNOWN;
+
+    /**
+     * Starts counting idle time from now, e.g. after debugging has been enabled.
+     *
+     * @param now current time in milliseconds (any monotonic clock will do)
+     */
+    void reset(long now) {
+        lastActivityTime = now;
+        lastTrafficBytes = UNKNOWN;
+    }
+
+    /**
+     * Adds a sample of adbd's activity.
+     *
+     * @param hasConnections whether anybody is connected to adbd
+     * @param trafficBytes bytes sent and received by adbd so far, or {@link #UNKNOWN}; any
+     *     change since the previous sample counts as activity
+     * @return true if there has been activity since the previous sample
+     */
+    boolean onSample(long now, boolean hasConnections, long trafficBytes) {
+        boolean isActive = hasConnections
+            || (trafficBytes != UNKNOWN
+                && lastTrafficBytes != UNKNOWN
+                && trafficBytes != lastTrafficBytes);
+        lastTrafficBytes = trafficBytes;
+        if (isActive) {
+            lastActivityTime = now;
+        }
+        return isActive;
+    }
+
+    long getIdleTime(long now) {
+        return now - lastActivityTime;
+    }
+}
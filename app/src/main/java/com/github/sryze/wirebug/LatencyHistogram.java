@@ -0,0 +1,126 @@
+/*
+ * This file is part of Wirebug.
+ *
+ * Wirebug is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Wirebug is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Wirebug.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.sryze.wirebug;
+
+import java.io.PrintWriter;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A latency histogram with fixed, roughly logarithmic buckets. Recording a value is a few
+ * atomic increments, so it's cheap enough to do on every call. Percentiles are estimated
+ * as the upper bound of the bucket they fall into.
+ */
+public final class LatencyHistogram {
+
+    /** Upper bounds of the buckets in milliseconds; the last bucket is unbounded */
+    private static final long[] BUCKET_BOUNDS = {
+        1, 2, 5, 10, 20, 50, 100, 200, 500, 1000, 2000, 5000, 10000, 30000
+    };
+
+    private final AtomicLongArray bucketCounts = new AtomicLongArray(BUCKET_BOUNDS.length + 1);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong totalNanos = new AtomicLong();
+    private final AtomicLong maxNanos = new AtomicLong();
+
+    public void record(long nanos) {
+        long millis = nanos / 1000000;
+        int bucket = 0;
+        while (bucket < BUCKET_BOUNDS.length && millis >= BUCKET_BOUNDS[bucket]) {
+            bucket++;
+        }
+        bucketCounts.incrementAndGet(bucket);
+        count.incrementAndGet();
+        totalNanos.addAndGet(nanos);
+        long max;
+        while (nanos > (max = maxNanos.get())) {
+            if (maxNanos.compareAndSet(max, nanos)) {
+                break;
+            }
+        }
+    }
+
+    /**
+     * Records the time elapsed since the given {@link System#nanoTime()} value.
+     */
+    public void recordSince(long startNanos) {
+        record(System.nanoTime() - startNanos);
+    }
+
+    public long getCount() {
+        return count.get();
+    }
+
+    public double getMeanMillis() {
+        long n = count.get();
+        return n > 0 ? totalNanos.get() / 1e6 / n : 0;
+    }
+
+    public double getMaxMillis() {
+        return maxNanos.get() / 1e6;
+    }
+
+    /**
+     * Returns an estimate of the given percentile (0 to 100) in milliseconds.
+     */
+    public double getPercentileMillis(double percentile) {
+        long n = count.get();
+        if (n == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(percentile / 100 * n);
+        long seen = 0;
+        for (int i = 0; i < BUCKET_BOUNDS.length; i++) {
+            seen += bucketCounts.get(i);
+            if (seen >= rank) {
+                return Math.min(BUCKET_BOUNDS[i], getMaxMillis());
+            }
+        }
+        return getMaxMillis();
+    }
+
+    /**
+     * Writes the histogram in the Prometheus text format, in seconds.
+     */
+    public void dumpPrometheus(PrintWriter writer, String name) {
+        writer.printf("# TYPE %s histogram%n", name);
+        long cumulativeCount = 0;
+        for (int i = 0; i < BUCKET_BOUNDS.length; i++) {
+            cumulativeCount += bucketCounts.get(i);
+            writer.printf(Locale.US, "%s_bucket{le=\"%s\"} %d%n",
+                name, BUCKET_BOUNDS[i] / 1000.0, cumulativeCount);
+        }
+        cumulativeCount += bucketCounts.get(BUCKET_BOUNDS.length);
+        writer.printf("%s_bucket{le=\"+Inf\"} %d%n", name, cumulativeCount);
+        writer.printf(Locale.US, "%s_sum %s%n", name, totalNanos.get() / 1e9);
+        writer.printf("%s_count %d%n", name, cumulativeCount);
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.US,
+            "count=%d mean=%.1fms p50=%.0fms p90=%.0fms p99=%.0fms max=%.1fms",
+            getCount(),
+            getMeanMillis(),
+            getPercentileMillis(50),
+            getPercentileMillis(90),
+            getPercentileMillis(99),
+            getMaxMillis());
+    }
+}
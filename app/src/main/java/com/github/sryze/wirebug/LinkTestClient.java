@@ -0,0 +1,152 @@
+/*
+ * This file is part of Wirebug.
+ *
+ * Wirebug is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Wirebug is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Wirebug.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.sryze.wirebug;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.Charset;
+
+/**
+ * Host side of {@link LinkTestServer}. Doesn't depend on Android, so it can be run on the
+ * development machine as well as against a local server over loopback.
+ */
+public class LinkTestClient implements Closeable {
+
+    private static final Charset CHARSET = Charset.forName("US-ASCII");
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final Socket socket;
+    private final InputStream inputStream;
+    private final OutputStream outputStream;
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+
+    public LinkTestClient(InetSocketAddress address, int timeoutMillis) throws IOException {
+        socket = new Socket();
+        try {
+            socket.setTcpNoDelay(true);
+            socket.setSoTimeout(timeoutMillis);
+            socket.connect(address, timeoutMillis);
+            inputStream = socket.getInputStream();
+            outputStream = socket.getOutputStream();
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Sends the given number of bytes to the server and returns the time it took for the
+     * server to receive them, in nanoseconds.
+     */
+    public long upload(long byteCount) throws IOException {
+        sendCommand("UPLOAD " + byteCount);
+        long remaining = byteCount;
+        while (remaining > 0) {
+            int count = (int) Math.min(buffer.length, remaining);
+            outputStream.write(buffer, 0, count);
+            remaining -= count;
+        }
+        outputStream.flush();
+        return parseReply(readReply())[0];
+    }
+
+    /**
+     * Receives the given number of bytes from the server and returns the time it took as
+     * measured by the server, in nanoseconds.
+     */
+    public long download(long byteCount) throws IOException {
+        sendCommand("DOWNLOAD " + byteCount);
+        long remaining = byteCount;
+        while (remaining > 0) {
+            int count = inputStream.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+            if (count < 0) {
+                throw new IOException("Connection closed during download");
+            }
+            remaining -= count;
+        }
+        sendCommand("DONE");
+        return parseReply(readReply())[0];
+    }
+
+    /**
+     * Answers the given number of pings from the server. Returns the average, minimum and
+     * maximum round trip times measured by the server, in nanoseconds.
+     */
+    public long[] ping(int count) throws IOException {
+        sendCommand("PING " + count);
+        for (int i = 0; i < count; i++) {
+            int value = inputStream.read();
+            if (value < 0) {
+                throw new IOException("Connection closed during ping");
+            }
+            outputStream.write(value);
+            outputStream.flush();
+        }
+        return parseReply(readReply());
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            sendCommand("QUIT");
+        } catch (IOException e) {
+            // Closing anyway
+        }
+        socket.close();
+    }
+
+    private void sendCommand(String command) throws IOException {
+        outputStream.write((command + "\n").getBytes(CHARSET));
+        outputStream.flush();
+    }
+
+    /**
+     * Reads a line byte by byte so that nothing after it is buffered away from the stream.
+     */
+    private String readReply() throws IOException {
+        StringBuilder line = new StringBuilder();
+        int value;
+        while ((value = inputStream.read()) != '\n') {
+            if (value < 0) {
+                throw new IOException("Connection closed");
+            }
+            line.append((char) value);
+        }
+        return line.toString();
+    }
+
+    private static long[] parseReply(String reply) throws IOException {
+        String[] fields = reply.trim().split(" +");
+        if (!fields[0].equals("OK") || fields.length < 2) {
+            throw new IOException("Server replied: " + reply);
+        }
+        long[] values = new long[fields.length - 1];
+        try {
+            for (int i = 1; i < fields.length; i++) {
+                values[i - 1] = Long.parseLong(fields[i]);
+            }
+        } catch (NumberFormatException e) {
+            throw new IOException("Malformed reply: " + reply);
+        }
+        return values;
+    }
+}
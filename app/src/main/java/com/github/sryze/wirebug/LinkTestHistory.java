@@ -0,0 +1,68 @@
+/*
+ * This file is part of Wirebug.
+ *
+ * Wirebug is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Wirebug is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Wirebug.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.sryze.wirebug;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Keeps the results of the most recent link tests, so that they can be compared with each
+ * other (e.g. before and after moving closer to the access point).
+ */
+public class LinkTestHistory {
+
+    private static final String PREFERENCES_NAME = "link_test_history";
+    private static final String KEY_RESULTS = "results";
+    private static final int MAX_RESULTS = 20;
+
+    private final SharedPreferences preferences;
+    private final List<LinkTestResult> results = new ArrayList<>();
+
+    public LinkTestHistory(Context context) {
+        preferences = context.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE);
+        String serializedResults = preferences.getString(KEY_RESULTS, "");
+        for (String line : serializedResults.split("\n")) {
+            LinkTestResult result = LinkTestResult.parse(line);
+            if (result != null) {
+                results.add(result);
+            }
+        }
+    }
+
+    /**
+     * Returns the results, most recent first.
+     */
+    public synchronized List<LinkTestResult> getResults() {
+        return new ArrayList<>(results);
+    }
+
+    public synchronized void add(LinkTestResult result) {
+        results.add(0, result);
+        while (results.size() > MAX_RESULTS) {
+            results.remove(results.size() - 1);
+        }
+        StringBuilder serializedResults = new StringBuilder();
+        for (LinkTestResult storedResult : results) {
+            serializedResults.append(storedResult.serialize()).append('\n');
+        }
+        preferences.edit().putString(KEY_RESULTS, serializedResults.toString()).apply();
+    }
+}
@@ -0,0 +1,163 @@
+/*
+ * This file is part of Wirebug.
+ *
+ * Wirebug is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Wirebug is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Wirebug.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.sryze.wirebug;
+
+import java.util.Locale;
+
+/**
+ * Outcome of a single test run by {@link LinkTestServer}.
+ */
+public final class LinkTestResult {
+
+    public enum Type {
+        /** The host sent data to the device */
+        UPLOAD,
+        /** The device sent data to the host */
+        DOWNLOAD,
+        /** Round trips of a single byte, started by the device */
+        PING
+    }
+
+    private final Type type;
+    private final long timestamp;
+    private final long byteCount;
+    private final long durationNanos;
+    private final int pingCount;
+    private final long minRttNanos;
+    private final long maxRttNanos;
+
+    LinkTestResult(
+            Type type,
+            long timestamp,
+            long byteCount,
+            long durationNanos,
+            int pingCount,
+            long minRttNanos,
+            long maxRttNanos) {
+        this.type = type;
+        this.timestamp = timestamp;
+        this.byteCount = byteCount;
+        this.durationNanos = durationNanos;
+        this.pingCount = pingCount;
+        this.minRttNanos = minRttNanos;
+        this.maxRttNanos = maxRttNanos;
+    }
+
+    static LinkTestResult transfer(Type type, long byteCount, long durationNanos) {
+        return new LinkTestResult(
+            type, System.currentTimeMillis(), byteCount, durationNanos, 0, 0, 0);
+    }
+
+    static LinkTestResult ping(
+            int pingCount,
+            long totalRttNanos,
+            long minRttNanos,
+            long maxRttNanos) {
+        return new LinkTestResult(
+            Type.PING,
+            System.currentTimeMillis(),
+            0,
+            totalRttNanos,
+            pingCount,
+            minRttNanos,
+            maxRttNanos);
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    /**
+     * Returns the wall clock time at which the test has finished.
+     */
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    public long getByteCount() {
+        return byteCount;
+    }
+
+    public long getDurationNanos() {
+        return durationNanos;
+    }
+
+    /**
+     * Returns the throughput of an upload or download in megabits per second.
+     */
+    public double getMegabitsPerSecond() {
+        return byteCount * 8 * 1000.0 / Math.max(durationNanos, 1);
+    }
+
+    public int getPingCount() {
+        return pingCount;
+    }
+
+    public double getAverageRttMillis() {
+        return pingCount > 0 ? durationNanos / 1e6 / pingCount : 0;
+    }
+
+    public double getMinRttMillis() {
+        return minRttNanos / 1e6;
+    }
+
+    public double getMaxRttMillis() {
+        return maxRttNanos / 1e6;
+    }
+
+    /**
+     * Returns a single-line representation that can be read back by {@link #parse}.
+     */
+    String serialize() {
+        return String.format(Locale.US, "%s %d %d %d %d %d %d",
+            type, timestamp, byteCount, durationNanos, pingCount, minRttNanos, maxRttNanos);
+    }
+
+    /**
+     * Returns null if the line is malformed.
+     */
+    static LinkTestResult parse(String line) {
+        String[] fields = line.trim().split(" ");
+        if (fields.length != 7) {
+            return null;
+        }
+        try {
+            return new LinkTestResult(
+                Type.valueOf(fields[0]),
+                Long.parseLong(fields[1]),
+                Long.parseLong(fields[2]),
+                Long.parseLong(fields[3]),
+                Integer.parseInt(fields[4]),
+                Long.parseLong(fields[5]),
+                Long.parseLong(fields[6]));
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    @Override
+    public String toString() {
+        if (type == Type.PING) {
+            return String.format(Locale.US,
+                "PING: %d pings, avg %.2f ms, min %.2f ms, max %.2f ms",
+                pingCount, getAverageRttMillis(), getMinRttMillis(), getMaxRttMillis());
+        }
+        return String.format(Locale.US, "%s: %d bytes in %.1f ms, %.1f Mbit/s",
+            type, byteCount, durationNanos / 1e6, getMegabitsPerSecond());
+    }
+}
@@ -0,0 +1,457 @@
+/*
+ * This file is part of Wirebug.
+ *
+ * Wirebug is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Wirebug is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Wirebug.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.sryze.wirebug;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+
+import timber.log.Timber;
+
+/**
+ * A server that measures the link between the device and a host, like a tiny iperf.
+ *
+ * The host connects and sends commands, one per line:
+ *
+ * UPLOAD n - the host sends n bytes right after the command; the reply is "OK t" where t
+ * is the number of nanoseconds it took to receive them.
+ *
+ * DOWNLOAD n - the server sends n bytes, after which the host sends "DONE"; the reply is
+ * "OK t" where t is the number of nanoseconds from the first byte to "DONE".
+ *
+ * PING n - the server sends a single byte n times, each time waiting for the host to send
+ * a byte back; the reply is "OK avg min max" with round trip times in nanoseconds.
+ *
+ * QUIT - closes the connection.
+ *
+ * Invalid commands get "ERR message". Results are also reported to the listener.
+ */
+public class LinkTestServer {
+
+    public static final int DEFAULT_PORT = 5556;
+
+    /**
+     * Called on the server thread whenever a test has finished.
+     */
+    public interface Listener {
+        void onTestFinished(LinkTestResult result);
+    }
+
+    static final long MAX_TRANSFER_SIZE = 1L << 30;
+    static final int MAX_PING_COUNT = 10000;
+
+    private static final Charset CHARSET = Charset.forName("US-ASCII");
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int MAX_CONNECTIONS = 4;
+    private static final byte PING_BYTE = 'P';
+
+    private static final int STATE_COMMAND = 0;
+    private static final int STATE_UPLOAD = 1;
+    private static final int STATE_DOWNLOAD = 2;
+    private static final int STATE_DOWNLOAD_ACK = 3;
+    private static final int STATE_PING = 4;
+
+    private final InetSocketAddress listenAddress;
+    private final Listener listener;
+    private final BufferPool bufferPool = new BufferPool(BUFFER_SIZE, MAX_CONNECTIONS);
+    private final ByteBuffer payload;
+    private final List<Session> sessions = new ArrayList<>();
+
+    private Selector selector;
+    private ServerSocketChannel serverChannel;
+    private Thread thread;
+    private volatile boolean isRunning;
+
+    public LinkTestServer(InetSocketAddress listenAddress, Listener listener) {
+        this.listenAddress = listenAddress;
+        this.listener = listener;
+        // The contents don't matter, but make them not too easy to compress
+        payload = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        for (int i = 0; i < BUFFER_SIZE; i++) {
+            payload.put(i, (byte) (i * 31 + (i >> 8)));
+        }
+    }
+
+    public synchronized void start() throws IOException {
+        if (isRunning) {
+            return;
+        }
+        selector = Selector.open();
+        try {
+            serverChannel = ServerSocketChannel.open();
+            serverChannel.socket().setReuseAddress(true);
+            serverChannel.socket().bind(listenAddress);
+            serverChannel.configureBlocking(false);
+            serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+        } catch (IOException e) {
+            closeQuietly();
+            throw e;
+        }
+        Timber.i("Link test server is listening on %s",
+            serverChannel.socket().getLocalSocketAddress());
+        isRunning = true;
+        thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                runLoop();
+            }
+        }, "LinkTestServer");
+        thread.start();
+    }
+
+    public synchronized void stop() {
+        if (!isRunning) {
+            return;
+        }
+        isRunning = false;
+        selector.wakeup();
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        thread = null;
+        Timber.i("Link test server has stopped");
+    }
+
+    public boolean isRunning() {
+        return isRunning;
+    }
+
+    /**
+     * Returns the port the server is listening on, or -1 if it's not running.
+     */
+    public synchronized int getLocalPort() {
+        return isRunning ? serverChannel.socket().getLocalPort() : -1;
+    }
+
+    public InetSocketAddress getListenAddress() {
+        return listenAddress;
+    }
+
+    private void runLoop() {
+        try {
+            while (isRunning) {
+                selector.select();
+                Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
+                while (iterator.hasNext()) {
+                    SelectionKey key = iterator.next();
+                    iterator.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isAcceptable()) {
+                        try {
+                            accept();
+                        } catch (IOException e) {
+                            Timber.w("Could not accept a connection: %s", e.getMessage());
+                        }
+                        continue;
+                    }
+                    Session session = (Session) key.attachment();
+                    try {
+                        if (key.isReadable()) {
+                            session.onReadable();
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            session.onWritable();
+                        }
+                    } catch (IOException e) {
+                        Timber.d("Link test connection failed: %s", e.getMessage());
+                        session.close();
+                    }
+                }
+            }
+        } catch (IOException | ClosedSelectorException e) {
+            Timber.e(e, "Link test server has failed");
+            isRunning = false;
+        } finally {
+            for (Session session : new ArrayList<>(sessions)) {
+                session.close();
+            }
+            closeQuietly();
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel = serverChannel.accept();
+        if (channel == null) {
+            return;
+        }
+        if (sessions.size() >= MAX_CONNECTIONS) {
+            channel.close();
+            return;
+        }
+        try {
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+            sessions.add(new Session(channel));
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    private void closeQuietly() {
+        try {
+            if (serverChannel != null) {
+                serverChannel.close();
+            }
+            selector.close();
+        } catch (IOException e) {
+            // Nothing we can do about it
+        }
+    }
+
+    private void reportResult(LinkTestResult result) {
+        Timber.i("Link test finished: %s", result);
+        if (listener != null) {
+            listener.onTestFinished(result);
+        }
+    }
+
+    private final class Session {
+
+        final SocketChannel channel;
+        final SelectionKey key;
+        // Always in "fill" mode
+        final ByteBuffer inputBuffer;
+        final ByteBuffer payloadView = payload.duplicate();
+        ByteBuffer outputBuffer;
+        int state = STATE_COMMAND;
+        long remaining;
+        long startTime;
+        long byteCount;
+        int pingCount;
+        long pingSentTime;
+        long totalRtt;
+        long minRtt;
+        long maxRtt;
+
+        Session(SocketChannel channel) throws IOException {
+            this.channel = channel;
+            this.inputBuffer = bufferPool.acquire();
+            this.key = channel.register(selector, SelectionKey.OP_READ, this);
+        }
+
+        void onReadable() throws IOException {
+            if (channel.read(inputBuffer) < 0) {
+                close();
+                return;
+            }
+            processInput();
+        }
+
+        void onWritable() throws IOException {
+            if (outputBuffer != null) {
+                channel.write(outputBuffer);
+                if (outputBuffer.hasRemaining()) {
+                    return;
+                }
+                outputBuffer = null;
+            }
+            if (state == STATE_DOWNLOAD) {
+                payloadView.clear();
+                payloadView.limit((int) Math.min(payloadView.capacity(), remaining));
+                remaining -= channel.write(payloadView);
+                if (remaining > 0) {
+                    return;
+                }
+                state = STATE_DOWNLOAD_ACK;
+            }
+            key.interestOps(SelectionKey.OP_READ);
+            processInput();
+        }
+
+        private void processInput() throws IOException {
+            inputBuffer.flip();
+            boolean isProgress = true;
+            // Replies are sent one at a time, and nothing is expected while downloading
+            while (isProgress
+                && inputBuffer.hasRemaining()
+                && outputBuffer == null
+                && state != STATE_DOWNLOAD
+                && channel.isOpen()) {
+                switch (state) {
+                    case STATE_COMMAND:
+                    case STATE_DOWNLOAD_ACK:
+                        String line = readLine();
+                        if (line == null) {
+                            isProgress = false;
+                        } else {
+                            onLine(line);
+                        }
+                        break;
+                    case STATE_UPLOAD:
+                        int count = (int) Math.min(inputBuffer.remaining(), remaining);
+                        inputBuffer.position(inputBuffer.position() + count);
+                        remaining -= count;
+                        if (remaining == 0) {
+                            long duration = System.nanoTime() - startTime;
+                            state = STATE_COMMAND;
+                            reply("OK " + duration);
+                            reportResult(LinkTestResult.transfer(
+                                LinkTestResult.Type.UPLOAD, byteCount, duration));
+                        }
+                        break;
+                    case STATE_PING:
+                        inputBuffer.get();
+                        onPong();
+                        break;
+                }
+            }
+            if (!channel.isOpen()) {
+                // The buffer is back in the pool
+                return;
+            }
+            inputBuffer.compact();
+            if (state == STATE_COMMAND && !inputBuffer.hasRemaining()) {
+                throw new IOException("Command is too long");
+            }
+        }
+
+        private String readLine() {
+            for (int i = inputBuffer.position(); i < inputBuffer.limit(); i++) {
+                if (inputBuffer.get(i) == '\n') {
+                    byte[] bytes = new byte[i - inputBuffer.position()];
+                    inputBuffer.get(bytes);
+                    inputBuffer.get();
+                    return new String(bytes, CHARSET).trim();
+                }
+            }
+            return null;
+        }
+
+        private void onLine(String line) throws IOException {
+            if (state == STATE_DOWNLOAD_ACK) {
+                if (!line.equals("DONE")) {
+                    throw new IOException("Expected DONE, got: " + line);
+                }
+                long duration = System.nanoTime() - startTime;
+                state = STATE_COMMAND;
+                reply("OK " + duration);
+                reportResult(LinkTestResult.transfer(
+                    LinkTestResult.Type.DOWNLOAD, byteCount, duration));
+                return;
+            }
+            String[] fields = line.split(" +");
+            String command = fields[0].toUpperCase(Locale.US);
+            if (command.equals("QUIT")) {
+                close();
+                return;
+            }
+            long argument;
+            try {
+                argument = fields.length == 2 ? Long.parseLong(fields[1]) : -1;
+            } catch (NumberFormatException e) {
+                argument = -1;
+            }
+            switch (command) {
+                case "UPLOAD":
+                case "DOWNLOAD":
+                    if (argument <= 0 || argument > MAX_TRANSFER_SIZE) {
+                        reply("ERR Size must be between 1 and " + MAX_TRANSFER_SIZE);
+                        return;
+                    }
+                    startTime = System.nanoTime();
+                    byteCount = argument;
+                    remaining = argument;
+                    if (command.equals("UPLOAD")) {
+                        state = STATE_UPLOAD;
+                    } else {
+                        state = STATE_DOWNLOAD;
+                        // Input is ignored until the payload is sent, and if we kept
+                        // reading a client that writes anyway would make us spin once
+                        // the input buffer is full
+                        key.interestOps(SelectionKey.OP_WRITE);
+                    }
+                    break;
+                case "PING":
+                    if (argument <= 0 || argument > MAX_PING_COUNT) {
+                        reply("ERR Count must be between 1 and " + MAX_PING_COUNT);
+                        return;
+                    }
+                    state = STATE_PING;
+                    pingCount = (int) argument;
+                    remaining = argument;
+                    totalRtt = 0;
+                    minRtt = Long.MAX_VALUE;
+                    maxRtt = 0;
+                    sendPing();
+                    break;
+                default:
+                    reply("ERR Unknown command: " + fields[0]);
+                    break;
+            }
+        }
+
+        private void sendPing() throws IOException {
+            pingSentTime = System.nanoTime();
+            write(ByteBuffer.wrap(new byte[] {PING_BYTE}));
+        }
+
+        private void onPong() throws IOException {
+            long rtt = System.nanoTime() - pingSentTime;
+            totalRtt += rtt;
+            minRtt = Math.min(minRtt, rtt);
+            maxRtt = Math.max(maxRtt, rtt);
+            if (--remaining > 0) {
+                sendPing();
+                return;
+            }
+            state = STATE_COMMAND;
+            reply(String.format(Locale.US, "OK %d %d %d", totalRtt / pingCount, minRtt, maxRtt));
+            reportResult(LinkTestResult.ping(pingCount, totalRtt, minRtt, maxRtt));
+        }
+
+        private void reply(String line) throws IOException {
+            write(ByteBuffer.wrap((line + "\n").getBytes(CHARSET)));
+        }
+
+        private void write(ByteBuffer buffer) throws IOException {
+            channel.write(buffer);
+            if (buffer.hasRemaining()) {
+                outputBuffer = buffer;
+                // Same as with downloads, nothing is read until the reply is out
+                key.interestOps(SelectionKey.OP_WRITE);
+            }
+        }
+
+        void close() {
+            if (!sessions.remove(this)) {
+                return;
+            }
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // Already closed
+            }
+            bufferPool.release(inputBuffer);
+        }
+    }
+}
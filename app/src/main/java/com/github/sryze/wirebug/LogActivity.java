@@ -0,0 +1,131 @@
+/*
+ * This file is part of Wirebug.
+ *
+ * Wirebug is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Wirebug is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Wirebug.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.sryze.wirebug;
+
+import android.os.Bundle;
+import androidx.appcompat.app.ActionBar;
+import androidx.appcompat.app.AppCompatActivity;
+import androidx.core.app.NavUtils;
+import android.view.Menu;
+import android.view.MenuInflater;
+import android.view.MenuItem;
+import android.widget.TextView;
+import android.widget.Toast;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+
+import timber.log.Timber;
+
+public class LogActivity extends AppCompatActivity {
+
+    private TextView logTextView;
+
+    @Override
+    protected void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+        setContentView(R.layout.activity_log);
+
+        ActionBar actionBar = getSupportActionBar();
+        if (actionBar != null) {
+            actionBar.setDisplayHomeAsUpEnabled(true);
+        }
+
+        logTextView = (TextView) findViewById(R.id.text_log);
+    }
+
+    @Override
+    protected void onResume() {
+        super.onResume();
+        logTextView.setText(LogBuffer.getBuffer().dumpToString());
+    }
+
+    @Override
+    public boolean onCreateOptionsMenu(Menu menu) {
+        MenuInflater menuInflater = new MenuInflater(this);
+        menuInflater.inflate(R.menu.menu_log, menu);
+        return super.onCreateOptionsMenu(menu);
+    }
+
+    @Override
+    public boolean onOptionsItemSelected(MenuItem item) {
+        int id = item.getItemId();
+        if (id == android.R.id.home) {
+            NavUtils.navigateUpFromSameTask(this);
+            return true;
+        }
+        if (id == R.id.menu_item_export) {
+            exportLog();
+            return true;
+        }
+        return super.onOptionsItemSelected(item);
+    }
+
+    private void exportLog() {
+        File directory = getExternalFilesDir(null);
+        if (directory == null) {
+            // External storage is not mounted
+            directory = getFilesDir();
+        }
+        String fileName = String.format("wirebug-log-%s.txt",
+            new SimpleDateFormat("yyyyMMdd-HHmmss", Locale.US).format(new Date()));
+        final File file = new File(directory, fileName);
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                final boolean isSaved = writeLog(file);
+                runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        String message = isSaved
+                            ? getString(R.string.log_exported, file.getAbsolutePath())
+                            : getString(R.string.log_export_failed);
+                        Toast.makeText(LogActivity.this, message, Toast.LENGTH_LONG).show();
+                    }
+                });
+            }
+        }, "LogExport").start();
+    }
+
+    private static boolean writeLog(File file) {
+        PrintWriter writer = null;
+        try {
+            writer = new PrintWriter(new OutputStreamWriter(new FileOutputStream(file), "UTF-8"));
+            LogBuffer.getBuffer().dump(writer);
+            writer.flush();
+            if (writer.checkError()) {
+                throw new IOException("Error writing to " + file);
+            }
+            Timber.i("Saved log to %s", file);
+            return true;
+        } catch (IOException e) {
+            Timber.e(e, "Could not save log");
+            return false;
+        } finally {
+            if (writer != null) {
+                writer.close();
+            }
+        }
+    }
+}
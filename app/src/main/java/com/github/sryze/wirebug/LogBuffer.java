@@ -0,0 +1,172 @@
+/*
+ * This file is part of Wirebug.
+ *
+ * Wirebug is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Wirebug is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Wirebug.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.sryze.wirebug;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Keeps the most recent log entries in memory, so that logging doesn't depend on logcat.
+ *
+ * Writers never block each other or readers: each entry claims the next sequence number and
+ * is stored in the slot that number maps to, overwriting the oldest entry. Readers skip slots
+ * that have been overwritten (or not written yet) while they were looking. The memory used
+ * is bounded because command output is truncated.
+ */
+public final class LogBuffer {
+
+    public static final int DEFAULT_CAPACITY = 512;
+    static final int MAX_OUTPUT_LENGTH = 1024;
+
+    // Same values as the android.util.Log constants, which aren't available outside Android
+    private static final int PRIORITY_VERBOSE = 2;
+    private static final int PRIORITY_DEBUG = 3;
+    private static final int PRIORITY_WARN = 5;
+    private static final String PRIORITY_LETTERS = "VDIWEA";
+    private static final LogBuffer globalBuffer = new LogBuffer(DEFAULT_CAPACITY);
+
+    private final AtomicReferenceArray<LogEntry> entries;
+    private final int mask;
+    private final AtomicLong nextSequence = new AtomicLong();
+
+    /**
+     * @param capacity maximum number of entries, rounded up to a power of two
+     */
+    public LogBuffer(int capacity) {
+        int size = Integer.highestOneBit(Math.max(capacity - 1, 1)) << 1;
+        entries = new AtomicReferenceArray<>(size);
+        mask = size - 1;
+    }
+
+    public static LogBuffer getBuffer() {
+        return globalBuffer;
+    }
+
+    public int getCapacity() {
+        return entries.length();
+    }
+
+    public void addMessage(int priority, String tag, String message) {
+        long sequence = nextSequence.getAndIncrement();
+        add(new LogEntry(
+            sequence, System.currentTimeMillis(), priority, tag, message, null, 0, 0));
+    }
+
+    public void addCommand(String command, int exitStatus, long durationNanos, String output) {
+        long sequence = nextSequence.getAndIncrement();
+        add(new LogEntry(
+            sequence,
+            System.currentTimeMillis(),
+            exitStatus == 0 ? PRIORITY_DEBUG : PRIORITY_WARN,
+            null,
+            truncate(output),
+            command,
+            exitStatus,
+            durationNanos));
+    }
+
+    /**
+     * Returns the number of entries that have been overwritten by newer ones.
+     */
+    public long getDroppedCount() {
+        return Math.max(nextSequence.get() - entries.length(), 0);
+    }
+
+    /**
+     * Returns a snapshot of the entries, oldest first.
+     */
+    public List<LogEntry> getEntries() {
+        long end = nextSequence.get();
+        long start = Math.max(end - entries.length(), 0);
+        List<LogEntry> snapshot = new ArrayList<>((int) (end - start));
+        for (long sequence = start; sequence < end; sequence++) {
+            LogEntry entry = entries.get((int) (sequence & mask));
+            if (entry != null && entry.getSequence() == sequence) {
+                snapshot.add(entry);
+            }
+        }
+        return snapshot;
+    }
+
+    public void dump(PrintWriter writer) {
+        SimpleDateFormat dateFormat = new SimpleDateFormat("MM-dd HH:mm:ss.SSS", Locale.US);
+        long droppedCount = getDroppedCount();
+        if (droppedCount > 0) {
+            writer.printf("(%d older entries dropped)%n", droppedCount);
+        }
+        for (LogEntry entry : getEntries()) {
+            writer.print(dateFormat.format(new Date(entry.getTimestamp())));
+            writer.print(' ');
+            writer.print(getPriorityLetter(entry.getPriority()));
+            writer.print(' ');
+            if (entry.isCommand()) {
+                writer.printf("$ %s [exit %d, %.1f ms]%n",
+                    entry.getCommand(),
+                    entry.getExitStatus(),
+                    entry.getDurationNanos() / 1e6);
+                if (!entry.getMessage().isEmpty()) {
+                    writer.println(entry.getMessage().trim());
+                }
+            } else {
+                if (entry.getTag() != null) {
+                    writer.print(entry.getTag());
+                    writer.print(": ");
+                }
+                writer.println(entry.getMessage());
+            }
+        }
+    }
+
+    public String dumpToString() {
+        StringWriter stringWriter = new StringWriter();
+        PrintWriter writer = new PrintWriter(stringWriter);
+        dump(writer);
+        writer.flush();
+        return stringWriter.toString();
+    }
+
+    private void add(LogEntry entry) {
+        entries.set((int) (entry.getSequence() & mask), entry);
+    }
+
+    private static String truncate(String output) {
+        if (output == null) {
+            return "";
+        }
+        if (output.length() <= MAX_OUTPUT_LENGTH) {
+            return output;
+        }
+        return output.substring(0, MAX_OUTPUT_LENGTH)
+            + String.format(Locale.US, "... (%d more characters)",
+                output.length() - MAX_OUTPUT_LENGTH);
+    }
+
+    private static char getPriorityLetter(int priority) {
+        int index = priority - PRIORITY_VERBOSE;
+        return index >= 0 && index < PRIORITY_LETTERS.length()
+            ? PRIORITY_LETTERS.charAt(index)
+            : '?';
+    }
+}
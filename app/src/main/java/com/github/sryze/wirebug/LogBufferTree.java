@@ -0,0 +1,45 @@
+/*
+ * This file is part of Wirebug.
+ *
+ * Wirebug is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Wirebug is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Wirebug.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.sryze.wirebug;
+
+import android.util.Log;
+
+import timber.log.Timber;
+
+/**
+ * Sends log messages to a {@link LogBuffer}, so that they can be viewed in the app.
+ */
+class LogBufferTree extends Timber.Tree {
+
+    private final LogBuffer buffer;
+
+    LogBufferTree(LogBuffer buffer) {
+        this.buffer = buffer;
+    }
+
+    @Override
+    protected boolean isLoggable(int priority) {
+        return priority >= Log.DEBUG;
+    }
+
+    @Override
+    protected void log(int priority, String tag, String message, Throwable t) {
+        // Timber has already appended the stack trace of t (if any) to the message
+        buffer.addMessage(priority, tag, message);
+    }
+}
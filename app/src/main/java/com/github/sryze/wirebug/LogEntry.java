@@ -0,0 +1,100 @@
+/*
+ * This file is part of Wirebug.
+ *
+ * Wirebug is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Wirebug is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Wirebug.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.sryze.wirebug;
+
+/**
+ * An entry of {@link LogBuffer}: either a log message or a command run by {@link Shell}.
+ */
+public final class LogEntry {
+
+    private final long sequence;
+    private final long timestamp;
+    private final int priority;
+    private final String tag;
+    private final String message;
+    private final String command;
+    private final int exitStatus;
+    private final long durationNanos;
+
+    LogEntry(
+            long sequence,
+            long timestamp,
+            int priority,
+            String tag,
+            String message,
+            String command,
+            int exitStatus,
+            long durationNanos) {
+        this.sequence = sequence;
+        this.timestamp = timestamp;
+        this.priority = priority;
+        this.tag = tag;
+        this.message = message;
+        this.command = command;
+        this.exitStatus = exitStatus;
+        this.durationNanos = durationNanos;
+    }
+
+    long getSequence() {
+        return sequence;
+    }
+
+    /**
+     * Returns the time of the entry as returned by {@link System#currentTimeMillis()}.
+     */
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    /**
+     * Returns the priority of the message, one of the android.util.Log constants.
+     */
+    public int getPriority() {
+        return priority;
+    }
+
+    public String getTag() {
+        return tag;
+    }
+
+    /**
+     * Returns the message, or the (possibly truncated) output if this is a command.
+     */
+    public String getMessage() {
+        return message;
+    }
+
+    public boolean isCommand() {
+        return command != null;
+    }
+
+    /**
+     * Returns the command line, or null if this is a regular message.
+     */
+    public String getCommand() {
+        return command;
+    }
+
+    public int getExitStatus() {
+        return exitStatus;
+    }
+
+    public long getDurationNanos() {
+        return durationNanos;
+    }
+}
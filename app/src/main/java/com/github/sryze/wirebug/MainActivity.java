@@ -19,20 +19,14 @@ package com.github.sryze.wirebug;
 
 import android.app.ActivityManager;
 import android.app.AlertDialog;
-import android.content.BroadcastReceiver;
-import android.content.Context;
 import android.content.Intent;
-import android.content.IntentFilter;
 import android.content.SharedPreferences;
 import android.graphics.BitmapFactory;
-import android.net.ConnectivityManager;
-import android.net.NetworkInfo;
-import android.net.wifi.WifiManager;
 import android.os.Bundle;
 import android.preference.PreferenceManager;
+import android.text.TextUtils;
 import androidx.core.content.ContextCompat;
 import androidx.appcompat.app.AppCompatActivity;
-import android.util.Log;
 import android.view.Menu;
 import android.view.MenuInflater;
 import android.view.MenuItem;
@@ -42,26 +36,36 @@ import android.widget.TextView;
 import android.widget.Toast;
 import android.widget.ToggleButton;
 
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.text.DateFormat;
+import java.util.Date;
+import java.util.List;
+
 import timber.log.Timber;
 
 public class MainActivity extends AppCompatActivity {
 
     private static final String WARNED_ABOUT_ROOT_KEY = "warned_about_root";
+    private static final int MAX_LINK_TEST_RESULTS_SHOWN = 5;
 
     private ToggleButton toggleDebuggingButton;
     private View connectedView;
     private View instructionsView;
     private TextView connectCommandTextView;
+    private TextView connectedHostsTextView;
     private TextView wifiNetworkTextView;
+    private TextView linkTestTextView;
     private View notConnectedView;
 
     private CompoundButton.OnCheckedChangeListener enableSwitchChangeListener;
-    private BroadcastReceiver networkStateChangedReceiver;
-    private BroadcastReceiver debugStatusChangedReceiver;
+    private DebugStatusStore.Listener statusListener;
+    private DebugToggleController.Listener toggleStateListener;
 
     private SharedPreferences preferences;
-    private ConnectivityManager connectivityManager;
-    private WifiManager wifiManager;
+    private LinkTestHistory linkTestHistory;
+    private LinkTestServer linkTestServer;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -80,116 +84,105 @@ public class MainActivity extends AppCompatActivity {
         connectedView = findViewById(R.id.view_connected);
         instructionsView = findViewById(R.id.view_instructions);
         connectCommandTextView = (TextView) findViewById(R.id.text_connect_command);
+        connectedHostsTextView = (TextView) findViewById(R.id.text_connected_hosts);
         wifiNetworkTextView = (TextView) findViewById(R.id.text_wifi_network);
+        linkTestTextView = (TextView) findViewById(R.id.text_link_test);
         notConnectedView = findViewById(R.id.view_not_connected);
 
         enableSwitchChangeListener = new CompoundButton.OnCheckedChangeListener() {
             @Override
             public void onCheckedChanged(CompoundButton buttonView, boolean isChecked) {
-                DebugManager.setTcpDebuggingEnabled(isChecked);
-                boolean isActuallyEnabled = DebugManager.isTcpDebuggingEnabled();
-                if (isChecked == isActuallyEnabled) {
-                    updateInstructions(isChecked);
-                    updateStatus();
-                } else {
-                    Timber.i("Could NOT %s debugging", isChecked ? "enable" : "disable");
-                    String toastText = isChecked
-                        ? getString(R.string.could_not_enable)
-                        : getString(R.string.could_not_disable);
-                    Toast.makeText(MainActivity.this, toastText, Toast.LENGTH_SHORT).show();
-                    toggleDebuggingButton.setChecked(isActuallyEnabled);
-                }
+                DebugToggleController.getController().setEnabled(isChecked);
+            }
+        };
+
+        toggleStateListener = new DebugToggleController.Listener() {
+            @Override
+            public void onStateChanged(DebugToggleController.State state) {
+                onToggleStateChanged(state);
             }
         };
 
-        Shell.getShell().setLoggingEnabled(true);
-        Shell.getShell().setLogPriority(Log.DEBUG);
+        statusListener = new DebugStatusStore.Listener() {
+            @Override
+            public void onStatusChanged(DebugStatus status, int changes) {
+                onDebugStatusChanged(status, changes);
+            }
+        };
 
         preferences = PreferenceManager.getDefaultSharedPreferences(this);
-        connectivityManager = (ConnectivityManager) getSystemService(CONNECTIVITY_SERVICE);
-        wifiManager = (WifiManager) getApplicationContext().getSystemService(WIFI_SERVICE);
+        linkTestHistory = new LinkTestHistory(this);
     }
 
     @Override
     protected void onStart() {
         super.onStart();
 
-        if (!preferences.getBoolean(WARNED_ABOUT_ROOT_KEY, false)
-            && !Shell.getShell().canExecAsRoot()) {
-            new AlertDialog.Builder(this)
-                .setTitle(R.string.warning)
-                .setMessage(R.string.not_rooted)
-                .setPositiveButton(R.string.ok, null)
-                .show();
-            preferences.edit().putBoolean(WARNED_ABOUT_ROOT_KEY, true).apply();
+        if (!preferences.getBoolean(WARNED_ABOUT_ROOT_KEY, false)) {
+            RootCapabilityCache.getCache().refreshIfStale(new RootCapabilityCache.Listener() {
+                @Override
+                public void onProbeFinished(RootCapabilityCache cache) {
+                    if (!cache.isRooted()) {
+                        showNotRootedWarning();
+                    }
+                }
+            });
+        } else {
+            RootCapabilityCache.getCache().refreshIfStale(null);
         }
     }
 
+    private void showNotRootedWarning() {
+        if (isFinishing() || preferences.getBoolean(WARNED_ABOUT_ROOT_KEY, false)) {
+            return;
+        }
+        new AlertDialog.Builder(this)
+            .setTitle(R.string.warning)
+            .setMessage(R.string.not_rooted)
+            .setPositiveButton(R.string.ok, null)
+            .show();
+        preferences.edit().putBoolean(WARNED_ABOUT_ROOT_KEY, true).apply();
+    }
+
     @Override
     protected void onResume() {
         super.onResume();
 
-        boolean isConnected = NetworkUtils.isConnectedToWifi(connectivityManager);
-        connectedView.setVisibility(isConnected ? View.VISIBLE : View.GONE);
-        notConnectedView.setVisibility(isConnected ? View.GONE : View.VISIBLE);
+        DebugStatusStore store = DebugStatusStore.getStore();
+        store.addListener(statusListener);
+        updateConnectedState(store.getStatus().getConnectivity());
+        updateConnectedHosts(store.getStatus().getConnectedHosts());
 
-        boolean isEnabled = DebugManager.isTcpDebuggingEnabled();
-        updateInstructions(isEnabled);
+        DebugToggleController controller = DebugToggleController.getController();
+        controller.addListener(toggleStateListener);
+        controller.refresh();
+        updateInstructions(controller.isEnabled());
+        setToggleChecked(controller.isTargetEnabled());
         updateStatus();
-
-        toggleDebuggingButton.setOnCheckedChangeListener(null);
-        toggleDebuggingButton.setChecked(isEnabled);
-        toggleDebuggingButton.setOnCheckedChangeListener(enableSwitchChangeListener);
-
-        networkStateChangedReceiver = new BroadcastReceiver() {
-            @Override
-            public void onReceive(Context context, Intent intent) {
-                Timber.d("Received network state changed broadcast");
-                NetworkInfo networkInfo = intent.getParcelableExtra(WifiManager.EXTRA_NETWORK_INFO);
-                switch (networkInfo.getState()) {
-                    case CONNECTED:
-                        connectedView.setVisibility(View.VISIBLE);
-                        notConnectedView.setVisibility(View.INVISIBLE);
-                        break;
-                    case DISCONNECTED:
-                        connectedView.setVisibility(View.GONE);
-                        notConnectedView.setVisibility(View.VISIBLE);
-                        break;
-                }
-                updateConnectionInfo();
-            }
-        };
-        registerReceiver(networkStateChangedReceiver,
-            new IntentFilter(WifiManager.NETWORK_STATE_CHANGED_ACTION));
-
-        debugStatusChangedReceiver = new BroadcastReceiver() {
-            @Override
-            public void onReceive(Context context, Intent intent) {
-                Timber.d("Received debug state change broadcast");
-                boolean isEnabled =
-                    intent.getBooleanExtra(DebugStatusService.EXTRA_IS_ENABLED, false);
-                updateInstructions(isEnabled);
-                toggleDebuggingButton.setOnCheckedChangeListener(null);
-                toggleDebuggingButton.setChecked(isEnabled);
-                toggleDebuggingButton.setOnCheckedChangeListener(enableSwitchChangeListener);
-            }
-        };
-        registerReceiver(debugStatusChangedReceiver,
-            new IntentFilter(DebugStatusService.ACTION_STATUS_CHANGED));
+        updateLinkTestResults();
     }
 
     @Override
     protected void onPause() {
         super.onPause();
 
-        unregisterReceiver(networkStateChangedReceiver);
-        unregisterReceiver(debugStatusChangedReceiver);
+        DebugStatusStore.getStore().removeListener(statusListener);
+        DebugToggleController.getController().removeListener(toggleStateListener);
+    }
+
+    @Override
+    protected void onStop() {
+        super.onStop();
+
+        // Nobody is going to look at the results
+        stopLinkTest();
     }
 
     @Override
     public boolean onCreateOptionsMenu(Menu menu) {
         MenuInflater menuInflater = new MenuInflater(this);
         menuInflater.inflate(R.menu.menu_main, menu);
+        menu.findItem(R.id.menu_item_link_test).setChecked(linkTestServer != null);
         return super.onCreateOptionsMenu(menu);
     }
 
@@ -197,20 +190,181 @@ public class MainActivity extends AppCompatActivity {
     public boolean onOptionsItemSelected(MenuItem item) {
         switch (item.getItemId()) {
             case R.id.menu_item_settings:
-                Intent intent = new Intent(this, SettingsActivity.class);
-                startActivity(intent);
+                startActivity(new Intent(this, SettingsActivity.class));
+                break;
+            case R.id.menu_item_diagnostics:
+                startActivity(new Intent(this, DiagnosticsActivity.class));
+                break;
+            case R.id.menu_item_log:
+                startActivity(new Intent(this, LogActivity.class));
+                break;
+            case R.id.menu_item_link_test:
+                if (linkTestServer != null) {
+                    stopLinkTest();
+                } else {
+                    startLinkTest();
+                }
                 break;
         }
         return super.onOptionsItemSelected(item);
     }
 
+    private void onToggleStateChanged(DebugToggleController.State state) {
+        Timber.d("Toggle state: %s", state);
+        DebugToggleController controller = DebugToggleController.getController();
+        switch (state) {
+            case ENABLED:
+            case IDLE:
+                updateInstructions(state == DebugToggleController.State.ENABLED);
+                setToggleChecked(state == DebugToggleController.State.ENABLED);
+                updateStatus();
+                break;
+            case FAILED:
+                String toastText = controller.isTargetEnabled()
+                    ? getString(R.string.could_not_enable)
+                    : getString(R.string.could_not_disable);
+                Toast.makeText(this, toastText, Toast.LENGTH_SHORT).show();
+                updateInstructions(controller.isEnabled());
+                setToggleChecked(controller.isEnabled());
+                updateStatus();
+                break;
+            default:
+                // Still in progress; the toggle already shows where we're heading
+                break;
+        }
+    }
+
+    private void onDebugStatusChanged(DebugStatus status, int changes) {
+        if ((changes & DebugStatus.FIELD_CONNECTIVITY) != 0) {
+            Timber.d("Connectivity has changed");
+            updateConnectedState(status.getConnectivity());
+            updateConnectionInfo();
+            if (linkTestServer != null) {
+                // Move the server to the new address
+                stopLinkTest();
+                startLinkTest();
+            }
+        }
+        if ((changes & DebugStatus.FIELD_ENABLED) != 0) {
+            Timber.d("Debugging status has changed");
+            updateInstructions(status.isEnabled());
+            setToggleChecked(status.isEnabled());
+        }
+        if ((changes & DebugStatus.FIELD_CONNECTED_HOSTS) != 0) {
+            updateConnectedHosts(status.getConnectedHosts());
+        }
+    }
+
+    private void setToggleChecked(boolean isChecked) {
+        toggleDebuggingButton.setOnCheckedChangeListener(null);
+        toggleDebuggingButton.setChecked(isChecked);
+        toggleDebuggingButton.setOnCheckedChangeListener(enableSwitchChangeListener);
+    }
+
+    private void updateConnectedState(ConnectivitySnapshot snapshot) {
+        boolean isConnected = snapshot.isConnectedToWifi();
+        connectedView.setVisibility(isConnected ? View.VISIBLE : View.GONE);
+        notConnectedView.setVisibility(isConnected ? View.GONE : View.VISIBLE);
+    }
+
     private void updateConnectionInfo() {
+        ConnectivitySnapshot snapshot = DebugStatusStore.getStore().getStatus().getConnectivity();
         connectCommandTextView.setText(String.format(
             "adb connect %s",
-            NetworkUtils.getWifiIpAddressString(wifiManager)));
+            snapshot.getPreferredAddress()));
         wifiNetworkTextView.setText(String.format(
             getString(R.string.wifi_network),
-            NetworkUtils.getWifiNetworkName(wifiManager)));
+            snapshot.getSsid()));
+    }
+
+    private void updateConnectedHosts(List<String> hosts) {
+        if (hosts.isEmpty()) {
+            connectedHostsTextView.setVisibility(View.GONE);
+        } else {
+            connectedHostsTextView.setText(String.format(
+                getString(R.string.connected_hosts),
+                TextUtils.join(", ", hosts)));
+            connectedHostsTextView.setVisibility(View.VISIBLE);
+        }
+    }
+
+    private void startLinkTest() {
+        InetAddress address =
+            DebugStatusStore.getStore().getStatus().getConnectivity().getPreferredInetAddress();
+        if (address == null) {
+            Toast.makeText(this, R.string.link_test_not_connected, Toast.LENGTH_SHORT).show();
+            return;
+        }
+        LinkTestServer server = new LinkTestServer(
+            new InetSocketAddress(address, LinkTestServer.DEFAULT_PORT),
+            new LinkTestServer.Listener() {
+                @Override
+                public void onTestFinished(final LinkTestResult result) {
+                    runOnUiThread(new Runnable() {
+                        @Override
+                        public void run() {
+                            linkTestHistory.add(result);
+                            updateLinkTestResults();
+                        }
+                    });
+                }
+            });
+        try {
+            server.start();
+            linkTestServer = server;
+        } catch (IOException e) {
+            Timber.e("Could not start link test server: %s", e.getMessage());
+        }
+        invalidateOptionsMenu();
+        updateLinkTestResults();
+    }
+
+    private void stopLinkTest() {
+        if (linkTestServer == null) {
+            return;
+        }
+        linkTestServer.stop();
+        linkTestServer = null;
+        invalidateOptionsMenu();
+        updateLinkTestResults();
+    }
+
+    private void updateLinkTestResults() {
+        StringBuilder text = new StringBuilder();
+        if (linkTestServer != null) {
+            text.append(String.format(
+                getString(R.string.link_test_listening),
+                DebugStatusStore.getStore().getStatus().getConnectivity().getPreferredAddress(),
+                linkTestServer.getLocalPort()));
+        }
+        List<LinkTestResult> results = linkTestHistory.getResults();
+        for (int i = 0; i < Math.min(results.size(), MAX_LINK_TEST_RESULTS_SHOWN); i++) {
+            if (text.length() > 0) {
+                text.append('\n');
+            }
+            text.append(formatLinkTestResult(results.get(i)));
+        }
+        linkTestTextView.setText(text);
+        linkTestTextView.setVisibility(text.length() > 0 ? View.VISIBLE : View.GONE);
+    }
+
+    private String formatLinkTestResult(LinkTestResult result) {
+        String time = DateFormat.getTimeInstance(DateFormat.SHORT)
+            .format(new Date(result.getTimestamp()));
+        switch (result.getType()) {
+            case UPLOAD:
+                return String.format(getString(R.string.link_test_upload),
+                    time, result.getMegabitsPerSecond());
+            case DOWNLOAD:
+                return String.format(getString(R.string.link_test_download),
+                    time, result.getMegabitsPerSecond());
+            default:
+                return String.format(getString(R.string.link_test_ping),
+                    time,
+                    result.getAverageRttMillis(),
+                    result.getMinRttMillis(),
+                    result.getMaxRttMillis());
+        }
     }
 
     private void updateInstructions(boolean isVisible) {
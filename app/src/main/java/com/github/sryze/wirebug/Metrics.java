@@ -0,0 +1,134 @@
+/*
+ * This file is part of Wirebug.
+ *
+ * Wirebug is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Wirebug is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Wirebug.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.sryze.wirebug;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Process-wide registry of counters and latency histograms. Metrics are created on first
+ * use and live as long as the process does.
+ */
+public final class Metrics {
+
+    public static final String SHELL_EXEC = "shell.exec";
+    public static final String SHELL_EXEC_ROOT = "shell.exec_root";
+    public static final String SHELL_SPAWNS = "shell.spawns";
+    public static final String SHELL_FAILURES = "shell.failures";
+    public static final String SHELL_TIMEOUTS = "shell.timeouts";
+    public static final String SHELL_COALESCED = "shell.coalesced";
+    public static final String ROOT_HELPER_START = "root_helper.start";
+    public static final String ROOT_HELPER_FAILURES = "root_helper.failures";
+    public static final String DEBUG_APPLY_PORT = "debug.apply_port";
+    public static final String DEBUG_APPLY_PORT_FAILURES = "debug.apply_port_failures";
+    public static final String STATUS_UPDATE = "status.update";
+    public static final String IDLE_DISABLES = "status.idle_disables";
+    public static final String WAKE_LOCK_ACQUISITIONS = "wake_lock.acquisitions";
+    public static final String WAKE_LOCK_HELD_MILLIS = "wake_lock.held_millis";
+    public static final String ADB_HANDSHAKE = "adb.handshake";
+    public static final String BOOT_TO_READY = "boot.to_ready";
+    public static final String RELAY_CONNECTIONS = "relay.connections";
+    public static final String RELAY_REJECTED = "relay.rejected";
+    public static final String RELAY_CONNECT = "relay.connect";
+    public static final String RELAY_RESPONSE = "relay.response";
+    public static final String RELAY_BYTES_FROM_CLIENT = "relay.bytes_from_client";
+    public static final String RELAY_BYTES_TO_CLIENT = "relay.bytes_to_client";
+
+    private static final ConcurrentMap<String, Counter> counters = new ConcurrentHashMap<>();
+    private static final ConcurrentMap<String, LatencyHistogram> histograms =
+        new ConcurrentHashMap<>();
+
+    private Metrics() {
+    }
+
+    public static Counter counter(String name) {
+        Counter counter = counters.get(name);
+        if (counter == null) {
+            Counter newCounter = new Counter();
+            counter = counters.putIfAbsent(name, newCounter);
+            if (counter == null) {
+                counter = newCounter;
+            }
+        }
+        return counter;
+    }
+
+    public static LatencyHistogram histogram(String name) {
+        LatencyHistogram histogram = histograms.get(name);
+        if (histogram == null) {
+            LatencyHistogram newHistogram = new LatencyHistogram();
+            histogram = histograms.putIfAbsent(name, newHistogram);
+            if (histogram == null) {
+                histogram = newHistogram;
+            }
+        }
+        return histogram;
+    }
+
+    public static SortedMap<String, Counter> getCounters() {
+        return new TreeMap<>(counters);
+    }
+
+    public static SortedMap<String, LatencyHistogram> getHistograms() {
+        return new TreeMap<>(histograms);
+    }
+
+    public static void dump(PrintWriter writer) {
+        writer.println("Counters:");
+        for (Map.Entry<String, Counter> entry : getCounters().entrySet()) {
+            writer.printf("  %s: %d%n", entry.getKey(), entry.getValue().get());
+        }
+        writer.println("Latencies:");
+        for (Map.Entry<String, LatencyHistogram> entry : getHistograms().entrySet()) {
+            writer.printf("  %s: %s%n", entry.getKey(), entry.getValue());
+        }
+    }
+
+    /**
+     * Writes all metrics in the Prometheus text format. Names get a "wirebug_" prefix and
+     * dots are replaced with underscores; histograms are in seconds.
+     */
+    public static void dumpPrometheus(PrintWriter writer) {
+        for (Map.Entry<String, Counter> entry : getCounters().entrySet()) {
+            String name = getPrometheusName(entry.getKey()) + "_total";
+            writer.printf("# TYPE %s counter%n", name);
+            writer.printf("%s %d%n", name, entry.getValue().get());
+        }
+        for (Map.Entry<String, LatencyHistogram> entry : getHistograms().entrySet()) {
+            entry.getValue().dumpPrometheus(
+                writer, getPrometheusName(entry.getKey()) + "_seconds");
+        }
+    }
+
+    public static String dumpToString() {
+        StringWriter stringWriter = new StringWriter();
+        PrintWriter writer = new PrintWriter(stringWriter);
+        dump(writer);
+        writer.flush();
+        return stringWriter.toString();
+    }
+
+    private static String getPrometheusName(String name) {
+        return "wirebug_" + name.replace('.', '_');
+    }
+}
@@ -17,45 +17,31 @@
 
 package com.github.sryze.wirebug;
 
-import android.net.ConnectivityManager;
-import android.net.Network;
-import android.net.NetworkInfo;
-import android.net.wifi.WifiManager;
-import android.os.Build;
-
+import java.net.InetAddress;
+import java.net.UnknownHostException;
 import java.util.Locale;
 
 public class NetworkUtils {
 
-    public static boolean isConnectedToWifi(ConnectivityManager connectivityManager) {
-        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
-            for (Network network : connectivityManager.getAllNetworks()) {
-                NetworkInfo networkInfo = connectivityManager.getNetworkInfo(network);
-                if (networkInfo.getType() == ConnectivityManager.TYPE_WIFI
-                    && networkInfo.isConnected()) {
-                    return true;
-                }
-            }
-        } else {
-            for (NetworkInfo networkInfo : connectivityManager.getAllNetworkInfo()) {
-                if (networkInfo.getType() == ConnectivityManager.TYPE_WIFI
-                    && networkInfo.isConnected()) {
-                    return true;
-                }
-            }
+    /**
+     * Converts an address returned by WifiInfo.getIpAddress() to an InetAddress.
+     */
+    static InetAddress getInetAddressFromIpAddress(int ipAddress) {
+        byte[] bytes = {
+            (byte) (ipAddress & 0xFF),
+            (byte) ((ipAddress >> 8) & 0xFF),
+            (byte) ((ipAddress >> 16) & 0xFF),
+            (byte) ((ipAddress >> 24) & 0xFF)
+        };
+        try {
+            return InetAddress.getByAddress(bytes);
+        } catch (UnknownHostException e) {
+            // Only thrown if the address has an illegal length
+            throw new AssertionError(e);
         }
-        return false;
-    }
-
-    public static String getWifiNetworkName(WifiManager wifiManager) {
-        return wifiManager.getConnectionInfo().getSSID();
-    }
-
-    public static String getWifiIpAddressString(WifiManager wifiManager) {
-        return getStringFromIpAddress(wifiManager.getConnectionInfo().getIpAddress());
     }
 
-    private static String getStringFromIpAddress(int ipAddress) {
+    static String getStringFromIpAddress(int ipAddress) {
         return String.format(Locale.getDefault(),
             "%d.%d.%d.%d",
             ipAddress & 0xFF,
@@ -0,0 +1,118 @@
+/*
+ * This file is part of Wirebug.
+ *
+ * Wirebug is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Wirebug is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Wirebug.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.sryze.wirebug;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+
+import timber.log.Timber;
+
+/**
+ * Collects command output up to a fixed number of characters. What doesn't fit is either
+ * dropped or, if a spill directory is given, written to a file in that directory along
+ * with everything that came before it.
+ */
+class OutputBuffer implements Shell.OutputListener {
+
+    private final int maxLength;
+    private final File spillDirectory;
+    private final StringBuilder builder = new StringBuilder();
+
+    private boolean isTruncated;
+    private File spillFile;
+    private Writer spillWriter;
+
+    OutputBuffer(int maxLength, File spillDirectory) {
+        this.maxLength = maxLength;
+        this.spillDirectory = spillDirectory;
+    }
+
+    @Override
+    public synchronized void onOutputLine(String line, boolean isError) {
+        append(line);
+        append("\n");
+    }
+
+    synchronized void append(CharSequence text) {
+        if (spillWriter != null) {
+            spill(text);
+            return;
+        }
+        if (isTruncated) {
+            return;
+        }
+        int available = maxLength - builder.length();
+        if (text.length() <= available) {
+            builder.append(text);
+            return;
+        }
+        isTruncated = true;
+        if (spillDirectory != null && startSpilling()) {
+            spill(text);
+        }
+        builder.append(text, 0, Math.max(available, 0));
+    }
+
+    synchronized String getOutput() {
+        return builder.toString();
+    }
+
+    synchronized boolean isTruncated() {
+        return isTruncated;
+    }
+
+    synchronized File getSpillFile() {
+        return spillFile;
+    }
+
+    synchronized void close() {
+        if (spillWriter != null) {
+            try {
+                spillWriter.close();
+            } catch (IOException e) {
+                Timber.e("Error closing spill file: %s", e.getMessage());
+            }
+            spillWriter = null;
+        }
+    }
+
+    private boolean startSpilling() {
+        try {
+            spillFile = File.createTempFile("output", ".txt", spillDirectory);
+            spillWriter = new FileWriter(spillFile);
+            spillWriter.append(builder);
+            return true;
+        } catch (IOException e) {
+            Timber.e("Error creating spill file, output will be truncated: %s", e.getMessage());
+            spillFile = null;
+            spillWriter = null;
+            return false;
+        }
+    }
+
+    private void spill(CharSequence text) {
+        try {
+            spillWriter.append(text);
+        } catch (IOException e) {
+            Timber.e("Error writing to spill file: %s", e.getMessage());
+            close();
+        }
+    }
+}
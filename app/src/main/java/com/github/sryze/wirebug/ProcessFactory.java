@@ -0,0 +1,31 @@
+/*
+ * This file is part of Wirebug.
+ *
+ * Wirebug is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Wirebug is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Wirebug.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.sryze.wirebug;
+
+import java.io.IOException;
+
+/**
+ * Starts processes for {@link Shell}. {@link Runtime} itself can't be subclassed, so this
+ * is what allows Shell to run against fake processes, e.g. in benchmarks.
+ */
+public interface ProcessFactory {
+
+    Process exec(String command) throws IOException;
+
+    Process exec(String[] args) throws IOException;
+}
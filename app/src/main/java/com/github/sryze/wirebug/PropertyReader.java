@@ -0,0 +1,71 @@
+/*
+ * This file is part of Wirebug.
+ *
+ * Wirebug is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Wirebug is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Wirebug.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.sryze.wirebug;
+
+/**
+ * Entry point for reading system properties. Uses the fastest source available on this
+ * device; a different source can be injected for testing.
+ */
+public class PropertyReader {
+
+    private static PropertyReader globalReader;
+
+    private final PropertySource source;
+
+    public PropertyReader(PropertySource source) {
+        this.source = source;
+    }
+
+    public static synchronized PropertyReader getReader() {
+        if (globalReader == null) {
+            PropertySource source = ReflectionPropertySource.create();
+            if (source == null) {
+                source = new GetpropPropertySource(Shell.getShell());
+            }
+            globalReader = new PropertyReader(source);
+        }
+        return globalReader;
+    }
+
+    public static synchronized void setReader(PropertyReader reader) {
+        globalReader = reader;
+    }
+
+    public String get(String name) {
+        return source.get(name);
+    }
+
+    public int getInt(String name, int defaultValue) {
+        return parseInt(source.get(name), defaultValue);
+    }
+
+    public AdbProperties getAdbProperties() {
+        return AdbProperties.fromValues(source.get(AdbProperties.NAMES));
+    }
+
+    static int parseInt(String value, int defaultValue) {
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+}
@@ -0,0 +1,42 @@
+/*
+ * This file is part of Wirebug.
+ *
+ * Wirebug is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Wirebug is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Wirebug.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.sryze.wirebug;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Something that system properties can be read from. Properties that are not set have an
+ * empty value, just like with getprop.
+ */
+public abstract class PropertySource {
+
+    public abstract String get(String name);
+
+    /**
+     * Reads several properties at once. Sources for which a single read is expensive
+     * should override this to fetch all of them in one go.
+     */
+    public Map<String, String> get(String[] names) {
+        Map<String, String> values = new HashMap<>();
+        for (String name : names) {
+            values.put(name, get(name));
+        }
+        return values;
+    }
+}
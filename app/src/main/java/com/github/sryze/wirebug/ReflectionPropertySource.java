@@ -0,0 +1,70 @@
+/*
+ * This file is part of Wirebug.
+ *
+ * Wirebug is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Wirebug is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Wirebug.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.sryze.wirebug;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+
+import timber.log.Timber;
+
+/**
+ * Reads properties in-process via the hidden android.os.SystemProperties class, i.e.
+ * straight from the shared property area without spawning getprop.
+ */
+public class ReflectionPropertySource extends PropertySource {
+
+    private static final String SYSTEM_PROPERTIES_CLASS = "android.os.SystemProperties";
+
+    private final Method getMethod;
+
+    private ReflectionPropertySource(Method getMethod) {
+        this.getMethod = getMethod;
+    }
+
+    /**
+     * Returns a new source, or null if SystemProperties is not accessible (e.g. when
+     * running outside of Android).
+     */
+    public static ReflectionPropertySource create() {
+        try {
+            Class<?> systemPropertiesClass = Class.forName(SYSTEM_PROPERTIES_CLASS);
+            Method getMethod = systemPropertiesClass.getMethod("get", String.class);
+            // Make sure it actually works rather than failing later on every call
+            getMethod.invoke(null, "ro.build.version.sdk");
+            return new ReflectionPropertySource(getMethod);
+        } catch (ClassNotFoundException
+            | NoSuchMethodException
+            | IllegalAccessException
+            | InvocationTargetException
+            | SecurityException e) {
+            Timber.w("SystemProperties is not available: %s", e.toString());
+            return null;
+        }
+    }
+
+    @Override
+    public String get(String name) {
+        try {
+            String value = (String) getMethod.invoke(null, name);
+            return value != null ? value : "";
+        } catch (IllegalAccessException | InvocationTargetException e) {
+            Timber.e("Error reading property %s: %s", name, e.toString());
+            return "";
+        }
+    }
+}
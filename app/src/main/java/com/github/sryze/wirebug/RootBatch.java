@@ -0,0 +1,232 @@
+/*
+ * This file is part of Wirebug.
+ *
+ * Wirebug is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Wirebug is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Wirebug.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.sryze.wirebug;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * A sequence of root commands that is run as a single script, i.e. with a single privilege
+ * escalation. Execution stops at the first step that fails, after which the rollback
+ * commands of all preceding steps are run in reverse order.
+ *
+ * The script echoes a marker line before and after each step, which lets us report the
+ * progress and pick out the output and exit status of every step.
+ */
+public class RootBatch {
+
+    /**
+     * Called as steps are started, on the thread that executes the batch.
+     */
+    public interface ProgressListener {
+        void onStepStarted(int step);
+    }
+
+    private final List<String> commands = new ArrayList<>();
+    private final List<String> rollbackCommands = new ArrayList<>();
+    private final String marker =
+        "__wirebug_batch_" + UUID.randomUUID().toString().replace("-", "") + "__";
+
+    public RootBatch add(String command) {
+        return add(command, null);
+    }
+
+    /**
+     * Adds a step along with a command that undoes it. The rollback command is run if one
+     * of the following steps fails.
+     */
+    public RootBatch add(String command, String rollbackCommand) {
+        commands.add(command);
+        rollbackCommands.add(rollbackCommand);
+        return this;
+    }
+
+    public int size() {
+        return commands.size();
+    }
+
+    String toScript() {
+        StringBuilder script = new StringBuilder();
+        script.append("wirebug_failed=-1\n");
+        for (int i = 0; i < commands.size(); i++) {
+            script.append("if [ $wirebug_failed -lt 0 ]; then\n");
+            appendStep(script, "begin", "end", i, commands.get(i));
+            script.append("[ $wirebug_status -eq 0 ] || wirebug_failed=").append(i).append("\n");
+            script.append("fi\n");
+        }
+        for (int i = commands.size() - 1; i >= 0; i--) {
+            String rollbackCommand = rollbackCommands.get(i);
+            if (rollbackCommand == null) {
+                continue;
+            }
+            script.append("if [ $wirebug_failed -gt ").append(i).append(" ]; then\n");
+            appendStep(script, "rollback_begin", "rollback_end", i, rollbackCommand);
+            script.append("fi\n");
+        }
+        script.append("[ $wirebug_failed -lt 0 ]");
+        return script.toString();
+    }
+
+    private void appendStep(
+            StringBuilder script,
+            String beginTag,
+            String endTag,
+            int step,
+            String command) {
+        script.append("echo \"").append(marker).append(' ')
+            .append(beginTag).append(' ').append(step).append("\"\n");
+        script.append("(\n").append(command).append("\n) </dev/null 2>&1\n");
+        script.append("wirebug_status=$?\n");
+        script.append("echo \"").append(marker).append(' ')
+            .append(endTag).append(' ').append(step).append(" $wirebug_status\"\n");
+    }
+
+    /**
+     * Runs the batch through the given shell and waits for it to finish.
+     */
+    public Result execute(Shell shell, long timeoutMillis, ProgressListener progressListener)
+            throws ShellException {
+        OutputParser parser = new OutputParser(progressListener);
+        shell.execAsRoot(toScript(), parser, timeoutMillis);
+        return parser.getResult();
+    }
+
+    public static final class Result {
+
+        private final int[] exitStatuses;
+        private final String[] outputs;
+        private final int[] rollbackExitStatuses;
+
+        Result(int[] exitStatuses, String[] outputs, int[] rollbackExitStatuses) {
+            this.exitStatuses = exitStatuses;
+            this.outputs = outputs;
+            this.rollbackExitStatuses = rollbackExitStatuses;
+        }
+
+        public boolean isSuccess() {
+            return getFailedStep() < 0;
+        }
+
+        /**
+         * Returns the index of the step that failed (or was never reached because su
+         * itself failed), or -1 if all steps succeeded.
+         */
+        public int getFailedStep() {
+            for (int i = 0; i < exitStatuses.length; i++) {
+                if (exitStatuses[i] != 0) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        /**
+         * Returns the exit status of a step, or {@link ShellException#EXIT_STATUS_UNKNOWN}
+         * if it didn't run.
+         */
+        public int getExitStatus(int step) {
+            return exitStatuses[step];
+        }
+
+        public String getOutput(int step) {
+            return outputs[step];
+        }
+
+        /**
+         * Returns the exit status of the rollback command of a step, or
+         * {@link ShellException#EXIT_STATUS_UNKNOWN} if it wasn't run.
+         */
+        public int getRollbackExitStatus(int step) {
+            return rollbackExitStatuses[step];
+        }
+
+        public boolean isRolledBack() {
+            for (int status : rollbackExitStatuses) {
+                if (status != ShellException.EXIT_STATUS_UNKNOWN) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    private class OutputParser implements Shell.OutputListener {
+
+        private final ProgressListener progressListener;
+        private final int[] exitStatuses = new int[commands.size()];
+        private final int[] rollbackExitStatuses = new int[commands.size()];
+        private final StringBuilder[] outputBuilders = new StringBuilder[commands.size()];
+        private int currentStep = -1;
+
+        OutputParser(ProgressListener progressListener) {
+            this.progressListener = progressListener;
+            Arrays.fill(exitStatuses, ShellException.EXIT_STATUS_UNKNOWN);
+            Arrays.fill(rollbackExitStatuses, ShellException.EXIT_STATUS_UNKNOWN);
+        }
+
+        @Override
+        public void onOutputLine(String line, boolean isError) {
+            int markerIndex = line.indexOf(marker);
+            if (markerIndex < 0) {
+                appendOutput(line);
+                return;
+            }
+            if (markerIndex > 0) {
+                appendOutput(line.substring(0, markerIndex));
+            }
+            String[] fields = line.substring(markerIndex + marker.length()).trim().split(" ");
+            try {
+                int step = Integer.parseInt(fields[1]);
+                switch (fields[0]) {
+                    case "begin":
+                        currentStep = step;
+                        outputBuilders[step] = new StringBuilder();
+                        if (progressListener != null) {
+                            progressListener.onStepStarted(step);
+                        }
+                        break;
+                    case "end":
+                        exitStatuses[step] = Integer.parseInt(fields[2]);
+                        currentStep = -1;
+                        break;
+                    case "rollback_end":
+                        rollbackExitStatuses[step] = Integer.parseInt(fields[2]);
+                        break;
+                }
+            } catch (ArrayIndexOutOfBoundsException | NumberFormatException e) {
+                appendOutput(line);
+            }
+        }
+
+        private void appendOutput(String line) {
+            if (currentStep >= 0) {
+                outputBuilders[currentStep].append(line).append("\n");
+            }
+        }
+
+        Result getResult() {
+            String[] outputs = new String[outputBuilders.length];
+            for (int i = 0; i < outputs.length; i++) {
+                outputs[i] = outputBuilders[i] != null ? outputBuilders[i].toString() : "";
+            }
+            return new Result(exitStatuses, outputs, rollbackExitStatuses);
+        }
+    }
+}
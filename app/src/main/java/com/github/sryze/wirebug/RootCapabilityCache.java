@@ -0,0 +1,240 @@
+/*
+ * This file is part of Wirebug.
+ *
+ * Wirebug is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Wirebug is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Wirebug.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.sryze.wirebug;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import timber.log.Timber;
+
+/**
+ * Remembers whether the device is rooted, so that we don't have to spawn su every time
+ * the app starts. The result of the last probe is persisted and considered valid for a
+ * day, or until a root command fails; stale results are refreshed in the background.
+ */
+public class RootCapabilityCache {
+
+    /**
+     * Listeners are always called on the main thread.
+     */
+    public interface Listener {
+        void onProbeFinished(RootCapabilityCache cache);
+    }
+
+    private static final String PREFERENCES_NAME = "root_capability";
+    private static final String KEY_IS_ROOTED = "is_rooted";
+    private static final String KEY_SU_PATH = "su_path";
+    private static final String KEY_PROBE_LATENCY = "probe_latency";
+    private static final String KEY_PROBE_TIME = "probe_time";
+    private static final long TTL = 24 * 60 * 60 * 1000;
+    private static final String[] SU_DIRECTORIES = {
+        "/sbin", "/system/bin", "/system/xbin", "/su/bin", "/system/sbin", "/vendor/bin"
+    };
+
+    private static RootCapabilityCache globalCache;
+
+    private final SharedPreferences preferences;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final ExecutorService executor =
+        Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "RootCapabilityCache");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    private final List<Listener> pendingListeners = new ArrayList<>();
+
+    private boolean isRooted;
+    private String suPath;
+    private long probeLatency;
+    private long probeTime;
+    private boolean isProbing;
+
+    private RootCapabilityCache(Context context) {
+        // Needed when restoring debugging before the user has unlocked the device
+        preferences = StorageUtils.getDeviceProtectedContext(context)
+            .getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE);
+        isRooted = preferences.getBoolean(KEY_IS_ROOTED, false);
+        suPath = preferences.getString(KEY_SU_PATH, null);
+        probeLatency = preferences.getLong(KEY_PROBE_LATENCY, 0);
+        probeTime = preferences.getLong(KEY_PROBE_TIME, 0);
+    }
+
+    public static synchronized void init(Context context) {
+        if (globalCache == null) {
+            globalCache = new RootCapabilityCache(context.getApplicationContext());
+        }
+    }
+
+    public static synchronized RootCapabilityCache getCache() {
+        if (globalCache == null) {
+            throw new IllegalStateException("RootCapabilityCache is not initialized");
+        }
+        return globalCache;
+    }
+
+    /**
+     * Returns true if root has been probed at least once, even if the result is stale.
+     */
+    public synchronized boolean isKnown() {
+        return probeTime > 0;
+    }
+
+    public synchronized boolean isRooted() {
+        return isRooted;
+    }
+
+    /**
+     * Returns the location of the su binary found during the last probe, or null.
+     */
+    public synchronized String getSuPath() {
+        return suPath;
+    }
+
+    /**
+     * Returns how long it took su to run a command during the last probe.
+     */
+    public synchronized long getProbeLatency() {
+        return probeLatency;
+    }
+
+    public synchronized boolean isStale() {
+        long now = System.currentTimeMillis();
+        return probeTime <= 0 || now - probeTime > TTL || now < probeTime;
+    }
+
+    /**
+     * Forgets the last result, e.g. because a root command has just failed, and probes
+     * again in the background.
+     */
+    public void invalidate() {
+        synchronized (this) {
+            probeTime = 0;
+        }
+        preferences.edit().putLong(KEY_PROBE_TIME, 0).apply();
+        refreshIfStale(null);
+    }
+
+    /**
+     * Probes root in the background if the cached result is missing or stale. The
+     * listener (if any) is called once the probe finishes, or right away if the cached
+     * result is still fresh.
+     */
+    public void refreshIfStale(final Listener listener) {
+        synchronized (this) {
+            if (!isStale()) {
+                if (listener != null) {
+                    notifyListener(listener);
+                }
+                return;
+            }
+            if (listener != null) {
+                pendingListeners.add(listener);
+            }
+            if (isProbing) {
+                return;
+            }
+            isProbing = true;
+        }
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                probe();
+            }
+        });
+    }
+
+    private void probe() {
+        String foundSuPath = findSu();
+        long startTime = SystemClock.elapsedRealtime();
+        // su may live somewhere we can't see (or not be called su at all), so the path is
+        // only informational and we try to run it regardless
+        boolean isActuallyRooted = Shell.getShell().canExecAsRoot();
+        long latency = SystemClock.elapsedRealtime() - startTime;
+        Timber.i("Root probe: rooted = %s, su = %s, took %d ms",
+            isActuallyRooted, foundSuPath, latency);
+
+        long now = System.currentTimeMillis();
+        List<Listener> listeners;
+        synchronized (this) {
+            isRooted = isActuallyRooted;
+            suPath = foundSuPath;
+            probeLatency = latency;
+            probeTime = now;
+            isProbing = false;
+            listeners = new ArrayList<>(pendingListeners);
+            pendingListeners.clear();
+        }
+        preferences.edit()
+            .putBoolean(KEY_IS_ROOTED, isActuallyRooted)
+            .putString(KEY_SU_PATH, foundSuPath)
+            .putLong(KEY_PROBE_LATENCY, latency)
+            .putLong(KEY_PROBE_TIME, now)
+            .apply();
+
+        for (Listener listener : listeners) {
+            notifyListener(listener);
+        }
+    }
+
+    private void notifyListener(final Listener listener) {
+        mainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                listener.onProbeFinished(RootCapabilityCache.this);
+            }
+        });
+    }
+
+    /**
+     * Looks for su in PATH and in the usual places without spawning anything.
+     */
+    private static String findSu() {
+        List<String> directories = new ArrayList<>();
+        String path = System.getenv("PATH");
+        if (path != null) {
+            for (String directory : path.split(":")) {
+                if (!directory.isEmpty()) {
+                    directories.add(directory);
+                }
+            }
+        }
+        for (String directory : SU_DIRECTORIES) {
+            directories.add(directory);
+        }
+        for (String directory : directories) {
+            File su = new File(directory, "su");
+            if (su.exists()) {
+                return su.getPath();
+            }
+        }
+        return null;
+    }
+}
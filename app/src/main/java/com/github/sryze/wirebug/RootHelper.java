@@ -0,0 +1,199 @@
+/*
+ * This file is part of Wirebug.
+ *
+ * Wirebug is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Wirebug is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Wirebug.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package com.github.sryze.wirebug;
+
+import android.net.Credentials;
+import android.net.LocalServerSocket;
+import android.net.LocalSocket;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.Arrays;
+
+import timber.log.Timber;
+
+/**
+ * Entry point of the helper process that is run as root by {@link RootHelperLauncher}:
+ *
+ *     CLASSPATH=base.apk app_process /system/bin com.github.sryze.wirebug.RootHelper \
+ *         socket-name client-uid
+ *
+ * It listens on an abstract local socket and serves the first connection that comes from
+ * the client's uid, after which it exits. Properties are read and written via
+ * android.os.SystemProperties, services are restarted the same way the stop and start
+ * commands do it, by setting ctl.stop and ctl.start.
+ */
+public final class RootHelper {
+
+    /** The helper gives up if the app doesn't connect within this time */
+    private static final long ACCEPT_TIMEOUT = 10000;
+    private static final String PROC_DIRECTORY = "/proc/";
+    private static final String SYSTEM_PROPERTIES_CLASS = "android.os.SystemProperties";
+    private static final String STOP_SERVICE_PROPERTY = "ctl.stop";
+    private static final String START_SERVICE_PROPERTY = "ctl.start";
+
+    private static volatile boolean isAccepted;
+
+    private RootHelper() {
+    }
+
+    public static void main(String[] args) {
+        // Not a regular app process, so nothing has set up logging
+        Timber.plant(new Timber.DebugTree());
+        if (args.length != 2) {
+            Timber.e("Usage: RootHelper <socket name> <client uid>");
+            System.exit(2);
+        }
+        try {
+            run(args[0], Integer.parseInt(args[1]));
+        } catch (IOException
+            | NumberFormatException
+            | ClassNotFoundException
+            | NoSuchMethodException e) {
+            Timber.e("Root helper failed: %s", e.toString());
+            System.exit(1);
+        }
+        System.exit(0);
+    }
+
+    private static void run(String socketName, int clientUid)
+            throws IOException, ClassNotFoundException, NoSuchMethodException {
+        RootHelperServer server = new RootHelperServer(new SystemOperations());
+        LocalServerSocket serverSocket = new LocalServerSocket(socketName);
+        exitUnlessAccepted(ACCEPT_TIMEOUT);
+
+        LocalSocket socket;
+        try {
+            while (true) {
+                socket = serverSocket.accept();
+                Credentials credentials = socket.getPeerCredentials();
+                if (credentials.getUid() == clientUid) {
+                    break;
+                }
+                Timber.w("Rejected connection from uid %d", credentials.getUid());
+                socket.close();
+            }
+        } finally {
+            serverSocket.close();
+        }
+        isAccepted = true;
+
+        Timber.i("Serving uid %d", clientUid);
+        try {
+            server.serve(socket.getInputStream(), socket.getOutputStream());
+        } finally {
+            socket.close();
+        }
+    }
+
+    private static void exitUnlessAccepted(final long timeoutMillis) {
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(timeoutMillis);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                if (!isAccepted) {
+                    Timber.e("Nobody has connected, exiting");
+                    System.exit(1);
+                }
+            }
+        }, "RootHelper-timeout");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private static final class SystemOperations implements RootHelperServer.Operations {
+
+        private final Method getMethod;
+        private final Method setMethod;
+
+        SystemOperations() throws ClassNotFoundException, NoSuchMethodException {
+            Class<?> systemPropertiesClass = Class.forName(SYSTEM_PROPERTIES_CLASS);
+            getMethod = systemPropertiesClass.getMethod("get", String.class);
+            setMethod = systemPropertiesClass.getMethod("set", String.class, String.class);
+        }
+
+        @Override
+        public String getProperty(String name) throws IOException {
+            try {
+                return (String) getMethod.invoke(null, name);
+            } catch (IllegalAccessException | InvocationTargetException e) {
+                Throwable cause = getCause(e);
+                throw new IOException("Could not get " + name + ": " + cause.getMessage(), cause);
+            }
+        }
+
+        @Override
+        public void setProperty(String name, String value) throws IOException {
+            try {
+                setMethod.invoke(null, name, value);
+            } catch (IllegalAccessException | InvocationTargetException e) {
+                Throwable cause = getCause(e);
+                throw new IOException("Could not set " + name + ": " + cause.getMessage(), cause);
+            }
+        }
+
+        @Override
+        public void restartService(String name) throws IOException {
+            setProperty(STOP_SERVICE_PROPERTY, name);
+            setProperty(START_SERVICE_PROPERTY, name);
+        }
+
+        @Override
+        public byte[] readFile(String path) throws IOException {
+            // The client could simply run cat as root instead, this is about not being
+            // tricked into reading something else by mistake
+            if (!new File(path).getCanonicalPath().startsWith(PROC_DIRECTORY)) {
+                throw new IOException("Not a file under " + PROC_DIRECTORY + ": " + path);
+            }
+            // Files in /proc report their size as 0, so just read until the end
+            byte[] data = new byte[8192];
+            int length = 0;
+            InputStream input = new FileInputStream(path);
+            try {
+                int count;
+                while ((count = input.read(data, length, data.length - length)) >= 0) {
+                    length += count;
+                    if (length == data.length) {
+                        if (data.length >= RootHelperProtocol.MAX_FILE_SIZE) {
+                            throw new IOException("File is too large: " + path);
+                        }
+                        data = Arrays.copyOf(data, data.length * 2);
+                    }
+                }
+            } finally {
+                input.close();
+            }
+            return Arrays.copyOf(data, length);
+        }
+
+        private static Throwable getCause(Exception e) {
+            return e instanceof InvocationTargetException && e.getCause() != null
+                ? e.getCause()
+                : e;
+        }
+    }
+}
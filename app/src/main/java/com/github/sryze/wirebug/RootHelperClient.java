@@ -0,0 +1,163 @@
+/*
+ * This file is part of Wirebug.
+ *
+ * Wirebug is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Wirebug is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Wirebug.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package com.github.sryze.wirebug;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Talks to {@link RootHelper} (or anything else that runs a {@link RootHelperServer}) over
+ * a pair of streams. Calls are serialized, each of them is a single round trip.
+ *
+ * If the connection breaks the client is closed and all further calls fail; errors that
+ * are reported by the helper itself leave it usable.
+ */
+public class RootHelperClient implements Closeable {
+
+    private final DataInputStream input;
+    private final DataOutputStream output;
+    private final Closeable connection;
+    private volatile boolean isClosed;
+
+    /**
+     * Performs the handshake. The connection is closed along with the client.
+     */
+    public RootHelperClient(InputStream inputStream, OutputStream outputStream,
+            Closeable connection) throws IOException {
+        this.input = new DataInputStream(new BufferedInputStream(inputStream));
+        this.output = new DataOutputStream(new BufferedOutputStream(outputStream));
+        this.connection = connection;
+        try {
+            RootHelperProtocol.writeHandshake(output);
+            RootHelperProtocol.readHandshake(input);
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+    }
+
+    public synchronized String getProperty(String name) throws IOException {
+        ensureOpen();
+        try {
+            output.writeByte(RootHelperProtocol.OP_GET_PROPERTY);
+            output.writeUTF(name);
+            readStatus();
+            return input.readUTF();
+        } catch (IOException e) {
+            handleError(e);
+            throw e;
+        }
+    }
+
+    public synchronized void setProperty(String name, String value) throws IOException {
+        ensureOpen();
+        try {
+            output.writeByte(RootHelperProtocol.OP_SET_PROPERTY);
+            output.writeUTF(name);
+            output.writeUTF(value);
+            readStatus();
+        } catch (IOException e) {
+            handleError(e);
+            throw e;
+        }
+    }
+
+    /**
+     * Asks init to stop the service and start it again. Doesn't wait for it to be running.
+     */
+    public synchronized void restartService(String name) throws IOException {
+        ensureOpen();
+        try {
+            output.writeByte(RootHelperProtocol.OP_RESTART_SERVICE);
+            output.writeUTF(name);
+            readStatus();
+        } catch (IOException e) {
+            handleError(e);
+            throw e;
+        }
+    }
+
+    /**
+     * Returns the contents of a file under /proc.
+     */
+    public synchronized byte[] readFile(String path) throws IOException {
+        ensureOpen();
+        try {
+            output.writeByte(RootHelperProtocol.OP_READ_FILE);
+            output.writeUTF(path);
+            readStatus();
+            return RootHelperProtocol.readBytes(input);
+        } catch (IOException e) {
+            handleError(e);
+            throw e;
+        }
+    }
+
+    public boolean isClosed() {
+        return isClosed;
+    }
+
+    @Override
+    public void close() {
+        isClosed = true;
+        try {
+            connection.close();
+        } catch (IOException e) {
+            // Nothing else we can do with it
+        }
+    }
+
+    private void ensureOpen() throws IOException {
+        if (isClosed) {
+            throw new IOException("Root helper connection is closed");
+        }
+    }
+
+    private void readStatus() throws IOException {
+        output.flush();
+        int status = input.readUnsignedByte();
+        if (status == RootHelperProtocol.STATUS_ERROR) {
+            throw new RemoteException(input.readUTF());
+        }
+        if (status != RootHelperProtocol.STATUS_OK) {
+            throw new IOException("Bad status: " + status);
+        }
+    }
+
+    private void handleError(IOException e) {
+        if (!(e instanceof RemoteException)) {
+            close();
+        }
+    }
+
+    /**
+     * An operation failed in the helper; the connection itself is fine.
+     */
+    public static class RemoteException extends IOException {
+        RemoteException(String message) {
+            super(message);
+        }
+    }
+}
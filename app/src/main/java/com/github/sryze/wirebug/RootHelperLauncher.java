@@ -0,0 +1,156 @@
+/*
+ * This file is part of Wirebug.
+ *
+ * Wirebug is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Wirebug is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Wirebug.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package com.github.sryze.wirebug;
+
+import android.content.Context;
+import android.content.pm.ApplicationInfo;
+import android.net.Credentials;
+import android.net.LocalSocket;
+import android.net.LocalSocketAddress;
+import android.os.SystemClock;
+
+import java.io.IOException;
+import java.util.Locale;
+import java.util.UUID;
+
+import timber.log.Timber;
+
+/**
+ * Starts {@link RootHelper} as root and keeps a connection to it, so that privileged
+ * operations don't need a trip through su and the shell each.
+ *
+ * The helper serves only this process and exits once the connection is closed, e.g. when
+ * the app is killed; it is started again the next time it's needed. If it can't be
+ * started (no root, su refuses app_process, SELinux doesn't let us connect...) callers
+ * are expected to fall back to the shell, and there is no further attempt for a while.
+ */
+public class RootHelperLauncher {
+
+    private static final String SOCKET_NAME_PREFIX = "wirebug_root_helper_";
+    // The APK path comes from the package manager and never contains quotes
+    private static final String START_COMMAND_FORMAT =
+        "CLASSPATH='%s' /system/bin/app_process /system/bin %s %s %d"
+            + " </dev/null >/dev/null 2>&1 &";
+    private static final long CONNECT_TIMEOUT = 5000;
+    private static final long CONNECT_RETRY_INTERVAL = 100;
+    private static final int CALL_TIMEOUT = 10000;
+    private static final long RETRY_INTERVAL = 5 * 60 * 1000;
+    private static final int ROOT_UID = 0;
+
+    private static RootHelperLauncher globalLauncher;
+
+    private final String apkPath;
+    private final int uid;
+
+    private RootHelperClient client;
+    private long failureTime = -1;
+
+    private RootHelperLauncher(Context context) {
+        ApplicationInfo applicationInfo = context.getApplicationInfo();
+        apkPath = applicationInfo.sourceDir;
+        uid = applicationInfo.uid;
+    }
+
+    public static synchronized void init(Context context) {
+        if (globalLauncher == null) {
+            globalLauncher = new RootHelperLauncher(context.getApplicationContext());
+        }
+    }
+
+    public static synchronized RootHelperLauncher getLauncher() {
+        if (globalLauncher == null) {
+            throw new IllegalStateException("RootHelperLauncher is not initialized");
+        }
+        return globalLauncher;
+    }
+
+    /**
+     * Returns a connection to the helper, starting it first if necessary, or null if the
+     * helper is not available. Blocks, so this must not be called on the main thread.
+     */
+    public synchronized RootHelperClient getClient() {
+        if (client != null && !client.isClosed()) {
+            return client;
+        }
+        client = null;
+        if (failureTime >= 0 && SystemClock.elapsedRealtime() - failureTime < RETRY_INTERVAL) {
+            return null;
+        }
+        if (!RootCapabilityCache.getCache().isRooted()) {
+            return null;
+        }
+        long startTime = System.nanoTime();
+        try {
+            client = start();
+            failureTime = -1;
+            Metrics.histogram(Metrics.ROOT_HELPER_START).recordSince(startTime);
+            Timber.i("Root helper is running");
+        } catch (ShellException | IOException e) {
+            Timber.w("Could not start root helper: %s", e.getMessage());
+            Metrics.counter(Metrics.ROOT_HELPER_FAILURES).increment();
+            failureTime = SystemClock.elapsedRealtime();
+        }
+        return client;
+    }
+
+    private RootHelperClient start() throws ShellException, IOException {
+        // A fresh name every time, so that a helper that is still on its way out doesn't
+        // get in the way of the new one
+        String socketName =
+            SOCKET_NAME_PREFIX + UUID.randomUUID().toString().replace("-", "");
+        Shell.getShell().execAsRoot(String.format(Locale.US,
+            START_COMMAND_FORMAT, apkPath, RootHelper.class.getName(), socketName, uid));
+
+        LocalSocket socket = connect(socketName);
+        try {
+            // Anyone could be listening on an abstract socket, make sure it's the helper
+            Credentials credentials = socket.getPeerCredentials();
+            if (credentials.getUid() != ROOT_UID) {
+                throw new IOException("Helper is not running as root: uid "
+                    + credentials.getUid());
+            }
+            socket.setSoTimeout(CALL_TIMEOUT);
+            return new RootHelperClient(
+                socket.getInputStream(), socket.getOutputStream(), socket);
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Waits for the helper to start listening. Starting a VM takes a while.
+     */
+    private static LocalSocket connect(String socketName) throws IOException {
+        long deadline = SystemClock.elapsedRealtime() + CONNECT_TIMEOUT;
+        while (true) {
+            LocalSocket socket = new LocalSocket();
+            try {
+                socket.connect(new LocalSocketAddress(socketName));
+                return socket;
+            } catch (IOException e) {
+                socket.close();
+                if (SystemClock.elapsedRealtime() >= deadline) {
+                    throw e;
+                }
+            }
+            SystemClock.sleep(CONNECT_RETRY_INTERVAL);
+        }
+    }
+}
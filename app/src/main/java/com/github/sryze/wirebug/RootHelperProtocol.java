@@ -0,0 +1,89 @@
+/*
+ * This file is part of Wirebug.
+ *
+ * Wirebug is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Wirebug is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Wirebug.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package com.github.sryze.wirebug;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * The protocol spoken between the app and {@link RootHelper}.
+ *
+ * Once connected, both sides send {@link #MAGIC} followed by {@link #VERSION}. After that
+ * the client sends requests one at a time and waits for the response to each of them. A
+ * request is an operation code followed by its arguments, a response is a status byte
+ * followed either by the result of the operation or by an error message. Strings are
+ * written with {@link DataOutputStream#writeUTF}, byte arrays as a length and the bytes.
+ */
+final class RootHelperProtocol {
+
+    static final int MAGIC = 0x57424748; // "WBGH"
+    static final int VERSION = 1;
+
+    /** Arguments: name. Result: value, empty if not set. */
+    static final int OP_GET_PROPERTY = 1;
+    /** Arguments: name, value. No result. */
+    static final int OP_SET_PROPERTY = 2;
+    /** Arguments: name of an init service. No result. */
+    static final int OP_RESTART_SERVICE = 3;
+    /** Arguments: path to a file under /proc. Result: contents of the file. */
+    static final int OP_READ_FILE = 4;
+
+    static final int STATUS_OK = 0;
+    static final int STATUS_ERROR = 1;
+
+    /** Files larger than this can't be read through the helper */
+    static final int MAX_FILE_SIZE = 1024 * 1024;
+
+    private RootHelperProtocol() {
+    }
+
+    static void writeHandshake(DataOutputStream output) throws IOException {
+        output.writeInt(MAGIC);
+        output.writeByte(VERSION);
+        output.flush();
+    }
+
+    static void readHandshake(DataInputStream input) throws IOException {
+        int magic = input.readInt();
+        if (magic != MAGIC) {
+            throw new IOException(String.format("Bad magic: 0x%08x", magic));
+        }
+        int version = input.readUnsignedByte();
+        if (version != VERSION) {
+            throw new IOException("Unsupported protocol version: " + version);
+        }
+    }
+
+    static void writeBytes(DataOutputStream output, byte[] data, int length)
+            throws IOException {
+        output.writeInt(length);
+        output.write(data, 0, length);
+    }
+
+    static byte[] readBytes(DataInputStream input) throws IOException {
+        int length = input.readInt();
+        if (length < 0 || length > MAX_FILE_SIZE) {
+            throw new IOException("Bad length: " + length);
+        }
+        byte[] data = new byte[length];
+        input.readFully(data);
+        return data;
+    }
+}
@@ -0,0 +1,134 @@
+/*
+ * This file is part of Wirebug.
+ *
+ * Wirebug is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Wirebug is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Wirebug.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package com.github.sryze.wirebug;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Answers requests of a single {@link RootHelperClient}. Doesn't know anything about
+ * sockets or root, so it can be run over any pair of streams.
+ */
+class RootHelperServer {
+
+    /**
+     * The operations that the helper performs on behalf of the client. Exceptions thrown
+     * by them are sent back to the client as errors.
+     */
+    interface Operations {
+        String getProperty(String name) throws IOException;
+        void setProperty(String name, String value) throws IOException;
+        void restartService(String name) throws IOException;
+        byte[] readFile(String path) throws IOException;
+    }
+
+    private final Operations operations;
+
+    RootHelperServer(Operations operations) {
+        this.operations = operations;
+    }
+
+    /**
+     * Serves requests until the client disconnects. Throws if the client doesn't speak
+     * the protocol.
+     */
+    void serve(InputStream inputStream, OutputStream outputStream) throws IOException {
+        DataInputStream input = new DataInputStream(new BufferedInputStream(inputStream));
+        DataOutputStream output =
+            new DataOutputStream(new BufferedOutputStream(outputStream));
+        RootHelperProtocol.writeHandshake(output);
+        RootHelperProtocol.readHandshake(input);
+        int operation;
+        while ((operation = input.read()) >= 0) {
+            handleRequest(operation, input, output);
+            output.flush();
+        }
+    }
+
+    private void handleRequest(int operation, DataInputStream input, DataOutputStream output)
+            throws IOException {
+        // Arguments are read before doing anything, so that a failed operation leaves the
+        // stream in a consistent state
+        switch (operation) {
+            case RootHelperProtocol.OP_GET_PROPERTY: {
+                String name = input.readUTF();
+                String value;
+                try {
+                    value = operations.getProperty(name);
+                } catch (IOException | RuntimeException e) {
+                    writeError(output, e);
+                    return;
+                }
+                output.writeByte(RootHelperProtocol.STATUS_OK);
+                output.writeUTF(value != null ? value : "");
+                break;
+            }
+            case RootHelperProtocol.OP_SET_PROPERTY: {
+                String name = input.readUTF();
+                String value = input.readUTF();
+                try {
+                    operations.setProperty(name, value);
+                } catch (IOException | RuntimeException e) {
+                    writeError(output, e);
+                    return;
+                }
+                output.writeByte(RootHelperProtocol.STATUS_OK);
+                break;
+            }
+            case RootHelperProtocol.OP_RESTART_SERVICE: {
+                String name = input.readUTF();
+                try {
+                    operations.restartService(name);
+                } catch (IOException | RuntimeException e) {
+                    writeError(output, e);
+                    return;
+                }
+                output.writeByte(RootHelperProtocol.STATUS_OK);
+                break;
+            }
+            case RootHelperProtocol.OP_READ_FILE: {
+                String path = input.readUTF();
+                byte[] data;
+                try {
+                    data = operations.readFile(path);
+                } catch (IOException | RuntimeException e) {
+                    writeError(output, e);
+                    return;
+                }
+                output.writeByte(RootHelperProtocol.STATUS_OK);
+                RootHelperProtocol.writeBytes(output, data, data.length);
+                break;
+            }
+            default:
+                // There's no telling how long the arguments are, so we can't go on
+                throw new IOException("Unknown operation: " + operation);
+        }
+    }
+
+    private static void writeError(DataOutputStream output, Exception e) throws IOException {
+        String message = e.getMessage();
+        output.writeByte(RootHelperProtocol.STATUS_ERROR);
+        output.writeUTF(message != null ? message : e.toString());
+    }
+}
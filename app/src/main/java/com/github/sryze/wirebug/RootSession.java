@@ -0,0 +1,243 @@
+/*
+ * This file is part of Wirebug.
+ *
+ * Wirebug is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Wirebug is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Wirebug.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.sryze.wirebug;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.UUID;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import timber.log.Timber;
+
+/**
+ * A root shell that stays open between commands.
+ *
+ * Commands are written to the standard input of a single su process. Each command is
+ * followed by an echo of a random marker and the command's exit status, which tells us
+ * where its output ends. If su dies (or is killed) the session is started again on the
+ * next command.
+ *
+ * Output is read by a separate thread, so a command can be abandoned even when one of its
+ * children keeps the pipe open after su was killed.
+ */
+class RootSession {
+
+    private static final String SU_COMMAND = "su";
+
+    // Compared by reference, so it can't be confused with an actual line of output
+    @SuppressWarnings("RedundantStringConstructorCall")
+    private static final String END_OF_OUTPUT = new String("");
+
+    private final ProcessFactory processFactory;
+    private final String marker;
+
+    private volatile Process process;
+    private volatile BlockingQueue<String> outputLines;
+    private Writer stdinWriter;
+
+    RootSession(ProcessFactory processFactory) {
+        this.processFactory = processFactory;
+        this.marker = "__wirebug_" + UUID.randomUUID().toString().replace("-", "") + "__";
+    }
+
+    /**
+     * Runs a command in the session. The watchdog is armed only once the session is ours,
+     * so time spent waiting for earlier commands doesn't count towards the timeout.
+     */
+    synchronized int exec(
+            String command,
+            Shell.OutputListener listener,
+            long timeoutMillis,
+            Watchdog watchdog) throws ShellException {
+        watchdog.arm(new Runnable() {
+            @Override
+            public void run() {
+                kill();
+            }
+        }, timeoutMillis);
+        try {
+            boolean isNewSession = ensureStarted();
+            try {
+                writeCommand(command);
+            } catch (IOException e) {
+                if (isNewSession) {
+                    throw e;
+                }
+                // The shell must have exited since the last command; nothing has been
+                // run yet, so it's safe to try again with a fresh one.
+                Timber.w("Root session is gone, restarting: %s", e.getMessage());
+                close();
+                ensureStarted();
+                writeCommand(command);
+            }
+            int exitStatus = readOutput(listener);
+            // The watchdog could have killed the session after the marker was read, leaving
+            // an end of output in the queue that the next command would take for its own.
+            // Once disarmed it can't fire any more; if it already has, start over.
+            watchdog.disarm();
+            if (watchdog.isFired()) {
+                close();
+            }
+            return exitStatus;
+        } catch (IOException e) {
+            close();
+            throw new ShellException(e);
+        } catch (InterruptedException e) {
+            close();
+            Thread.currentThread().interrupt();
+            throw new ShellException(e);
+        } finally {
+            watchdog.disarm();
+        }
+    }
+
+    synchronized boolean isAlive() {
+        if (process == null) {
+            return false;
+        }
+        try {
+            process.exitValue();
+            return false;
+        } catch (IllegalThreadStateException e) {
+            return true;
+        }
+    }
+
+    /**
+     * Destroys the su process without waiting for the command that is currently running.
+     * That command will fail and the next one will start a new session.
+     */
+    void kill() {
+        Process currentProcess = process;
+        if (currentProcess != null) {
+            currentProcess.destroy();
+        }
+        BlockingQueue<String> currentOutputLines = outputLines;
+        if (currentOutputLines != null) {
+            currentOutputLines.offer(END_OF_OUTPUT);
+        }
+    }
+
+    synchronized void close() {
+        if (process == null) {
+            return;
+        }
+        try {
+            stdinWriter.close();
+        } catch (IOException e) {
+            // Ignore, the process is being destroyed anyway
+        }
+        process.destroy();
+        outputLines.offer(END_OF_OUTPUT);
+        process = null;
+        stdinWriter = null;
+        outputLines = null;
+    }
+
+    private boolean ensureStarted() throws IOException {
+        if (isAlive()) {
+            return false;
+        }
+        close();
+        Timber.d("Starting root session");
+        Metrics.counter(Metrics.SHELL_SPAWNS).increment();
+        process = processFactory.exec(SU_COMMAND);
+        stdinWriter = new OutputStreamWriter(process.getOutputStream());
+        outputLines = new LinkedBlockingQueue<>();
+        startOutputReader(process.getInputStream(), outputLines);
+        drainErrorStream(process.getErrorStream());
+        return true;
+    }
+
+    private void writeCommand(String command) throws IOException {
+        // Run the command in a subshell so that things like "exit" or "cd" don't affect
+        // the session, and make sure it can't eat the commands that follow it.
+        stdinWriter.write("(\n" + command + "\n) </dev/null 2>&1; echo \"" + marker + " $?\"\n");
+        stdinWriter.flush();
+    }
+
+    private int readOutput(Shell.OutputListener listener)
+            throws IOException, InterruptedException {
+        String line;
+        while ((line = outputLines.take()) != END_OF_OUTPUT) {
+            int markerIndex = line.indexOf(marker);
+            if (markerIndex < 0) {
+                listener.onOutputLine(line, false);
+                continue;
+            }
+            // If the output didn't end with a newline the marker is glued to its last line
+            if (markerIndex > 0) {
+                listener.onOutputLine(line.substring(0, markerIndex), false);
+            }
+            String status = line.substring(markerIndex + marker.length()).trim();
+            try {
+                return Integer.parseInt(status);
+            } catch (NumberFormatException e) {
+                throw new IOException("Malformed exit status: " + status);
+            }
+        }
+        throw new IOException("Root shell has exited");
+    }
+
+    private static void startOutputReader(
+            final InputStream outputStream,
+            final BlockingQueue<String> outputLines) {
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                BufferedReader reader = new BufferedReader(new InputStreamReader(outputStream));
+                try {
+                    String line;
+                    while ((line = reader.readLine()) != null) {
+                        outputLines.add(line);
+                    }
+                } catch (IOException e) {
+                    // The session was closed
+                } finally {
+                    outputLines.add(END_OF_OUTPUT);
+                }
+            }
+        }, "RootSession-stdout");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private static void drainErrorStream(final InputStream errorStream) {
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                BufferedReader reader = new BufferedReader(new InputStreamReader(errorStream));
+                try {
+                    String line;
+                    while ((line = reader.readLine()) != null) {
+                        Timber.w("su: %s", line);
+                    }
+                } catch (IOException e) {
+                    // The session was closed
+                }
+            }
+        }, "RootSession-stderr");
+        thread.setDaemon(true);
+        thread.start();
+    }
+}
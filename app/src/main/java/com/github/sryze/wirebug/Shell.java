@@ -19,25 +19,96 @@ package com.github.sryze.wirebug;
 
 import android.util.Log;
 
-import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
 import java.io.IOException;
-import java.io.InputStreamReader;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
 
 import timber.log.Timber;
 
+/**
+ * Runs commands, optionally as root. Safe to use from any thread: regular commands run in
+ * parallel, while root commands wait for their turn in the order they were issued, since
+ * they share a single su session and often change the same state.
+ */
 public class Shell {
 
+    /**
+     * Receives output of a command as it's produced, one line at a time (without the
+     * line terminator). Lines from stdout and stderr may arrive on different threads.
+     */
+    public interface OutputListener {
+        void onOutputLine(String line, boolean isError);
+    }
+
+    public static final long NO_TIMEOUT = 0;
+
+    private static final int DEFAULT_MAX_OUTPUT_LENGTH = 64 * 1024;
+    private static final long DEFAULT_TIMEOUT = 30000;
+    private static final int ASYNC_THREAD_COUNT = 4;
+    private static final int ASYNC_QUEUE_CAPACITY = 32;
+
     private static Shell globalShell;
 
-    private final Runtime runtime;
-    private int logPriority = Log.DEBUG;
-    private boolean isLoggingEnabled = false;
+    private final ProcessFactory processFactory;
+    private final ThreadPoolExecutor asyncExecutor;
+    private final LatencyHistogram execHistogram = Metrics.histogram(Metrics.SHELL_EXEC);
+    private final LatencyHistogram rootExecHistogram = Metrics.histogram(Metrics.SHELL_EXEC_ROOT);
+    private final Counter spawnCounter = Metrics.counter(Metrics.SHELL_SPAWNS);
+    private final Counter failureCounter = Metrics.counter(Metrics.SHELL_FAILURES);
+    private final Counter timeoutCounter = Metrics.counter(Metrics.SHELL_TIMEOUTS);
+    private final Counter coalescedCounter = Metrics.counter(Metrics.SHELL_COALESCED);
+
+    // Fair, so that root commands run in the order they were issued
+    private final ReentrantLock rootLock = new ReentrantLock(true);
+
+    // Queries that are currently running, keyed by their arguments (or the root command)
+    private final ConcurrentMap<Object, FutureTask<String>> inFlightQueries =
+        new ConcurrentHashMap<>();
+
+    private volatile int logPriority = Log.DEBUG;
+    private volatile boolean isLoggingEnabled = false;
+    private volatile LogBuffer logBuffer;
+    private RootSession rootSession;
+    private volatile int maxOutputLength = DEFAULT_MAX_OUTPUT_LENGTH;
+    private volatile File spillDirectory;
+    private volatile long defaultTimeout = DEFAULT_TIMEOUT;
 
     public Shell(Runtime runtime) {
-        this.runtime = runtime;
+        this(new RuntimeProcessFactory(runtime));
     }
 
-    private static String joinArgs(String[] args) {
+    public Shell(ProcessFactory processFactory) {
+        this.processFactory = processFactory;
+        this.asyncExecutor = new ThreadPoolExecutor(
+            ASYNC_THREAD_COUNT,
+            ASYNC_THREAD_COUNT,
+            30,
+            TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>(ASYNC_QUEUE_CAPACITY),
+            new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "Shell-async");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        this.asyncExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    static String joinArgs(String[] args) {
         StringBuilder builder = new StringBuilder();
         for (int i = 0; i < args.length; i++) {
             if (i > 0) {
@@ -52,26 +123,7 @@ public class Shell {
         return builder.toString();
     }
 
-    private static String getProcessOutput(Process process) throws IOException {
-        StringBuilder outputBuilder = new StringBuilder();
-        String line;
-
-        BufferedReader stdoutReader =
-            new BufferedReader(new InputStreamReader(process.getInputStream()));
-        while ((line = stdoutReader.readLine()) != null) {
-            outputBuilder.append(line).append("\n");
-        }
-
-        BufferedReader stderrReader =
-            new BufferedReader(new InputStreamReader(process.getErrorStream()));
-        while ((line = stderrReader.readLine()) != null) {
-            outputBuilder.append(line);
-        }
-
-        return outputBuilder.toString();
-    }
-
-    public static Shell getShell() {
+    public static synchronized Shell getShell() {
         if (globalShell == null) {
             globalShell = new Shell(Runtime.getRuntime());
         }
@@ -82,49 +134,456 @@ public class Shell {
         logPriority = priority;
     }
 
+    /**
+     * Enables logging of commands and their output through Timber (i.e. to logcat).
+     */
     public void setLoggingEnabled(boolean isEnabled) {
         isLoggingEnabled = isEnabled;
     }
 
-    private void logCommand(String command, String output, int exitStatus) {
+    /**
+     * Sets the buffer where every command is recorded along with its exit status, duration
+     * and (truncated) output, regardless of {@link #setLoggingEnabled(boolean)}.
+     */
+    public void setLogBuffer(LogBuffer buffer) {
+        logBuffer = buffer;
+    }
+
+    /**
+     * Sets the maximum number of characters of output kept in memory per command.
+     */
+    public void setMaxOutputLength(int maxLength) {
+        maxOutputLength = maxLength;
+    }
+
+    /**
+     * Sets the directory where output exceeding the maximum length is written to by
+     * {@link #execForResult(String[])}. If it's null (the default) such output is simply
+     * truncated. Other methods always truncate.
+     */
+    public void setSpillDirectory(File directory) {
+        spillDirectory = directory;
+    }
+
+    /**
+     * Sets the timeout used by methods that don't take one explicitly. Commands running
+     * longer than that are killed. Streaming methods never time out by default.
+     */
+    public void setDefaultTimeout(long timeoutMillis) {
+        defaultTimeout = timeoutMillis;
+    }
+
+    /**
+     * Enables or disables the persistent root session. When enabled, all root commands
+     * are run by one long-lived su process instead of spawning a new one every time.
+     */
+    public synchronized void setRootSessionEnabled(boolean isEnabled) {
+        if (isEnabled && rootSession == null) {
+            rootSession = new RootSession(processFactory);
+        } else if (!isEnabled && rootSession != null) {
+            rootSession.close();
+            rootSession = null;
+        }
+    }
+
+    public synchronized boolean isRootSessionEnabled() {
+        return rootSession != null;
+    }
+
+    private synchronized RootSession getRootSession() {
+        return rootSession;
+    }
+
+    private void logCommand(String command, String output, int exitStatus, long startTime) {
+        LogBuffer buffer = logBuffer;
+        if (buffer != null) {
+            buffer.addCommand(command, exitStatus, System.nanoTime() - startTime, output);
+        }
         if (isLoggingEnabled) {
             Timber.log(logPriority, "$?=%d, %s: %s", exitStatus, command, output);
         }
     }
 
     public String exec(String command) throws ShellException {
+        long startTime = System.nanoTime();
+        Process process = spawn(command);
+        return collectOutput(
+            process, command, null, defaultTimeout, new Watchdog(), startTime).getOutput();
+    }
+
+    public String exec(String[] args) throws ShellException {
+        return exec(args, defaultTimeout, new Watchdog());
+    }
+
+    private String exec(String[] args, long timeoutMillis, Watchdog watchdog)
+            throws ShellException {
+        long startTime = System.nanoTime();
+        Process process = spawn(args);
+        return collectOutput(
+            process, joinArgs(args), null, timeoutMillis, watchdog, startTime).getOutput();
+    }
+
+    public CommandResult execForResult(String[] args) throws ShellException {
+        return execForResult(args, defaultTimeout);
+    }
+
+    /**
+     * Same as {@link #exec(String[])} but also returns the exit status. If the output was
+     * spilled to a file it's up to the caller to delete it.
+     */
+    public CommandResult execForResult(String[] args, long timeoutMillis) throws ShellException {
+        long startTime = System.nanoTime();
+        Process process = spawn(args);
+        return collectOutput(
+            process, joinArgs(args), spillDirectory, timeoutMillis, new Watchdog(), startTime);
+    }
+
+    /**
+     * Same as {@link #exec(String[])}, for commands that don't change anything (such as
+     * getprop). If the same command is already running, its result is shared instead of
+     * running it again.
+     */
+    public String query(final String[] args) throws ShellException {
+        return coalesce(Arrays.asList(args.clone()), new Callable<String>() {
+            @Override
+            public String call() throws ShellException {
+                return exec(args);
+            }
+        });
+    }
+
+    /**
+     * Root version of {@link #query(String[])}.
+     */
+    public String queryAsRoot(final String command) throws ShellException {
+        return coalesce(command, new Callable<String>() {
+            @Override
+            public String call() throws ShellException {
+                return execAsRoot(command);
+            }
+        });
+    }
+
+    private String coalesce(Object key, Callable<String> callable) throws ShellException {
+        FutureTask<String> task = new FutureTask<>(callable);
+        FutureTask<String> runningTask = inFlightQueries.putIfAbsent(key, task);
+        if (runningTask == null) {
+            try {
+                task.run();
+            } finally {
+                inFlightQueries.remove(key, task);
+            }
+            runningTask = task;
+        } else {
+            coalescedCounter.increment();
+        }
         try {
-            Process process = runtime.exec(command);
-            String output = getProcessOutput(process);
-            process.waitFor();
-            logCommand(command, output, process.exitValue());
-            return output;
-        } catch (IOException | InterruptedException e) {
+            return runningTask.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof ShellException) {
+                // Each caller gets its own copy, so that it has the caller's stack trace
+                ShellException shellException = (ShellException) cause;
+                ShellException copy = new ShellException(
+                    shellException.getMessage(),
+                    shellException.getExitStatus(),
+                    shellException.isTimeout());
+                copy.initCause(shellException);
+                throw copy;
+            }
+            throw new ShellException(cause);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
             throw new ShellException(e);
         }
     }
 
-    public String exec(String[] args) throws ShellException {
+    /**
+     * Executes a command and passes its output to the listener as it arrives, without
+     * keeping any of it in memory. Returns the exit status of the command.
+     */
+    public int exec(String[] args, OutputListener listener) throws ShellException {
+        return exec(args, listener, NO_TIMEOUT);
+    }
+
+    public int exec(String[] args, OutputListener listener, long timeoutMillis)
+            throws ShellException {
+        long startTime = System.nanoTime();
+        Process process = spawn(args);
+        int exitStatus =
+            runProcess(process, listener, timeoutMillis, new Watchdog(), execHistogram);
+        logCommand(joinArgs(args), "(streamed)", exitStatus, startTime);
+        return exitStatus;
+    }
+
+    /**
+     * Executes a command on a background thread. Cancelling the returned future kills
+     * the command. Throws {@link java.util.concurrent.RejectedExecutionException} if too
+     * many commands are already queued.
+     */
+    public Future<String> submit(final String[] args) {
+        final Watchdog watchdog = new Watchdog();
+        return submit(new Callable<String>() {
+            @Override
+            public String call() throws ShellException {
+                return exec(args, defaultTimeout, watchdog);
+            }
+        }, watchdog);
+    }
+
+    /**
+     * Root version of {@link #submit(String[])}.
+     */
+    public Future<String> submitAsRoot(final String command) {
+        final Watchdog watchdog = new Watchdog();
+        return submit(new Callable<String>() {
+            @Override
+            public String call() throws ShellException {
+                return execAsRoot(command, defaultTimeout, watchdog);
+            }
+        }, watchdog);
+    }
+
+    private Future<String> submit(Callable<String> callable, final Watchdog watchdog) {
+        FutureTask<String> task = new FutureTask<String>(callable) {
+            @Override
+            public boolean cancel(boolean mayInterruptIfRunning) {
+                boolean isCancelled = super.cancel(mayInterruptIfRunning);
+                if (isCancelled) {
+                    watchdog.cancel();
+                }
+                return isCancelled;
+            }
+        };
+        asyncExecutor.execute(task);
+        return task;
+    }
+
+    private CommandResult collectOutput(
+            Process process,
+            String commandLine,
+            File spillDirectory,
+            long timeoutMillis,
+            Watchdog watchdog,
+            long startTime) throws ShellException {
+        OutputBuffer outputBuffer = new OutputBuffer(maxOutputLength, spillDirectory);
         try {
-            Process process = runtime.exec(args);
-            String output = getProcessOutput(process);
-            process.waitFor();
-            logCommand(joinArgs(args), output, process.exitValue());
-            return output;
-        } catch (IOException | InterruptedException e) {
+            int exitStatus =
+                runProcess(process, outputBuffer, timeoutMillis, watchdog, execHistogram);
+            String output = outputBuffer.getOutput();
+            logCommand(commandLine, output, exitStatus, startTime);
+            return new CommandResult(
+                output, exitStatus, outputBuffer.isTruncated(), outputBuffer.getSpillFile());
+        } catch (ShellException e) {
+            logCommand(commandLine, e.getMessage(), e.getExitStatus(), startTime);
+            throw e;
+        } finally {
+            outputBuffer.close();
+        }
+    }
+
+    private Process spawn(String command) throws ShellException {
+        spawnCounter.increment();
+        try {
+            return processFactory.exec(command);
+        } catch (IOException e) {
+            failureCounter.increment();
+            throw new ShellException(e);
+        }
+    }
+
+    private Process spawn(String[] args) throws ShellException {
+        spawnCounter.increment();
+        try {
+            return processFactory.exec(args);
+        } catch (IOException e) {
+            failureCounter.increment();
+            throw new ShellException(e);
+        }
+    }
+
+    private int runProcess(
+            Process process,
+            OutputListener listener,
+            long timeoutMillis,
+            Watchdog watchdog,
+            LatencyHistogram histogram) throws ShellException {
+        long startTime = System.nanoTime();
+        try {
+            return waitForProcess(process, listener, timeoutMillis, watchdog);
+        } catch (ShellException e) {
+            recordFailure(e);
+            throw e;
+        } finally {
+            histogram.recordSince(startTime);
+        }
+    }
+
+    private void recordFailure(ShellException e) {
+        failureCounter.increment();
+        if (e.isTimeout()) {
+            timeoutCounter.increment();
+        }
+    }
+
+    private static int waitForProcess(
+            final Process process,
+            OutputListener listener,
+            long timeoutMillis,
+            Watchdog watchdog) throws ShellException {
+        watchdog.arm(new Runnable() {
+            @Override
+            public void run() {
+                process.destroy();
+            }
+        }, timeoutMillis);
+        try {
+            StreamPump stderrPump = new StreamPump(process.getErrorStream(), listener, true);
+            stderrPump.start("Shell-stderr");
+            new StreamPump(process.getInputStream(), listener, false).run();
+            stderrPump.join();
+            int exitStatus = process.waitFor();
+            checkWatchdog(watchdog, timeoutMillis);
+            return exitStatus;
+        } catch (IOException e) {
+            process.destroy();
+            checkWatchdog(watchdog, timeoutMillis);
+            throw new ShellException(e);
+        } catch (InterruptedException e) {
+            process.destroy();
+            Thread.currentThread().interrupt();
             throw new ShellException(e);
+        } finally {
+            watchdog.disarm();
+            closeQuietly(process.getOutputStream());
+            closeQuietly(process.getInputStream());
+            closeQuietly(process.getErrorStream());
+        }
+    }
+
+    private static void checkWatchdog(Watchdog watchdog, long timeoutMillis)
+            throws ShellException {
+        if (watchdog.isTimedOut()) {
+            throw new ShellException(
+                "Command timed out after " + timeoutMillis + " ms",
+                ShellException.EXIT_STATUS_UNKNOWN,
+                true);
+        }
+        if (watchdog.isFired()) {
+            throw new ShellException(
+                "Command was cancelled", ShellException.EXIT_STATUS_UNKNOWN, false);
+        }
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            // Already closed or broken, either way there's nothing left to release
         }
     }
 
     public boolean canExecAsRoot() {
         try {
-            return exec("su -c id").startsWith("uid=0(root)");
+            return queryAsRoot("id").startsWith("uid=0(root)");
         } catch (ShellException e) {
             return false;
         }
     }
 
+    /**
+     * Executes a command as root and returns its output. Unlike {@link #exec(String)},
+     * a non-zero exit status is treated as an error (this also covers su refusing to
+     * grant root).
+     */
     public String execAsRoot(String command) throws ShellException {
-        return exec(new String[]{"su", "-c", command});
+        return execAsRoot(command, defaultTimeout, new Watchdog());
+    }
+
+    public String execAsRoot(String command, long timeoutMillis) throws ShellException {
+        return execAsRoot(command, timeoutMillis, new Watchdog());
+    }
+
+    private String execAsRoot(String command, long timeoutMillis, Watchdog watchdog)
+            throws ShellException {
+        long startTime = System.nanoTime();
+        OutputBuffer outputBuffer = new OutputBuffer(maxOutputLength, null);
+        try {
+            int exitStatus;
+            try {
+                exitStatus = execAsRoot(command, outputBuffer, timeoutMillis, watchdog);
+            } catch (ShellException e) {
+                logCommand(command, e.getMessage(), e.getExitStatus(), startTime);
+                throw e;
+            }
+            String output = outputBuffer.getOutput();
+            logCommand(command, output, exitStatus, startTime);
+            if (exitStatus != 0) {
+                failureCounter.increment();
+                throw new ShellException(
+                    String.format("Command exited with status %d: %s", exitStatus, output.trim()),
+                    exitStatus,
+                    false);
+            }
+            return output;
+        } finally {
+            outputBuffer.close();
+        }
+    }
+
+    /**
+     * Streaming version of {@link #execAsRoot(String)}. In the root session stderr is
+     * merged into stdout, so all lines are reported as regular output. Returns the exit
+     * status of the command.
+     */
+    public int execAsRoot(String command, OutputListener listener) throws ShellException {
+        return execAsRoot(command, listener, NO_TIMEOUT);
+    }
+
+    public int execAsRoot(String command, OutputListener listener, long timeoutMillis)
+            throws ShellException {
+        long startTime = System.nanoTime();
+        int exitStatus = execAsRoot(command, listener, timeoutMillis, new Watchdog());
+        logCommand(command, "(streamed)", exitStatus, startTime);
+        return exitStatus;
+    }
+
+    private int execAsRoot(
+            String command,
+            OutputListener listener,
+            long timeoutMillis,
+            Watchdog watchdog) throws ShellException {
+        // Waiting for the lock doesn't count towards the timeout. It can be interrupted,
+        // which is how submitAsRoot() futures are cancelled before the command starts.
+        try {
+            rootLock.lockInterruptibly();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ShellException(e);
+        }
+        try {
+            RootSession session = getRootSession();
+            if (session == null) {
+                Process process = spawn(new String[]{"su", "-c", command});
+                return runProcess(process, listener, timeoutMillis, watchdog, rootExecHistogram);
+            }
+
+            long startTime = System.nanoTime();
+            try {
+                return session.exec(command, listener, timeoutMillis, watchdog);
+            } catch (ShellException e) {
+                try {
+                    checkWatchdog(watchdog, timeoutMillis);
+                } catch (ShellException watchdogException) {
+                    e = watchdogException;
+                }
+                recordFailure(e);
+                throw e;
+            } finally {
+                rootExecHistogram.recordSince(startTime);
+            }
+        } finally {
+            rootLock.unlock();
+        }
     }
 }
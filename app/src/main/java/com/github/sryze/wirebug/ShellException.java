@@ -19,7 +19,35 @@ package com.github.sryze.wirebug;
 
 public class ShellException extends Exception {
 
+    public static final int EXIT_STATUS_UNKNOWN = -1;
+
+    private final int exitStatus;
+    private final boolean isTimeout;
+
     public ShellException(Throwable throwable) {
         super("Error while executing command", throwable);
+        this.exitStatus = EXIT_STATUS_UNKNOWN;
+        this.isTimeout = false;
+    }
+
+    public ShellException(String message, int exitStatus, boolean isTimeout) {
+        super(message);
+        this.exitStatus = exitStatus;
+        this.isTimeout = isTimeout;
+    }
+
+    /**
+     * Returns the exit status of the failed command, or {@link #EXIT_STATUS_UNKNOWN} if
+     * the command didn't run to completion.
+     */
+    public int getExitStatus() {
+        return exitStatus;
+    }
+
+    /**
+     * Returns true if the command was killed because it didn't finish in time.
+     */
+    public boolean isTimeout() {
+        return isTimeout;
     }
 }
@@ -0,0 +1,308 @@
+/*
+ * This file is part of Wirebug.
+ *
+ * Wirebug is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Wirebug is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Wirebug.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.sryze.wirebug;
+
+import android.content.Context;
+import android.content.Intent;
+import android.content.SharedPreferences;
+import android.os.Handler;
+import android.os.Looper;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import timber.log.Timber;
+
+/**
+ * Keeps what the widget and the Quick Settings tile show, so that they can be drawn without
+ * asking the system (or spawning anything) first.
+ *
+ * The snapshot is rebuilt from {@link DebugStatusStore} and {@link DebugToggleController}
+ * whenever either of them changes, and saved so that it's available right away after the
+ * process has been restarted. A toggle updates the snapshot before the request is even
+ * handed over to the controller, so the tap is acknowledged immediately.
+ */
+public class StatusCache {
+
+    /**
+     * What the widget and the tile show.
+     */
+    public static final class Snapshot {
+
+        private final boolean isEnabled;
+        private final boolean isTargetEnabled;
+        private final String connectAddress;
+
+        Snapshot(boolean isEnabled, boolean isTargetEnabled, String connectAddress) {
+            this.isEnabled = isEnabled;
+            this.isTargetEnabled = isTargetEnabled;
+            this.connectAddress = connectAddress;
+        }
+
+        public boolean isEnabled() {
+            return isEnabled;
+        }
+
+        /**
+         * Returns the state we're heading to, which differs from {@link #isEnabled()} while
+         * a toggle is in progress.
+         */
+        public boolean isTargetEnabled() {
+            return isTargetEnabled;
+        }
+
+        public boolean isBusy() {
+            return isEnabled != isTargetEnabled;
+        }
+
+        /**
+         * Returns the address to pass to "adb connect", or null if not connected to Wi-Fi.
+         */
+        public String getConnectAddress() {
+            return connectAddress;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (this == other) {
+                return true;
+            }
+            if (!(other instanceof Snapshot)) {
+                return false;
+            }
+            Snapshot snapshot = (Snapshot) other;
+            return isEnabled == snapshot.isEnabled
+                && isTargetEnabled == snapshot.isTargetEnabled
+                && (connectAddress == null
+                    ? snapshot.connectAddress == null
+                    : connectAddress.equals(snapshot.connectAddress));
+        }
+
+        @Override
+        public int hashCode() {
+            int result = isEnabled ? 1 : 0;
+            result = 31 * result + (isTargetEnabled ? 1 : 0);
+            result = 31 * result + (connectAddress != null ? connectAddress.hashCode() : 0);
+            return result;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("Snapshot{enabled=%s, target=%s, address=%s}",
+                isEnabled, isTargetEnabled, connectAddress);
+        }
+    }
+
+    /**
+     * Listeners are always called on the main thread.
+     */
+    public interface Listener {
+        void onSnapshotChanged(Snapshot snapshot);
+    }
+
+    private static final String PREFERENCES_NAME = "status_cache";
+    private static final String KEY_IS_ENABLED = "is_enabled";
+    private static final String KEY_CONNECT_ADDRESS = "connect_address";
+
+    private static StatusCache globalCache;
+
+    private final Context context;
+    private final SharedPreferences preferences;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final List<Listener> listeners = new ArrayList<>();
+    private final DebugStatusStore.Listener statusListener = new DebugStatusStore.Listener() {
+        @Override
+        public void onStatusChanged(DebugStatus status, int changes) {
+            if ((changes & (DebugStatus.FIELD_PORT
+                | DebugStatus.FIELD_CONNECTIVITY
+                | DebugStatus.FIELD_RELAY_MODE)) != 0) {
+                rebuild();
+            }
+        }
+    };
+    private final DebugToggleController.Listener toggleListener =
+        new DebugToggleController.Listener() {
+            @Override
+            public void onStateChanged(DebugToggleController.State state) {
+                onToggleStateChanged(state);
+            }
+        };
+
+    private volatile Snapshot snapshot;
+    private boolean isToggleRequested;
+
+    private StatusCache(Context context) {
+        this.context = context;
+        preferences = context.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE);
+        boolean isEnabled = preferences.getBoolean(KEY_IS_ENABLED, false);
+        snapshot = new Snapshot(
+            isEnabled, isEnabled, preferences.getString(KEY_CONNECT_ADDRESS, null));
+        DebugStatusStore.getStore().addListener(statusListener);
+        DebugToggleController.getController().addListener(toggleListener);
+    }
+
+    /**
+     * Must be called after {@link DebugStatusStore#init}.
+     */
+    public static synchronized void init(Context context) {
+        if (globalCache == null) {
+            globalCache = new StatusCache(context.getApplicationContext());
+            // The saved snapshot may be stale if debugging was toggled some other way
+            DebugToggleController.getController().refresh();
+        }
+    }
+
+    public static synchronized StatusCache getCache() {
+        if (globalCache == null) {
+            throw new IllegalStateException("StatusCache is not initialized");
+        }
+        return globalCache;
+    }
+
+    /**
+     * Returns the last known snapshot. Cheap enough to call while drawing.
+     */
+    public Snapshot getSnapshot() {
+        return snapshot;
+    }
+
+    public void addListener(Listener listener) {
+        synchronized (listeners) {
+            listeners.add(listener);
+        }
+    }
+
+    public void removeListener(Listener listener) {
+        synchronized (listeners) {
+            listeners.remove(listener);
+        }
+    }
+
+    /**
+     * Flips the target state and hands the request over to {@link DebugToggleController},
+     * which does the actual work on its own thread. Returns immediately. Must be called on
+     * the main thread.
+     */
+    public void toggle() {
+        Snapshot newSnapshot;
+        synchronized (this) {
+            boolean isTargetEnabled = !snapshot.isTargetEnabled();
+            isToggleRequested = true;
+            newSnapshot = new Snapshot(
+                snapshot.isEnabled(), isTargetEnabled, snapshot.getConnectAddress());
+            Timber.i("Toggling debugging from %s", newSnapshot);
+            DebugToggleController.getController().setEnabled(isTargetEnabled);
+        }
+        publish(newSnapshot);
+        startStatusService();
+    }
+
+    private void onToggleStateChanged(DebugToggleController.State state) {
+        DebugToggleController controller = DebugToggleController.getController();
+        synchronized (this) {
+            // A state from before the toggle can still arrive while the request is being
+            // debounced, so only a state that settles the request counts
+            boolean isSettled = !isInProgress(state)
+                && controller.isEnabled() == controller.isTargetEnabled();
+            if (isSettled || state == DebugToggleController.State.FAILED) {
+                isToggleRequested = false;
+            }
+        }
+        rebuild();
+    }
+
+    private void rebuild() {
+        DebugStatus status = DebugStatusStore.getStore().getStatus();
+        DebugToggleController controller = DebugToggleController.getController();
+        Snapshot newSnapshot;
+        synchronized (this) {
+            boolean isEnabled = status.isEnabled();
+            boolean isTargetEnabled = isToggleRequested || isInProgress(controller.getState())
+                ? controller.isTargetEnabled()
+                : isEnabled;
+            newSnapshot = new Snapshot(isEnabled, isTargetEnabled, getConnectAddress(status));
+        }
+        publish(newSnapshot);
+    }
+
+    private void publish(final Snapshot newSnapshot) {
+        synchronized (this) {
+            if (newSnapshot.equals(snapshot)) {
+                return;
+            }
+            snapshot = newSnapshot;
+        }
+        Timber.d("Cached status has changed: %s", newSnapshot);
+        preferences.edit()
+            .putBoolean(KEY_IS_ENABLED, newSnapshot.isEnabled())
+            .putString(KEY_CONNECT_ADDRESS, newSnapshot.getConnectAddress())
+            .apply();
+        mainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                DebugWidgetProvider.updateWidgets(context, newSnapshot);
+                List<Listener> listenersCopy;
+                synchronized (listeners) {
+                    listenersCopy = new ArrayList<>(listeners);
+                }
+                for (Listener listener : listenersCopy) {
+                    listener.onSnapshotChanged(newSnapshot);
+                }
+            }
+        });
+    }
+
+    /**
+     * The status service polls fast for a while after being started, so it picks up the
+     * result of the toggle and shows (or removes) the notification.
+     */
+    private void startStatusService() {
+        Intent intent = new Intent(context, DebugStatusService.class);
+        intent.setAction(DebugStatusService.ACTION_UPDATE_STATUS);
+        try {
+            context.startService(intent);
+        } catch (IllegalStateException e) {
+            // Not allowed while in the background on Android 8+; the next time the app is
+            // opened will do
+            Timber.w("Could not start status service: %s", e.getMessage());
+        }
+    }
+
+    private static boolean isInProgress(DebugToggleController.State state) {
+        return state == DebugToggleController.State.ENABLING
+            || state == DebugToggleController.State.DISABLING
+            || state == DebugToggleController.State.RESTARTING_ADBD;
+    }
+
+    /**
+     * Hosts connect to the relay on the default port, and adbd's own port otherwise.
+     */
+    private static String getConnectAddress(DebugStatus status) {
+        ConnectivitySnapshot connectivity = status.getConnectivity();
+        String address = connectivity.isConnectedToWifi()
+            ? connectivity.getPreferredAddress()
+            : null;
+        if (address == null) {
+            return null;
+        }
+        int port = status.isRelayMode() || !status.isEnabled()
+            ? DebugManager.ADB_TCP_PORT_DEFAULT
+            : status.getPort();
+        return port == DebugManager.ADB_TCP_PORT_DEFAULT ? address : address + ":" + port;
+    }
+}
@@ -0,0 +1,119 @@
+/*
+ * This file is part of Wirebug.
+ *
+ * Wirebug is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Wirebug is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Wirebug.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.sryze.wirebug;
+
+import android.os.Handler;
+
+/**
+ * Decides when the next status update should run. Events (and explicit requests, e.g.
+ * right after a toggle) trigger an update immediately and reset the polling interval to
+ * its minimum; while nothing changes the interval keeps doubling up to the maximum.
+ *
+ * Polling is only a fallback for changes we can't get notified about, such as someone
+ * running "adb tcpip" or "setprop" behind our back.
+ */
+class StatusUpdateScheduler {
+
+    static final long MIN_INTERVAL = 1000;
+    static final long MAX_INTERVAL = 5 * 60 * 1000;
+
+    private final Handler handler;
+    private final Runnable updateRunnable;
+    private final Runnable scheduledRunnable = new Runnable() {
+        @Override
+        public void run() {
+            runUpdate();
+        }
+    };
+
+    private long interval = MIN_INTERVAL;
+    private long maxInterval = MAX_INTERVAL;
+    private boolean isStopped;
+
+    /**
+     * @param handler handler of the thread on which updates are run
+     * @param updateRunnable performs the update; must call {@link #onUpdateFinished}
+     */
+    StatusUpdateScheduler(Handler handler, Runnable updateRunnable) {
+        this.handler = handler;
+        this.updateRunnable = updateRunnable;
+    }
+
+    /**
+     * Runs an update as soon as possible and goes back to polling at the fastest rate.
+     * Can be called from any thread.
+     */
+    void requestUpdate() {
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                interval = MIN_INTERVAL;
+                runUpdate();
+            }
+        });
+    }
+
+    /**
+     * Must be called on the handler thread after each update.
+     *
+     * @param isChanged whether the update detected a change since the previous one
+     */
+    void onUpdateFinished(boolean isChanged) {
+        if (isStopped) {
+            return;
+        }
+        if (isChanged) {
+            interval = MIN_INTERVAL;
+        } else {
+            interval = Math.min(interval * 2, maxInterval);
+        }
+        handler.removeCallbacks(scheduledRunnable);
+        handler.postDelayed(scheduledRunnable, interval);
+    }
+
+    /**
+     * Limits how far the interval can back off, for when there is something we need to
+     * notice quickly but can't get notified about. Pass {@link #MAX_INTERVAL} to remove the
+     * limit. Must be called on the handler thread; takes effect from the next update.
+     */
+    void setMaxInterval(long maxInterval) {
+        this.maxInterval = maxInterval;
+    }
+
+    void stop() {
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                isStopped = true;
+                handler.removeCallbacks(scheduledRunnable);
+            }
+        });
+    }
+
+    long getInterval() {
+        return interval;
+    }
+
+    private void runUpdate() {
+        if (isStopped) {
+            return;
+        }
+        handler.removeCallbacks(scheduledRunnable);
+        updateRunnable.run();
+    }
+}
@@ -0,0 +1,78 @@
+/*
+ * This file is part of Wirebug.
+ *
+ * Wirebug is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Wirebug is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Wirebug.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.sryze.wirebug;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+
+/**
+ * Reads a process stream line by line and hands each line to a listener. Pumps for stdout
+ * and stderr run at the same time so that a child process writing a lot to one of them
+ * can never block on a full pipe while we're waiting on the other.
+ */
+class StreamPump implements Runnable {
+
+    private final InputStream stream;
+    private final Shell.OutputListener listener;
+    private final boolean isError;
+
+    private Thread thread;
+    private IOException exception;
+
+    StreamPump(InputStream stream, Shell.OutputListener listener, boolean isError) {
+        this.stream = stream;
+        this.listener = listener;
+        this.isError = isError;
+    }
+
+    void start(String name) {
+        thread = new Thread(this, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    void join() throws IOException, InterruptedException {
+        if (thread != null) {
+            thread.join();
+        }
+        if (exception != null) {
+            throw exception;
+        }
+    }
+
+    @Override
+    public void run() {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(stream));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                listener.onOutputLine(line, isError);
+            }
+        } catch (IOException e) {
+            exception = e;
+        } finally {
+            try {
+                reader.close();
+            } catch (IOException e) {
+                // Nothing we can do about it
+            }
+        }
+    }
+}
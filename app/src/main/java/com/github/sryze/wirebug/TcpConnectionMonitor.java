@@ -0,0 +1,405 @@
+/*
+ * This file is part of Wirebug.
+ *
+ * Wirebug is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Wirebug is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Wirebug.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.sryze.wirebug;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Finds out who is connected to adbd by looking for established TCP connections to its
+ * port in /proc/net/tcp and /proc/net/tcp6.
+ *
+ * Scans are meant to be run often, so they don't allocate anything unless the set of
+ * connections has changed: the files are kept open and read into the same buffer every
+ * time, and lines are parsed in place without creating strings. Not thread-safe.
+ */
+public class TcpConnectionMonitor {
+
+    public static final String[] PROC_FILES = {"/proc/net/tcp", "/proc/net/tcp6"};
+
+    static final int MAX_CONNECTIONS = 64;
+
+    private static final int TCP_ESTABLISHED = 1;
+    private static final int ADDRESS_LENGTH = 16;
+    private static final int INITIAL_BUFFER_SIZE = 16 * 1024;
+
+    private final String[] paths;
+    private final RandomAccessFile[] files;
+    private byte[] buffer = new byte[INITIAL_BUFFER_SIZE];
+
+    // Connections found by the current scan; IPv4 addresses are stored as IPv4-mapped IPv6
+    private byte[] addresses = new byte[MAX_CONNECTIONS * ADDRESS_LENGTH];
+    private int[] remotePorts = new int[MAX_CONNECTIONS];
+    private int count;
+
+    // Connections found by the previous scan
+    private byte[] previousAddresses = new byte[MAX_CONNECTIONS * ADDRESS_LENGTH];
+    private int[] previousRemotePorts = new int[MAX_CONNECTIONS];
+    private int previousCount;
+
+    private int[] localPorts = new int[0];
+    private List<String> hosts = Collections.emptyList();
+
+    public TcpConnectionMonitor() {
+        this(PROC_FILES);
+    }
+
+    TcpConnectionMonitor(String[] paths) {
+        this.paths = paths;
+        this.files = new RandomAccessFile[paths.length];
+    }
+
+    /**
+     * Reads the proc files and looks for established connections to any of the given
+     * local ports. Returns true if the connections are different from the previous scan.
+     *
+     * @throws IOException if none of the files could be read (e.g. access to /proc/net is
+     *     restricted)
+     */
+    public boolean scan(int... ports) throws IOException {
+        beginScan(ports);
+        IOException lastException = null;
+        int readCount = 0;
+        for (int i = 0; i < paths.length; i++) {
+            try {
+                int length = readFile(i);
+                parse(buffer, length);
+                readCount++;
+            } catch (IOException e) {
+                closeFile(i);
+                lastException = e;
+            }
+        }
+        if (readCount == 0 && lastException != null) {
+            throw lastException;
+        }
+        return endScan();
+    }
+
+    /**
+     * Same as {@link #scan(int...)}, but parses the contents of the proc files obtained in
+     * some other way (e.g. by reading them as root).
+     */
+    public boolean scan(byte[] data, int length, int... ports) {
+        beginScan(ports);
+        parse(data, length);
+        return endScan();
+    }
+
+    /**
+     * Returns the distinct addresses of the connected hosts as of the last scan.
+     */
+    public List<String> getHosts() {
+        return hosts;
+    }
+
+    public void close() {
+        for (int i = 0; i < files.length; i++) {
+            closeFile(i);
+        }
+    }
+
+    private void beginScan(int[] ports) {
+        localPorts = ports;
+        byte[] tempAddresses = previousAddresses;
+        previousAddresses = addresses;
+        addresses = tempAddresses;
+        int[] tempPorts = previousRemotePorts;
+        previousRemotePorts = remotePorts;
+        remotePorts = tempPorts;
+        previousCount = count;
+        count = 0;
+    }
+
+    private boolean endScan() {
+        if (isSameAsPrevious()) {
+            return false;
+        }
+        List<String> newHosts = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            String host = formatAddress(addresses, i * ADDRESS_LENGTH);
+            if (!newHosts.contains(host)) {
+                newHosts.add(host);
+            }
+        }
+        hosts = Collections.unmodifiableList(newHosts);
+        return true;
+    }
+
+    private boolean isSameAsPrevious() {
+        if (count != previousCount) {
+            return false;
+        }
+        // The kernel usually lists sockets in the same order, but don't rely on it
+        for (int i = 0; i < count; i++) {
+            if (!containsPrevious(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean containsPrevious(int index) {
+        int offset = index * ADDRESS_LENGTH;
+        for (int j = 0; j < previousCount; j++) {
+            if (remotePorts[index] != previousRemotePorts[j]) {
+                continue;
+            }
+            int previousOffset = j * ADDRESS_LENGTH;
+            boolean isEqual = true;
+            for (int k = 0; k < ADDRESS_LENGTH && isEqual; k++) {
+                isEqual = addresses[offset + k] == previousAddresses[previousOffset + k];
+            }
+            if (isEqual) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private int readFile(int index) throws IOException {
+        RandomAccessFile file = files[index];
+        if (file == null) {
+            try {
+                file = new RandomAccessFile(paths[index], "r");
+            } catch (FileNotFoundException e) {
+                // Also thrown when access is denied
+                throw new IOException(e.getMessage());
+            }
+            files[index] = file;
+        }
+        // Proc files report a length of 0, so read until the end
+        file.seek(0);
+        int length = 0;
+        int readCount;
+        while ((readCount = file.read(buffer, length, buffer.length - length)) > 0) {
+            length += readCount;
+            if (length == buffer.length) {
+                buffer = Arrays.copyOf(buffer, buffer.length * 2);
+            }
+        }
+        return length;
+    }
+
+    private void closeFile(int index) {
+        if (files[index] != null) {
+            try {
+                files[index].close();
+            } catch (IOException e) {
+                // Ignore
+            }
+            files[index] = null;
+        }
+    }
+
+    /**
+     * Parses lines that look like this (the header and anything malformed is skipped):
+     *
+     * 0: 0100007F:15B3 0200007F:A1B2 01 00000000:00000000 ...
+     *
+     * Addresses are printed as 32-bit words in host byte order, 1 word for IPv4 and 4 for
+     * IPv6; ports are in network byte order.
+     */
+    void parse(byte[] data, int length) {
+        int lineStart = 0;
+        while (lineStart < length) {
+            int lineEnd = lineStart;
+            while (lineEnd < length && data[lineEnd] != '\n') {
+                lineEnd++;
+            }
+            parseLine(data, lineStart, lineEnd);
+            lineStart = lineEnd + 1;
+        }
+    }
+
+    private void parseLine(byte[] data, int start, int end) {
+        // Slot number
+        int position = skipSpaces(data, start, end);
+        while (position < end && data[position] != ':') {
+            position++;
+        }
+        position = skipSpaces(data, position + 1, end);
+
+        // Local address
+        int localAddressStart = position;
+        int localAddressLength = hexLength(data, position, end);
+        position += localAddressLength;
+        if (!isAddressLength(localAddressLength)
+            || position + 5 > end
+            || data[position] != ':') {
+            return;
+        }
+        int localPort = parseHex(data, position + 1, 4);
+        if (localPort < 0 || !isMonitoredPort(localPort)) {
+            return;
+        }
+        position = skipSpaces(data, position + 5, end);
+
+        // Remote address
+        int remoteAddressStart = position;
+        int remoteAddressLength = hexLength(data, position, end);
+        position += remoteAddressLength;
+        if (remoteAddressLength != localAddressLength
+            || position + 5 > end
+            || data[position] != ':') {
+            return;
+        }
+        int remotePort = parseHex(data, position + 1, 4);
+        position = skipSpaces(data, position + 5, end);
+
+        // State
+        int state = position + 2 <= end ? parseHex(data, position, 2) : -1;
+        if (remotePort < 0 || state != TCP_ESTABLISHED || count >= MAX_CONNECTIONS) {
+            return;
+        }
+
+        int offset = count * ADDRESS_LENGTH;
+        if (!decodeAddress(data, remoteAddressStart, remoteAddressLength, addresses, offset)
+            || isLoopback(addresses, offset)) {
+            return;
+        }
+        remotePorts[count] = remotePort;
+        count++;
+    }
+
+    private boolean isMonitoredPort(int port) {
+        for (int localPort : localPorts) {
+            if (localPort == port) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean isAddressLength(int length) {
+        return length == 8 || length == 32;
+    }
+
+    /**
+     * Writes the address as 16 bytes, mapping IPv4 addresses into IPv6.
+     */
+    private static boolean decodeAddress(
+            byte[] data,
+            int start,
+            int length,
+            byte[] address,
+            int offset) {
+        int wordCount = length / 8;
+        int firstWord = 4 - wordCount;
+        if (wordCount == 1) {
+            Arrays.fill(address, offset, offset + 10, (byte) 0);
+            address[offset + 10] = (byte) 0xff;
+            address[offset + 11] = (byte) 0xff;
+        }
+        for (int word = 0; word < wordCount; word++) {
+            for (int i = 0; i < 4; i++) {
+                // Bytes of each word are printed in reverse
+                int value = parseHex(data, start + word * 8 + (3 - i) * 2, 2);
+                if (value < 0) {
+                    return false;
+                }
+                address[offset + (firstWord + word) * 4 + i] = (byte) value;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isIpv4Mapped(byte[] address, int offset) {
+        for (int i = 0; i < 10; i++) {
+            if (address[offset + i] != 0) {
+                return false;
+            }
+        }
+        return address[offset + 10] == (byte) 0xff && address[offset + 11] == (byte) 0xff;
+    }
+
+    private static boolean isLoopback(byte[] address, int offset) {
+        if (isIpv4Mapped(address, offset)) {
+            return address[offset + 12] == 127;
+        }
+        // ::1
+        for (int i = 0; i < ADDRESS_LENGTH - 1; i++) {
+            if (address[offset + i] != 0) {
+                return false;
+            }
+        }
+        return address[offset + ADDRESS_LENGTH - 1] == 1;
+    }
+
+    private static String formatAddress(byte[] address, int offset) {
+        byte[] bytes = isIpv4Mapped(address, offset)
+            ? Arrays.copyOfRange(address, offset + 12, offset + ADDRESS_LENGTH)
+            : Arrays.copyOfRange(address, offset, offset + ADDRESS_LENGTH);
+        try {
+            return InetAddress.getByAddress(bytes).getHostAddress();
+        } catch (UnknownHostException e) {
+            // Only thrown if the address has an illegal length
+            throw new AssertionError(e);
+        }
+    }
+
+    private static int skipSpaces(byte[] data, int position, int end) {
+        while (position < end && data[position] == ' ') {
+            position++;
+        }
+        return position;
+    }
+
+    private static int hexLength(byte[] data, int position, int end) {
+        int length = 0;
+        while (position + length < end && hexValue(data[position + length]) >= 0) {
+            length++;
+        }
+        return length;
+    }
+
+    /**
+     * Returns -1 if any of the characters is not a hex digit.
+     */
+    private static int parseHex(byte[] data, int position, int length) {
+        int value = 0;
+        for (int i = 0; i < length; i++) {
+            int digit = hexValue(data[position + i]);
+            if (digit < 0) {
+                return -1;
+            }
+            value = (value << 4) | digit;
+        }
+        return value;
+    }
+
+    private static int hexValue(byte c) {
+        if (c >= '0' && c <= '9') {
+            return c - '0';
+        }
+        if (c >= 'A' && c <= 'F') {
+            return c - 'A' + 10;
+        }
+        if (c >= 'a' && c <= 'f') {
+            return c - 'a' + 10;
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,175 @@
+/*
+ * This file is part of Wirebug.
+ *
+ * Wirebug is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Wirebug is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Wirebug.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.sryze.wirebug;
+
+import android.os.Handler;
+import android.os.PowerManager;
+import android.os.SystemClock;
+
+import java.io.PrintWriter;
+
+import timber.log.Timber;
+
+/**
+ * Decides which wake lock to hold while debugging is enabled.
+ *
+ * Nothing is held while adbd is idle. When a host connects or adb traffic flows, a partial
+ * wake lock keeps the CPU (and so adbd) running; if stay_awake is set, a screen lock is
+ * held instead. The lock is released once there has been no activity for the grace period,
+ * so a short pause between commands doesn't let the device go to sleep. Can be used from
+ * any thread.
+ */
+class WakeLockPolicy {
+
+    static final long GRACE_PERIOD = 2 * 60 * 1000;
+
+    // Locks are acquired with a timeout, so that they can't outlive us if activity reports
+    // stop coming for whatever reason
+    private static final long LOCK_TIMEOUT = 2 * GRACE_PERIOD;
+
+    private enum Level {
+        NONE,
+        PARTIAL,
+        SCREEN
+    }
+
+    private final Handler handler;
+    private final PowerManager.WakeLock partialLock;
+    private final PowerManager.WakeLock screenLock;
+    private final Runnable gracePeriodRunnable = new Runnable() {
+        @Override
+        public void run() {
+            onGracePeriodEnded();
+        }
+    };
+
+    private boolean isEnabled;
+    private boolean isStayAwake;
+    private boolean isActive;
+    private Level level = Level.NONE;
+    private long heldSince;
+
+    /**
+     * @param handler handler on which the lock is released after the grace period
+     */
+    WakeLockPolicy(PowerManager powerManager, Handler handler) {
+        this.handler = handler;
+        partialLock = powerManager.newWakeLock(
+            PowerManager.PARTIAL_WAKE_LOCK,
+            "wirebug:debugging_session");
+        partialLock.setReferenceCounted(false);
+        screenLock = powerManager.newWakeLock(
+            PowerManager.SCREEN_DIM_WAKE_LOCK | PowerManager.ON_AFTER_RELEASE,
+            "wirebug:stay_awake_while_debugging");
+        screenLock.setReferenceCounted(false);
+    }
+
+    /**
+     * Called whenever debugging is enabled or disabled, or stay_awake changes. Enabling
+     * debugging counts as activity: someone is likely about to connect.
+     */
+    synchronized void setStatus(boolean isEnabled, boolean isStayAwake) {
+        boolean isJustEnabled = isEnabled && !this.isEnabled;
+        this.isEnabled = isEnabled;
+        this.isStayAwake = isStayAwake;
+        if (isJustEnabled) {
+            onActivity();
+        } else if (!isEnabled) {
+            isActive = false;
+            handler.removeCallbacks(gracePeriodRunnable);
+            apply();
+        } else {
+            apply();
+        }
+    }
+
+    /**
+     * Called when a host is found to be connected or adb traffic has been seen.
+     */
+    synchronized void onActivity() {
+        if (!isEnabled) {
+            return;
+        }
+        isActive = true;
+        handler.removeCallbacks(gracePeriodRunnable);
+        handler.postDelayed(gracePeriodRunnable, GRACE_PERIOD);
+        apply();
+    }
+
+    /**
+     * Releases whatever is held, e.g. when the service is destroyed.
+     */
+    synchronized void release() {
+        isEnabled = false;
+        isActive = false;
+        handler.removeCallbacks(gracePeriodRunnable);
+        apply();
+    }
+
+    synchronized void dump(PrintWriter writer) {
+        if (level == Level.NONE) {
+            writer.println("Wake lock: none");
+        } else {
+            writer.printf("Wake lock: %s (held for %d s)%n",
+                level, (SystemClock.elapsedRealtime() - heldSince) / 1000);
+        }
+    }
+
+    private synchronized void onGracePeriodEnded() {
+        Timber.d("No activity for %d s", GRACE_PERIOD / 1000);
+        isActive = false;
+        apply();
+    }
+
+    private void apply() {
+        Level newLevel;
+        if (!isEnabled || !isActive) {
+            newLevel = Level.NONE;
+        } else if (isStayAwake) {
+            newLevel = Level.SCREEN;
+        } else {
+            newLevel = Level.PARTIAL;
+        }
+
+        // Acquire the new lock before releasing the old one, so there's no gap between them
+        if (newLevel == Level.PARTIAL) {
+            partialLock.acquire(LOCK_TIMEOUT);
+        } else if (newLevel == Level.SCREEN) {
+            screenLock.acquire(LOCK_TIMEOUT);
+        }
+        if (newLevel != Level.PARTIAL && partialLock.isHeld()) {
+            partialLock.release();
+        }
+        if (newLevel != Level.SCREEN && screenLock.isHeld()) {
+            screenLock.release();
+        }
+
+        if (newLevel == level) {
+            return;
+        }
+        Timber.i("Wake lock: %s -> %s", level, newLevel);
+        long now = SystemClock.elapsedRealtime();
+        if (level == Level.NONE) {
+            heldSince = now;
+            Metrics.counter(Metrics.WAKE_LOCK_ACQUISITIONS).increment();
+        } else if (newLevel == Level.NONE) {
+            Metrics.counter(Metrics.WAKE_LOCK_HELD_MILLIS).add(now - heldSince);
+        }
+        level = newLevel;
+    }
+}
@@ -0,0 +1,95 @@
+/*
+ * This file is part of Wirebug.
+ *
+ * Wirebug is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Wirebug is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Wirebug.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.sryze.wirebug;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Kills a running command when it takes too long or when it's cancelled. The kill action
+ * is expected to unblock whoever is waiting for the command, e.g. by destroying the process
+ * so that reads from its pipes return EOF.
+ */
+class Watchdog {
+
+    private static final ScheduledExecutorService scheduler =
+        Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "Shell-watchdog");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
+    private Runnable killAction;
+    private ScheduledFuture<?> timeoutFuture;
+    private boolean isFired;
+    private boolean isTimedOut;
+
+    synchronized void arm(Runnable killAction, long timeoutMillis) {
+        if (isFired) {
+            // Cancelled before the command even started
+            killAction.run();
+            return;
+        }
+        this.killAction = killAction;
+        if (timeoutMillis > 0) {
+            timeoutFuture = scheduler.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    fire(true);
+                }
+            }, timeoutMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    synchronized void disarm() {
+        if (timeoutFuture != null) {
+            timeoutFuture.cancel(false);
+            timeoutFuture = null;
+        }
+        killAction = null;
+    }
+
+    void cancel() {
+        fire(false);
+    }
+
+    synchronized boolean isFired() {
+        return isFired;
+    }
+
+    synchronized boolean isTimedOut() {
+        return isTimedOut;
+    }
+
+    private synchronized void fire(boolean isTimeout) {
+        if (isFired) {
+            return;
+        }
+        isFired = true;
+        isTimedOut = isTimeout;
+        if (killAction != null) {
+            killAction.run();
+        }
+    }
+}
@@ -18,11 +18,17 @@
 package com.github.sryze.wirebug;
 
 import android.app.Application;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
 
 import timber.log.Timber;
 
 public final class WirebugApp extends Application {
 
+    private BroadcastReceiver userUnlockedReceiver;
+
     @Override
     public void onCreate() {
         super.onCreate();
@@ -30,5 +36,42 @@ public final class WirebugApp extends Application {
         if (BuildConfig.DEBUG) {
             Timber.plant(new Timber.DebugTree());
         }
+        Timber.plant(new LogBufferTree(LogBuffer.getBuffer()));
+
+        Shell.getShell().setSpillDirectory(getCacheDir());
+        Shell.getShell().setLogBuffer(LogBuffer.getBuffer());
+        Shell.getShell().setRootSessionEnabled(true);
+        RootCapabilityCache.init(this);
+        RootHelperLauncher.init(this);
+        BootRestore.init(this);
+        ConnectivityTracker.init(this);
+
+        // The process can be started for LOCKED_BOOT_COMPLETED, before credential protected
+        // storage (where the settings live) is available
+        if (StorageUtils.isUserUnlocked(this)) {
+            onUserUnlocked();
+        } else {
+            Timber.i("Waiting for the user to unlock the device");
+            userUnlockedReceiver = new BroadcastReceiver() {
+                @Override
+                public void onReceive(Context context, Intent intent) {
+                    onUserUnlocked();
+                }
+            };
+            registerReceiver(userUnlockedReceiver, new IntentFilter(Intent.ACTION_USER_UNLOCKED));
+        }
+    }
+
+    /**
+     * Initializes everything that needs credential protected storage. Safe to call more
+     * than once, e.g. from BOOT_COMPLETED, which can arrive before ACTION_USER_UNLOCKED.
+     */
+    synchronized void onUserUnlocked() {
+        if (userUnlockedReceiver != null) {
+            unregisterReceiver(userUnlockedReceiver);
+            userUnlockedReceiver = null;
+        }
+        DebugStatusStore.init(this);
+        StatusCache.init(this);
     }
 }
@@ -0,0 +1,104 @@
+/*
+ * This file is part of Wirebug.
+ *
+ * Wirebug is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Wirebug is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Wirebug.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package com.github.sryze.wirebug;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Sends requests to the control server over loopback.
+ */
+public class ControlServerTest {
+
+    private static final int TIMEOUT = 5000;
+    private static final Charset CHARSET = Charset.forName("US-ASCII");
+
+    private ControlServer server;
+
+    @Before
+    public void setUp() throws IOException {
+        server = new ControlServer(
+            new InetSocketAddress(InetAddress.getLoopbackAddress(), 0),
+            new ControlServer.RequestHandler() {
+                @Override
+                public ControlServer.Response handle(
+                        String method,
+                        String path,
+                        Map<String, String> headers) {
+                    if (!"secret".equals(headers.get("x-wirebug-token"))) {
+                        return ControlServer.Response.error(403);
+                    }
+                    return ControlServer.Response.json(200, "{}");
+                }
+            });
+        server.start();
+    }
+
+    @After
+    public void tearDown() {
+        server.stop();
+    }
+
+    @Test
+    public void parseHeaders() {
+        String request = "POST /enable HTTP/1.1\r\nHost: device\r\nX-Wirebug-Token:  secret \r\n"
+            + "broken line\r\n\r\n";
+        ByteBuffer buffer = ByteBuffer.wrap(request.getBytes(CHARSET));
+        Map<String, String> headers = ControlServer.parseHeaders(buffer, buffer.limit());
+        assertEquals(2, headers.size());
+        assertEquals("device", headers.get("host"));
+        assertEquals("secret", headers.get("x-wirebug-token"));
+    }
+
+    @Test
+    public void headersReachHandler() throws IOException {
+        assertEquals("HTTP/1.1 403 Forbidden", request("POST /enable HTTP/1.1\r\n\r\n"));
+        assertEquals("HTTP/1.1 200 OK",
+            request("POST /enable HTTP/1.1\r\nx-wirebug-token: secret\r\n\r\n"));
+    }
+
+    @Test
+    public void malformedRequest() throws IOException {
+        assertEquals("HTTP/1.1 400 Bad Request", request("garbage\r\n\r\n"));
+    }
+
+    private String request(String request) throws IOException {
+        try (Socket socket = new Socket()) {
+            socket.connect(new InetSocketAddress(
+                InetAddress.getLoopbackAddress(), server.getLocalPort()), TIMEOUT);
+            socket.setSoTimeout(TIMEOUT);
+            socket.getOutputStream().write(request.getBytes(CHARSET));
+            return new BufferedReader(new InputStreamReader(socket.getInputStream(), CHARSET))
+                .readLine();
+        }
+    }
+}
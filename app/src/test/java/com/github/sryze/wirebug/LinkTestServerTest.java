@@ -0,0 +1,189 @@
+/*
+ * This file is part of Wirebug.
+ *
+ * Wirebug is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Wirebug is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Wirebug.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package com.github.sryze.wirebug;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.Charset;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs the link test server against a local client over loopback.
+ */
+public class LinkTestServerTest {
+
+    private static final int TIMEOUT = 5000;
+    private static final Charset CHARSET = Charset.forName("US-ASCII");
+
+    private final BlockingQueue<LinkTestResult> results = new LinkedBlockingQueue<>();
+    private LinkTestServer server;
+    private InetSocketAddress address;
+
+    @Before
+    public void setUp() throws IOException {
+        server = new LinkTestServer(
+            new InetSocketAddress(InetAddress.getLoopbackAddress(), 0),
+            new LinkTestServer.Listener() {
+                @Override
+                public void onTestFinished(LinkTestResult result) {
+                    results.add(result);
+                }
+            });
+        server.start();
+        address = new InetSocketAddress(InetAddress.getLoopbackAddress(), server.getLocalPort());
+    }
+
+    @After
+    public void tearDown() {
+        server.stop();
+    }
+
+    @Test
+    public void upload() throws Exception {
+        try (LinkTestClient client = new LinkTestClient(address, TIMEOUT)) {
+            assertTrue(client.upload(1024 * 1024) > 0);
+        }
+        LinkTestResult result = takeResult();
+        assertEquals(LinkTestResult.Type.UPLOAD, result.getType());
+        assertEquals(1024 * 1024, result.getByteCount());
+    }
+
+    @Test
+    public void download() throws Exception {
+        try (LinkTestClient client = new LinkTestClient(address, TIMEOUT)) {
+            assertTrue(client.download(1024 * 1024) > 0);
+        }
+        LinkTestResult result = takeResult();
+        assertEquals(LinkTestResult.Type.DOWNLOAD, result.getType());
+        assertEquals(1024 * 1024, result.getByteCount());
+    }
+
+    @Test
+    public void ping() throws Exception {
+        try (LinkTestClient client = new LinkTestClient(address, TIMEOUT)) {
+            assertNotNull(client.ping(10));
+        }
+        LinkTestResult result = takeResult();
+        assertEquals(LinkTestResult.Type.PING, result.getType());
+        assertEquals(10, result.getPingCount());
+    }
+
+    @Test
+    public void invalidCommands() throws Exception {
+        try (Socket socket = connect()) {
+            BufferedReader reader = newReader(socket);
+            OutputStream output = socket.getOutputStream();
+            output.write("FOO\nUPLOAD 0\nDOWNLOAD x\nPING -1\n".getBytes(CHARSET));
+            assertTrue(reader.readLine().startsWith("ERR Unknown command"));
+            assertTrue(reader.readLine().startsWith("ERR Size"));
+            assertTrue(reader.readLine().startsWith("ERR Size"));
+            assertTrue(reader.readLine().startsWith("ERR Count"));
+        }
+    }
+
+    @Test
+    public void quit() throws Exception {
+        try (Socket socket = connect()) {
+            socket.getOutputStream().write("QUIT\n".getBytes(CHARSET));
+            assertEquals(-1, socket.getInputStream().read());
+        }
+    }
+
+    /**
+     * A client that keeps writing during a download (and doesn't read) must not keep the
+     * server from serving others.
+     */
+    @Test
+    public void writingDuringDownload() throws Exception {
+        try (Socket socket = connect()) {
+            final OutputStream output = socket.getOutputStream();
+            output.write("DOWNLOAD 100000000\n".getBytes(CHARSET));
+            Thread writer = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    byte[] junk = new byte[64 * 1024];
+                    try {
+                        while (true) {
+                            output.write(junk);
+                        }
+                    } catch (IOException e) {
+                        // The socket was closed
+                    }
+                }
+            });
+            writer.setDaemon(true);
+            writer.start();
+
+            try (LinkTestClient client = new LinkTestClient(address, TIMEOUT)) {
+                assertNotNull(client.ping(3));
+            }
+        }
+    }
+
+    @Test
+    public void downloadIsReadAfterDone() throws Exception {
+        try (Socket socket = connect()) {
+            OutputStream output = socket.getOutputStream();
+            InputStream input = socket.getInputStream();
+            output.write("DOWNLOAD 100000\n".getBytes(CHARSET));
+            byte[] buffer = new byte[8192];
+            long remaining = 100000;
+            while (remaining > 0) {
+                int count = input.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                assertTrue(count > 0);
+                remaining -= count;
+            }
+            output.write("DONE\n".getBytes(CHARSET));
+            assertTrue(newReader(socket).readLine().startsWith("OK "));
+        }
+    }
+
+    private Socket connect() throws IOException {
+        Socket socket = new Socket();
+        socket.connect(address, TIMEOUT);
+        socket.setSoTimeout(TIMEOUT);
+        return socket;
+    }
+
+    private static BufferedReader newReader(Socket socket) throws IOException {
+        return new BufferedReader(new InputStreamReader(socket.getInputStream(), CHARSET));
+    }
+
+    private LinkTestResult takeResult() throws InterruptedException {
+        LinkTestResult result = results.poll(TIMEOUT, TimeUnit.MILLISECONDS);
+        assertNotNull(result);
+        return result;
+    }
+}
@@ -0,0 +1,167 @@
+/*
+ * This file is part of Wirebug.
+ *
+ * Wirebug is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Wirebug is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Wirebug.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.sryze.wirebug;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Round trips through {@link AdbRelay} to an echo server standing in for adbd, compared
+ * with talking to the echo server directly.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class AdbRelayBenchmark {
+
+    @Param({"24", "4096", "262144"})
+    public int payloadSize;
+
+    private ServerSocket echoServer;
+    private AdbRelay relay;
+    private Socket relayedSocket;
+    private Socket directSocket;
+    private byte[] payload;
+    private byte[] response;
+
+    @Setup
+    public void setUp() throws IOException {
+        InetAddress loopback = InetAddress.getLoopbackAddress();
+        echoServer = new ServerSocket(0, 50, loopback);
+        Thread echoThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                runEchoServer();
+            }
+        }, "EchoServer");
+        echoThread.setDaemon(true);
+        echoThread.start();
+
+        relay = new AdbRelay(
+            new InetSocketAddress(loopback, 0),
+            new InetSocketAddress(loopback, echoServer.getLocalPort()),
+            AdbRelay.DEFAULT_MAX_CONNECTIONS);
+        relay.start();
+
+        relayedSocket = new Socket(loopback, relay.getLocalPort());
+        relayedSocket.setTcpNoDelay(true);
+        directSocket = new Socket(loopback, echoServer.getLocalPort());
+        directSocket.setTcpNoDelay(true);
+        payload = FakeProcessFactory.generateOutput(payloadSize, 80);
+        response = new byte[payloadSize];
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        relayedSocket.close();
+        directSocket.close();
+        relay.stop();
+        echoServer.close();
+    }
+
+    @Benchmark
+    public byte[] relayed() throws IOException {
+        return roundTrip(relayedSocket);
+    }
+
+    @Benchmark
+    public byte[] direct() throws IOException {
+        return roundTrip(directSocket);
+    }
+
+    private byte[] roundTrip(Socket socket) throws IOException {
+        OutputStream outputStream = socket.getOutputStream();
+        InputStream inputStream = socket.getInputStream();
+        int offset = 0;
+        int chunkSize = 16 * 1024;
+        // Write in chunks and read in between so that neither side blocks on a full window
+        for (int written = 0; written < payloadSize; written += chunkSize) {
+            outputStream.write(payload, written, Math.min(chunkSize, payloadSize - written));
+            int target = Math.min(written + chunkSize, payloadSize);
+            while (offset < target) {
+                int count = inputStream.read(response, offset, target - offset);
+                if (count < 0) {
+                    throw new IOException("Connection closed");
+                }
+                offset += count;
+            }
+        }
+        return response;
+    }
+
+    private void runEchoServer() {
+        try {
+            while (true) {
+                final Socket socket = echoServer.accept();
+                socket.setTcpNoDelay(true);
+                Thread thread = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        echo(socket);
+                    }
+                }, "EchoConnection");
+                thread.setDaemon(true);
+                thread.start();
+            }
+        } catch (IOException e) {
+            // The server was closed
+        }
+    }
+
+    private static void echo(Socket socket) {
+        byte[] buffer = new byte[64 * 1024];
+        try {
+            InputStream inputStream = socket.getInputStream();
+            OutputStream outputStream = socket.getOutputStream();
+            int count;
+            while ((count = inputStream.read(buffer)) > 0) {
+                outputStream.write(buffer, 0, count);
+            }
+        } catch (IOException e) {
+            // The client has gone away
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // Ignore
+            }
+        }
+    }
+}
@@ -0,0 +1,76 @@
+/*
+ * This file is part of Wirebug.
+ *
+ * Wirebug is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Wirebug is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Wirebug.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.sryze.wirebug;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A process that has already produced its output. waitFor() blocks for the configured
+ * latency to simulate the cost of the child running.
+ */
+public class FakeProcess extends Process {
+
+    private final InputStream inputStream;
+    private final InputStream errorStream;
+    private final OutputStream outputStream = new ByteArrayOutputStream();
+    private final long latencyNanos;
+    private final int exitValue;
+
+    public FakeProcess(byte[] stdout, byte[] stderr, long latencyNanos, int exitValue) {
+        this.inputStream = new ByteArrayInputStream(stdout);
+        this.errorStream = new ByteArrayInputStream(stderr);
+        this.latencyNanos = latencyNanos;
+        this.exitValue = exitValue;
+    }
+
+    @Override
+    public OutputStream getOutputStream() {
+        return outputStream;
+    }
+
+    @Override
+    public InputStream getInputStream() {
+        return inputStream;
+    }
+
+    @Override
+    public InputStream getErrorStream() {
+        return errorStream;
+    }
+
+    @Override
+    public int waitFor() {
+        if (latencyNanos > 0) {
+            LockSupport.parkNanos(latencyNanos);
+        }
+        return exitValue;
+    }
+
+    @Override
+    public int exitValue() {
+        return exitValue;
+    }
+
+    @Override
+    public void destroy() {
+    }
+}
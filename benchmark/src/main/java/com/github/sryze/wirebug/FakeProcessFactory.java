@@ -0,0 +1,61 @@
+/*
+ * This file is part of Wirebug.
+ *
+ * Wirebug is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Wirebug is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Wirebug.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.sryze.wirebug;
+
+/**
+ * Hands out {@link FakeProcess}es that all produce the same output.
+ */
+public class FakeProcessFactory implements ProcessFactory {
+
+    private static final byte[] EMPTY = new byte[0];
+
+    private final byte[] stdout;
+    private final byte[] stderr;
+    private final long latencyNanos;
+
+    public FakeProcessFactory(byte[] stdout, byte[] stderr, long latencyNanos) {
+        this.stdout = stdout;
+        this.stderr = stderr;
+        this.latencyNanos = latencyNanos;
+    }
+
+    public FakeProcessFactory(byte[] stdout) {
+        this(stdout, EMPTY, 0);
+    }
+
+    @Override
+    public Process exec(String command) {
+        return new FakeProcess(stdout, stderr, latencyNanos, 0);
+    }
+
+    @Override
+    public Process exec(String[] args) {
+        return new FakeProcess(stdout, stderr, latencyNanos, 0);
+    }
+
+    /**
+     * Generates the given amount of text split into lines of the given length.
+     */
+    public static byte[] generateOutput(int size, int lineLength) {
+        byte[] output = new byte[size];
+        for (int i = 0; i < size; i++) {
+            output[i] = (i + 1) % lineLength == 0 ? (byte) '\n' : (byte) ('a' + i % 26);
+        }
+        return output;
+    }
+}
@@ -0,0 +1,80 @@
+/*
+ * This file is part of Wirebug.
+ *
+ * Wirebug is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Wirebug is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Wirebug.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.sryze.wirebug;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of recording commands in a {@link LogBuffer}, which happens for every command run
+ * by {@link Shell}, and of taking a snapshot of it for the log screen.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class LogBufferBenchmark {
+
+    private static final String COMMAND = "getprop service.adb.tcp.port";
+
+    private LogBuffer buffer;
+    private String output;
+
+    @Setup
+    public void setUp() {
+        buffer = new LogBuffer(LogBuffer.DEFAULT_CAPACITY);
+        output = new String(FakeProcessFactory.generateOutput(4096, 80));
+        for (int i = 0; i < buffer.getCapacity(); i++) {
+            buffer.addCommand(COMMAND, 0, 1000, output);
+        }
+    }
+
+    @Benchmark
+    public void addCommand() {
+        buffer.addCommand(COMMAND, 0, 1000, output);
+    }
+
+    /**
+     * Same as {@link #addCommand()}, with several threads writing to the buffer at once.
+     */
+    @Benchmark
+    @Threads(4)
+    public void addCommandConcurrently() {
+        buffer.addCommand(COMMAND, 0, 1000, output);
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public List<LogEntry> getEntries() {
+        return buffer.getEntries();
+    }
+}
@@ -0,0 +1,83 @@
+/*
+ * This file is part of Wirebug.
+ *
+ * Wirebug is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Wirebug is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Wirebug.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.sryze.wirebug;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.charset.Charset;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of reading the adb TCP port through the getprop fallback, from parsing a full
+ * property listing up to {@link DebugManager#getAdbTcpPort()}.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class PropertyBenchmark {
+
+    /** A typical device has several hundred properties */
+    private static final int PROPERTY_COUNT = 600;
+
+    private String getpropOutput;
+    private PropertyReader getpropReader;
+
+    @Setup
+    public void setUp() {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < PROPERTY_COUNT; i++) {
+            builder.append("[ro.vendor.property.").append(i).append("]: [value").append(i)
+                .append("]\n");
+        }
+        builder.append("[").append(AdbProperties.TCP_PORT).append("]: [5555]\n");
+        builder.append("[").append(AdbProperties.ADBD_STATE).append("]: [running]\n");
+        getpropOutput = builder.toString();
+
+        Shell shell = new Shell(new FakeProcessFactory("5555\n".getBytes(Charset.forName("UTF-8"))));
+        getpropReader = new PropertyReader(new GetpropPropertySource(shell));
+        PropertyReader.setReader(getpropReader);
+    }
+
+    @Benchmark
+    public Map<String, String> parseGetpropOutput() {
+        return GetpropPropertySource.parseGetpropOutput(getpropOutput);
+    }
+
+    @Benchmark
+    public int parsePort() {
+        return PropertyReader.parseInt("5555\n", 0);
+    }
+
+    @Benchmark
+    public int getAdbTcpPort() {
+        return DebugManager.getAdbTcpPort();
+    }
+}
@@ -0,0 +1,138 @@
+/*
+ * This file is part of Wirebug.
+ *
+ * Wirebug is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Wirebug is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Wirebug.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package com.github.sryze.wirebug;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Round trips to a {@link RootHelperServer}, compare with {@link ShellBenchmark#execAsRoot}.
+ * The server runs in-process as the current user, with properties kept in a map. Java 8
+ * can't do Unix sockets, so it's reached over loopback TCP instead of a local socket.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class RootHelperBenchmark {
+
+    private static final String PROC_NET_TCP = TcpConnectionMonitor.PROC_FILES[0];
+
+    private ServerSocket serverSocket;
+    private RootHelperClient client;
+
+    @Setup
+    public void setUp() throws IOException {
+        serverSocket = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+        final RootHelperServer server = new RootHelperServer(new MapOperations());
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try (Socket socket = serverSocket.accept()) {
+                    server.serve(socket.getInputStream(), socket.getOutputStream());
+                } catch (IOException e) {
+                    // The benchmark is over
+                }
+            }
+        }, "RootHelperServer");
+        thread.setDaemon(true);
+        thread.start();
+
+        Socket socket = new Socket(InetAddress.getLoopbackAddress(), serverSocket.getLocalPort());
+        socket.setTcpNoDelay(true);
+        client = new RootHelperClient(socket.getInputStream(), socket.getOutputStream(), socket);
+        client.setProperty(AdbProperties.TCP_PORT, "5555");
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        client.close();
+        serverSocket.close();
+    }
+
+    @Benchmark
+    public String getProperty() throws IOException {
+        return client.getProperty(AdbProperties.TCP_PORT);
+    }
+
+    @Benchmark
+    public void setProperty() throws IOException {
+        client.setProperty(AdbProperties.TCP_PORT, "5555");
+    }
+
+    @Benchmark
+    public byte[] readFile() throws IOException {
+        return client.readFile(PROC_NET_TCP);
+    }
+
+    private static final class MapOperations implements RootHelperServer.Operations {
+
+        private final Map<String, String> properties = new ConcurrentHashMap<>();
+
+        @Override
+        public String getProperty(String name) {
+            String value = properties.get(name);
+            return value != null ? value : "";
+        }
+
+        @Override
+        public void setProperty(String name, String value) {
+            properties.put(name, value);
+        }
+
+        @Override
+        public void restartService(String name) {
+        }
+
+        @Override
+        public byte[] readFile(String path) throws IOException {
+            try (InputStream input = new FileInputStream(path)) {
+                ByteArrayOutputStream output = new ByteArrayOutputStream();
+                byte[] buffer = new byte[8192];
+                int count;
+                while ((count = input.read(buffer)) >= 0) {
+                    output.write(buffer, 0, count);
+                }
+                return output.toByteArray();
+            }
+        }
+    }
+}
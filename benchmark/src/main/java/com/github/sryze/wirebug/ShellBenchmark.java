@@ -0,0 +1,105 @@
+/*
+ * This file is part of Wirebug.
+ *
+ * Wirebug is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Wirebug is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Wirebug.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.sryze.wirebug;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per-call overhead of running commands through {@link Shell}: spawning (fake) processes,
+ * pumping their output and collecting it. Run with "-prof gc" to see allocation rates.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ShellBenchmark {
+
+    private static final String[] GETPROP_ARGS = {"getprop", "service.adb.tcp.port"};
+    private static final String[] JOIN_ARGS = {
+        "su", "-c", "setprop service.adb.tcp.port 5555", "stop adbd; start adbd"
+    };
+
+    @Param({"0", "1024", "65536", "1048576"})
+    public int outputSize;
+
+    @Param({"0", "1000"})
+    public int latencyMicros;
+
+    private Shell shell;
+
+    @Setup
+    public void setUp() {
+        byte[] stdout = FakeProcessFactory.generateOutput(outputSize, 80);
+        shell = new Shell(new FakeProcessFactory(
+            stdout, new byte[0], TimeUnit.MICROSECONDS.toNanos(latencyMicros)));
+    }
+
+    @Benchmark
+    public String exec() throws ShellException {
+        return shell.exec(GETPROP_ARGS);
+    }
+
+    @Benchmark
+    public CommandResult execForResult() throws ShellException {
+        return shell.execForResult(GETPROP_ARGS);
+    }
+
+    @Benchmark
+    public String execAsRoot() throws ShellException {
+        return shell.execAsRoot("getprop service.adb.tcp.port");
+    }
+
+    /**
+     * Several threads running the same getprop at once, each spawning its own process.
+     */
+    @Benchmark
+    @Threads(4)
+    public String execConcurrently() throws ShellException {
+        return shell.exec(GETPROP_ARGS);
+    }
+
+    /**
+     * Same as {@link #execConcurrently()}, but threads that arrive while the command is
+     * running share its result.
+     */
+    @Benchmark
+    @Threads(4)
+    public String queryConcurrently() throws ShellException {
+        return shell.query(GETPROP_ARGS);
+    }
+
+    @Benchmark
+    public String joinArgs() {
+        return Shell.joinArgs(JOIN_ARGS);
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ * This file is part of Wirebug.
+ *
+ * Wirebug is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Wirebug is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Wirebug.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.sryze.wirebug;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of one connection scan, which the status service runs every couple of seconds
+ * while debugging is enabled. The gc profiler should show no allocations per operation.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class TcpConnectionMonitorBenchmark {
+
+    /** Phones with a lot of apps easily have a couple hundred sockets open */
+    private static final int CONNECTION_COUNT = 200;
+    private static final int ADB_PORT = 5555;
+
+    // Passing the port directly would allocate an array for the varargs on every call
+    private final int[] ports = {ADB_PORT};
+
+    private byte[] procNetTcp;
+    private TcpConnectionMonitor parseMonitor;
+    private TcpConnectionMonitor fileMonitor;
+
+    @Setup
+    public void setUp() {
+        StringBuilder builder = new StringBuilder();
+        builder.append("  sl  local_address rem_address   st tx_queue rx_queue tr tm->when")
+            .append(" retrnsmt   uid  timeout inode\n");
+        for (int i = 0; i < CONNECTION_COUNT; i++) {
+            // Every tenth connection is to adbd, the rest are outgoing connections
+            int localPort = i % 10 == 0 ? ADB_PORT : 40000 + i;
+            builder.append(String.format(Locale.US,
+                "%4d: 6401A8C0:%04X %02X01A8C0:%04X 01 00000000:00000000 00:00000000"
+                    + " 00000000 10123        0 %d 1 0000000000000000 20 4 30 10 -1\n",
+                i, localPort, 10 + i % 4, 50000 + i, 100000 + i));
+        }
+        procNetTcp = builder.toString().getBytes(Charset.forName("US-ASCII"));
+
+        parseMonitor = new TcpConnectionMonitor();
+        fileMonitor = new TcpConnectionMonitor();
+    }
+
+    @TearDown
+    public void tearDown() {
+        fileMonitor.close();
+    }
+
+    @Benchmark
+    public boolean parse() {
+        return parseMonitor.scan(procNetTcp, procNetTcp.length, ports);
+    }
+
+    /**
+     * Reads the proc files of the machine that runs the benchmark.
+     */
+    @Benchmark
+    public boolean scanProcFiles() throws IOException {
+        return fileMonitor.scan(ports);
+    }
+}
@@ -0,0 +1,58 @@
+/*
+ * This file is part of Wirebug.
+ *
+ * Wirebug is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Wirebug is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Wirebug.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package timber.log;
+
+/**
+ * Timber is an Android library, so benchmarks use this no-op replacement instead. Only the
+ * methods called by the benchmarked code are provided.
+ */
+public final class Timber {
+
+    private Timber() {
+    }
+
+    public static void log(int priority, String message, Object... args) {
+    }
+
+    public static void v(String message, Object... args) {
+    }
+
+    public static void d(String message, Object... args) {
+    }
+
+    public static void i(String message, Object... args) {
+    }
+
+    public static void w(String message, Object... args) {
+    }
+
+    public static void e(String message, Object... args) {
+    }
+
+    public static void e(Throwable t, String message, Object... args) {
+    }
+
+    public static void plant(Tree tree) {
+    }
+
+    public abstract static class Tree {
+    }
+
+    public static class DebugTree extends Tree {
+    }
+}
@@ -0,0 +1,31 @@
+/*
+ * This file is part of Wirebug.
+ *
+ * Wirebug is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Wirebug is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Wirebug.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.sryze.wirebug.host;
+
+import java.io.IOException;
+
+/**
+ * Thrown when the adb server refuses a request ("FAIL"), e.g. because the device is not
+ * known. The message is the one sent by the server.
+ */
+public class AdbException extends IOException {
+
+    public AdbException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,172 @@
+/*
+ * This file is part of Wirebug.
+ *
+ * Wirebug is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Wirebug is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Wirebug.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.sryze.wirebug.host;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.Charset;
+import java.util.Locale;
+
+/**
+ * Talks to the adb server that runs on the development machine (the one started by
+ * "adb start-server"), using the same protocol as the adb command itself.
+ *
+ * Each request opens a new connection and sends the service name prefixed with its length
+ * as 4 hex digits, e.g. "0015host:connect:10.0.0.2". The server replies "OKAY" or "FAIL",
+ * in both cases usually followed by a length-prefixed message. Host services close the
+ * connection after replying, so requests are independent and can be made concurrently
+ * from any number of threads.
+ */
+public class AdbServerClient {
+
+    public static final int DEFAULT_PORT = 5037;
+
+    static final Charset CHARSET = Charset.forName("UTF-8");
+
+    private final InetSocketAddress serverAddress;
+    private final int timeoutMillis;
+
+    public AdbServerClient(InetSocketAddress serverAddress, int timeoutMillis) {
+        this.serverAddress = serverAddress;
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    public InetSocketAddress getServerAddress() {
+        return serverAddress;
+    }
+
+    /**
+     * Returns the version of the adb server's protocol.
+     */
+    public int getVersion() throws IOException {
+        String version = request("host:version");
+        try {
+            return Integer.parseInt(version, 16);
+        } catch (NumberFormatException e) {
+            throw new IOException("Malformed version: " + version);
+        }
+    }
+
+    /**
+     * Asks the server to connect to a device over TCP and returns its message. The server
+     * says "OKAY" even if the connection has failed, so the message has to be checked with
+     * {@link #isConnected(String)}.
+     */
+    public String connect(String address) throws IOException {
+        return request("host:connect:" + address);
+    }
+
+    public String disconnect(String address) throws IOException {
+        return request("host:disconnect:" + address);
+    }
+
+    /**
+     * Returns the state of a device, e.g. "device" when it's ready, "offline" or
+     * "unauthorized". Fails with {@link AdbException} if the server doesn't know the
+     * device.
+     */
+    public String getState(String serial) throws IOException {
+        return request("host-serial:" + serial + ":get-state");
+    }
+
+    /**
+     * Returns true if the message returned by {@link #connect(String)} means the device is
+     * connected (the wording is the same in all versions of adb so far).
+     */
+    public static boolean isConnected(String message) {
+        return message.startsWith("connected to") || message.startsWith("already connected");
+    }
+
+    /**
+     * Sends a request to a host service and returns the message that came with "OKAY".
+     */
+    String request(String service) throws IOException {
+        Socket socket = new Socket();
+        try {
+            socket.setTcpNoDelay(true);
+            socket.setSoTimeout(timeoutMillis);
+            socket.connect(serverAddress, timeoutMillis);
+            OutputStream outputStream = socket.getOutputStream();
+            InputStream inputStream = socket.getInputStream();
+            outputStream.write(encode(service));
+            outputStream.flush();
+            String status = new String(readFully(inputStream, 4), CHARSET);
+            if ("OKAY".equals(status)) {
+                return readMessage(inputStream);
+            }
+            if ("FAIL".equals(status)) {
+                throw new AdbException(readMessage(inputStream));
+            }
+            throw new IOException("Unexpected reply: " + status);
+        } finally {
+            socket.close();
+        }
+    }
+
+    static byte[] encode(String message) {
+        byte[] payload = message.getBytes(CHARSET);
+        byte[] header = String.format(Locale.US, "%04x", payload.length).getBytes(CHARSET);
+        byte[] data = new byte[header.length + payload.length];
+        System.arraycopy(header, 0, data, 0, header.length);
+        System.arraycopy(payload, 0, data, header.length, payload.length);
+        return data;
+    }
+
+    /**
+     * Reads a length-prefixed message. Some services (and old servers) close the
+     * connection without sending one, which counts as an empty message.
+     */
+    static String readMessage(InputStream inputStream) throws IOException {
+        byte[] header = new byte[4];
+        int count = 0;
+        while (count < header.length) {
+            int n = inputStream.read(header, count, header.length - count);
+            if (n < 0) {
+                if (count == 0) {
+                    return "";
+                }
+                throw new EOFException("Truncated message length");
+            }
+            count += n;
+        }
+        int length;
+        try {
+            length = Integer.parseInt(new String(header, CHARSET), 16);
+        } catch (NumberFormatException e) {
+            throw new IOException("Malformed message length: " + new String(header, CHARSET));
+        }
+        return new String(readFully(inputStream, length), CHARSET);
+    }
+
+    static byte[] readFully(InputStream inputStream, int length) throws IOException {
+        byte[] data = new byte[length];
+        int count = 0;
+        while (count < length) {
+            int n = inputStream.read(data, count, length - count);
+            if (n < 0) {
+                throw new EOFException("Connection closed by adb server");
+            }
+            count += n;
+        }
+        return data;
+    }
+}
@@ -0,0 +1,148 @@
+/*
+ * This file is part of Wirebug.
+ *
+ * Wirebug is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Wirebug is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Wirebug.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.sryze.wirebug.host;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Connects a single device through the adb server and waits until it's usable. Holds no
+ * per-device state, so one instance can serve any number of threads.
+ *
+ * Right after "adb connect" a device is usually "offline" for a moment (while adbd and
+ * the server do their handshake), so the state is polled until it settles. A device that
+ * stays offline is disconnected and connected again, up to the maximum number of attempts.
+ */
+public class DeviceConnector {
+
+    private static final String STATE_DEVICE = "device";
+    private static final String STATE_UNAUTHORIZED = "unauthorized";
+    private static final long STATE_POLL_INTERVAL = 100;
+
+    private final AdbServerClient client;
+    private final int maxAttempts;
+    private final long verifyTimeoutMillis;
+    private final long retryDelayMillis;
+
+    public DeviceConnector(
+            AdbServerClient client,
+            int maxAttempts,
+            long verifyTimeoutMillis,
+            long retryDelayMillis) {
+        this.client = client;
+        this.maxAttempts = maxAttempts;
+        this.verifyTimeoutMillis = verifyTimeoutMillis;
+        this.retryDelayMillis = retryDelayMillis;
+    }
+
+    /**
+     * Connects to the device and verifies that it's online. Blocks until done.
+     *
+     * @param address host and port, e.g. "10.0.0.2:5555"; it's also the device's serial
+     */
+    public DeviceReport connect(String address) throws InterruptedException {
+        long startTime = System.nanoTime();
+        DeviceReport.Status status = DeviceReport.Status.FAILED;
+        String message = "";
+        long connectNanos = -1;
+        long verifyNanos = -1;
+        int attempt = 0;
+        while (attempt < maxAttempts) {
+            if (attempt > 0) {
+                // Back off a little more each time, in case the network (or the server) is
+                // struggling with many devices at once
+                Thread.sleep(retryDelayMillis * attempt);
+            }
+            attempt++;
+            try {
+                long connectStartTime = System.nanoTime();
+                message = client.connect(address);
+                connectNanos = System.nanoTime() - connectStartTime;
+                if (!AdbServerClient.isConnected(message)) {
+                    status = DeviceReport.Status.FAILED;
+                    continue;
+                }
+
+                long verifyStartTime = System.nanoTime();
+                String state = waitForState(address);
+                if (STATE_DEVICE.equals(state)) {
+                    verifyNanos = System.nanoTime() - verifyStartTime;
+                    status = DeviceReport.Status.READY;
+                    message = "";
+                    break;
+                }
+                if (STATE_UNAUTHORIZED.equals(state)) {
+                    // Reconnecting won't help until someone accepts the key on the device
+                    verifyNanos = System.nanoTime() - verifyStartTime;
+                    status = DeviceReport.Status.UNAUTHORIZED;
+                    message = "";
+                    break;
+                }
+                status = DeviceReport.Status.OFFLINE;
+                message = "state: " + state;
+                client.disconnect(address);
+            } catch (IOException e) {
+                status = DeviceReport.Status.FAILED;
+                message = e.getMessage() != null ? e.getMessage() : e.toString();
+            }
+        }
+        return new DeviceReport(address, status, attempt, connectNanos, verifyNanos,
+            System.nanoTime() - startTime, message);
+    }
+
+    /**
+     * Disconnects the device. Blocks until done.
+     */
+    public DeviceReport disconnect(String address) {
+        long startTime = System.nanoTime();
+        DeviceReport.Status status;
+        String message;
+        try {
+            message = client.disconnect(address);
+            status = DeviceReport.Status.DISCONNECTED;
+        } catch (IOException e) {
+            message = e.getMessage() != null ? e.getMessage() : e.toString();
+            status = DeviceReport.Status.FAILED;
+        }
+        long elapsedNanos = System.nanoTime() - startTime;
+        return new DeviceReport(address, status, 1, elapsedNanos, -1, elapsedNanos, message);
+    }
+
+    /**
+     * Polls the state of the device until it's either ready or unauthorized, or the
+     * timeout expires. Returns the last state seen.
+     */
+    private String waitForState(String serial) throws IOException, InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(verifyTimeoutMillis);
+        String state;
+        while (true) {
+            try {
+                state = client.getState(serial);
+            } catch (AdbException e) {
+                // The server may not list the device until the handshake has started
+                state = e.getMessage();
+            }
+            if (STATE_DEVICE.equals(state)
+                || STATE_UNAUTHORIZED.equals(state)
+                || System.nanoTime() >= deadline) {
+                return state;
+            }
+            Thread.sleep(STATE_POLL_INTERVAL);
+        }
+    }
+}
@@ -0,0 +1,126 @@
+/*
+ * This file is part of Wirebug.
+ *
+ * Wirebug is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Wirebug is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Wirebug.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.sryze.wirebug.host;
+
+import java.util.Locale;
+
+/**
+ * What happened to a single device.
+ */
+public final class DeviceReport {
+
+    public enum Status {
+        /** Connected and ready for adb commands */
+        READY,
+        /** Connected, but the computer's key has to be accepted on the device */
+        UNAUTHORIZED,
+        /** Connected, but the device never came online */
+        OFFLINE,
+        /** Could not connect */
+        FAILED,
+        /** Disconnected as requested */
+        DISCONNECTED
+    }
+
+    private final String address;
+    private final Status status;
+    private final int attempts;
+    private final long connectNanos;
+    private final long verifyNanos;
+    private final long totalNanos;
+    private final String message;
+
+    DeviceReport(
+            String address,
+            Status status,
+            int attempts,
+            long connectNanos,
+            long verifyNanos,
+            long totalNanos,
+            String message) {
+        this.address = address;
+        this.status = status;
+        this.attempts = attempts;
+        this.connectNanos = connectNanos;
+        this.verifyNanos = verifyNanos;
+        this.totalNanos = totalNanos;
+        this.message = message;
+    }
+
+    public String getAddress() {
+        return address;
+    }
+
+    public Status getStatus() {
+        return status;
+    }
+
+    public boolean isSuccessful() {
+        return status == Status.READY || status == Status.DISCONNECTED;
+    }
+
+    public int getAttempts() {
+        return attempts;
+    }
+
+    /**
+     * Returns how long the last connect request took, or -1 if it didn't get a reply.
+     */
+    public double getConnectMillis() {
+        return toMillis(connectNanos);
+    }
+
+    /**
+     * Returns how long it took for the device to come online after connecting, or -1 if
+     * it didn't get that far.
+     */
+    public double getVerifyMillis() {
+        return toMillis(verifyNanos);
+    }
+
+    /**
+     * Returns the time spent on the device including retries.
+     */
+    public double getTotalMillis() {
+        return toMillis(totalNanos);
+    }
+
+    /**
+     * Returns the last message from the adb server or the error, if any.
+     */
+    public String getMessage() {
+        return message;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.US,
+            "%s: %s after %d attempt(s), connect %.1f ms, verify %.1f ms, total %.1f ms%s",
+            address,
+            status.name().toLowerCase(Locale.US),
+            attempts,
+            getConnectMillis(),
+            getVerifyMillis(),
+            getTotalMillis(),
+            message.isEmpty() ? "" : " (" + message + ")");
+    }
+
+    private static double toMillis(long nanos) {
+        return nanos >= 0 ? nanos / 1e6 : -1;
+    }
+}
@@ -0,0 +1,227 @@
+/*
+ * This file is part of Wirebug.
+ *
+ * Wirebug is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Wirebug is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Wirebug.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.sryze.wirebug.host;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * An adb server that pretends to connect to devices, for trying out {@link WirebugHost}
+ * (or measuring it with thousands of devices) without having any.
+ *
+ * Every address connects after a delay and comes online a little later, except the ones
+ * listed with --unreachable, --offline or --unauthorized. Only the host services used by
+ * {@link AdbServerClient} are supported.
+ */
+public class FakeAdbServer {
+
+    private static final String USAGE =
+        "Usage: FakeAdbServer [--port N] [--latency MS] [--online-after MS]\n"
+            + "                     [--unreachable ADDRESS]... [--offline ADDRESS]...\n"
+            + "                     [--unauthorized ADDRESS]...\n";
+
+    private static final String VERSION = "0029";
+
+    private final ServerSocket serverSocket;
+    private final long connectLatencyMillis;
+    private final long onlineDelayMillis;
+    private final Set<String> unreachableAddresses;
+    private final Set<String> offlineAddresses;
+    private final Set<String> unauthorizedAddresses;
+    // Connected devices and when they were connected (System.nanoTime())
+    private final ConcurrentMap<String, Long> devices = new ConcurrentHashMap<>();
+
+    public FakeAdbServer(
+            InetSocketAddress listenAddress,
+            long connectLatencyMillis,
+            long onlineDelayMillis,
+            Set<String> unreachableAddresses,
+            Set<String> offlineAddresses,
+            Set<String> unauthorizedAddresses) throws IOException {
+        this.serverSocket = new ServerSocket();
+        serverSocket.setReuseAddress(true);
+        serverSocket.bind(listenAddress, 1024);
+        this.connectLatencyMillis = connectLatencyMillis;
+        this.onlineDelayMillis = onlineDelayMillis;
+        this.unreachableAddresses = unreachableAddresses;
+        this.offlineAddresses = offlineAddresses;
+        this.unauthorizedAddresses = unauthorizedAddresses;
+    }
+
+    public static void main(String[] args) throws IOException {
+        int port = AdbServerClient.DEFAULT_PORT;
+        long connectLatency = 20;
+        long onlineDelay = 200;
+        Set<String> unreachableAddresses = new HashSet<>();
+        Set<String> offlineAddresses = new HashSet<>();
+        Set<String> unauthorizedAddresses = new HashSet<>();
+        for (int i = 0; i < args.length; i++) {
+            if (i + 1 >= args.length) {
+                System.err.print(USAGE);
+                System.exit(2);
+            }
+            String value = args[++i];
+            switch (args[i - 1]) {
+                case "--port":
+                    port = Integer.parseInt(value);
+                    break;
+                case "--latency":
+                    connectLatency = Long.parseLong(value);
+                    break;
+                case "--online-after":
+                    onlineDelay = Long.parseLong(value);
+                    break;
+                case "--unreachable":
+                    unreachableAddresses.add(WirebugHost.normalizeAddress(value));
+                    break;
+                case "--offline":
+                    offlineAddresses.add(WirebugHost.normalizeAddress(value));
+                    break;
+                case "--unauthorized":
+                    unauthorizedAddresses.add(WirebugHost.normalizeAddress(value));
+                    break;
+                default:
+                    System.err.print(USAGE);
+                    System.exit(2);
+            }
+        }
+        FakeAdbServer server = new FakeAdbServer(
+            new InetSocketAddress(InetAddress.getLoopbackAddress(), port),
+            connectLatency,
+            onlineDelay,
+            unreachableAddresses,
+            offlineAddresses,
+            unauthorizedAddresses);
+        System.err.printf("Fake adb server is listening on port %d%n", server.getLocalPort());
+        server.run();
+    }
+
+    public int getLocalPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    public Set<String> getDevices() {
+        return Collections.unmodifiableSet(devices.keySet());
+    }
+
+    /**
+     * Accepts connections until {@link #close()} is called, one thread per connection
+     * (like the real server, each connection carries a single request).
+     */
+    public void run() {
+        while (!serverSocket.isClosed()) {
+            final Socket socket;
+            try {
+                socket = serverSocket.accept();
+            } catch (IOException e) {
+                break;
+            }
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    serve(socket);
+                }
+            }, "FakeAdbServer");
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    public void close() throws IOException {
+        serverSocket.close();
+    }
+
+    private void serve(Socket socket) {
+        try {
+            InputStream inputStream = socket.getInputStream();
+            OutputStream outputStream = socket.getOutputStream();
+            int length = Integer.parseInt(
+                new String(AdbServerClient.readFully(inputStream, 4), AdbServerClient.CHARSET),
+                16);
+            String service = new String(
+                AdbServerClient.readFully(inputStream, length), AdbServerClient.CHARSET);
+            try {
+                String reply = handle(service);
+                outputStream.write("OKAY".getBytes(AdbServerClient.CHARSET));
+                outputStream.write(AdbServerClient.encode(reply));
+            } catch (AdbException e) {
+                outputStream.write("FAIL".getBytes(AdbServerClient.CHARSET));
+                outputStream.write(AdbServerClient.encode(e.getMessage()));
+            }
+            outputStream.flush();
+        } catch (IOException | NumberFormatException | InterruptedException e) {
+            // The client went away or sent garbage, either way there's no one to tell
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // Already closed
+            }
+        }
+    }
+
+    private String handle(String service) throws AdbException, InterruptedException {
+        if (service.equals("host:version")) {
+            return VERSION;
+        }
+        if (service.startsWith("host:connect:")) {
+            String address = WirebugHost.normalizeAddress(
+                service.substring("host:connect:".length()));
+            Thread.sleep(connectLatencyMillis);
+            if (unreachableAddresses.contains(address)) {
+                return "failed to connect to " + address + ": Connection refused";
+            }
+            if (devices.putIfAbsent(address, System.nanoTime()) != null) {
+                return "already connected to " + address;
+            }
+            return "connected to " + address;
+        }
+        if (service.startsWith("host:disconnect:")) {
+            String address = WirebugHost.normalizeAddress(
+                service.substring("host:disconnect:".length()));
+            if (devices.remove(address) == null) {
+                throw new AdbException("no such device '" + address + "'");
+            }
+            return "disconnected " + address;
+        }
+        if (service.startsWith("host-serial:") && service.endsWith(":get-state")) {
+            String serial = service.substring(
+                "host-serial:".length(), service.length() - ":get-state".length());
+            Long connectTime = devices.get(serial);
+            if (connectTime == null) {
+                throw new AdbException("device '" + serial + "' not found");
+            }
+            if (offlineAddresses.contains(serial)
+                || System.nanoTime() - connectTime < onlineDelayMillis * 1000000) {
+                return "offline";
+            }
+            return unauthorizedAddresses.contains(serial) ? "unauthorized" : "device";
+        }
+        throw new AdbException("unknown host service");
+    }
+}
@@ -0,0 +1,376 @@
+/*
+ * This file is part of Wirebug.
+ *
+ * Wirebug is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Wirebug is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Wirebug.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.sryze.wirebug.host;
+
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Connects (or disconnects) many devices at once through the local adb server and prints
+ * a report for each of them. See {@link #USAGE} for the options.
+ */
+public final class WirebugHost {
+
+    static final int DEFAULT_ADB_TCP_PORT = 5555;
+
+    private static final String USAGE =
+        "Usage: wirebug-host [options] [address...]\n"
+            + "\n"
+            + "Connects to devices with debugging over Wi-Fi enabled and waits until they are\n"
+            + "ready. Addresses without a port get " + DEFAULT_ADB_TCP_PORT + ".\n"
+            + "\n"
+            + "Options:\n"
+            + "  -f, --file FILE      read addresses from FILE, one per line (- for stdin)\n"
+            + "  -j, --jobs N         handle up to N devices at once (default 32)\n"
+            + "  -r, --attempts N     try to connect each device up to N times (default 3)\n"
+            + "  -w, --wait MS        wait up to MS for a device to come online (default 5000)\n"
+            + "  -t, --timeout MS     timeout of requests to the adb server (default 10000)\n"
+            + "  -a, --adb HOST:PORT  address of the adb server (default 127.0.0.1:5037)\n"
+            + "  -d, --disconnect     disconnect the devices instead\n"
+            + "  -h, --help           show this message\n"
+            + "\n"
+            + "Exits with 0 if all devices are ready, 1 if some are not and 2 on errors.\n";
+
+    private static final int EXIT_SUCCESS = 0;
+    private static final int EXIT_FAILURE = 1;
+    private static final int EXIT_ERROR = 2;
+    private static final long RETRY_DELAY = 500;
+
+    private final PrintStream out;
+    private final PrintStream err;
+
+    private int jobs = 32;
+    private int attempts = 3;
+    private long waitMillis = 5000;
+    private int timeoutMillis = 10000;
+    private InetSocketAddress adbServerAddress =
+        new InetSocketAddress("127.0.0.1", AdbServerClient.DEFAULT_PORT);
+    private boolean isDisconnect;
+    private final Set<String> addresses = new LinkedHashSet<>();
+
+    WirebugHost(PrintStream out, PrintStream err) {
+        this.out = out;
+        this.err = err;
+    }
+
+    public static void main(String[] args) {
+        System.exit(new WirebugHost(System.out, System.err).run(args));
+    }
+
+    int run(String[] args) {
+        try {
+            if (!parseArgs(args)) {
+                out.print(USAGE);
+                return EXIT_SUCCESS;
+            }
+        } catch (IllegalArgumentException | IOException e) {
+            err.println("wirebug-host: " + e.getMessage());
+            err.print(USAGE);
+            return EXIT_ERROR;
+        }
+        if (addresses.isEmpty()) {
+            err.println("wirebug-host: no addresses given");
+            return EXIT_ERROR;
+        }
+
+        AdbServerClient client = new AdbServerClient(adbServerAddress, timeoutMillis);
+        try {
+            int version = client.getVersion();
+            err.printf("Using adb server at %s (version %d)%n",
+                formatAddress(adbServerAddress), version);
+        } catch (IOException e) {
+            err.printf("wirebug-host: could not reach the adb server at %s: %s%n"
+                + "Is it running? Try \"adb start-server\".%n",
+                formatAddress(adbServerAddress), e.getMessage());
+            return EXIT_ERROR;
+        }
+
+        DeviceConnector connector =
+            new DeviceConnector(client, attempts, waitMillis, RETRY_DELAY);
+        try {
+            List<DeviceReport> reports = runAll(connector);
+            printReports(reports);
+            for (DeviceReport report : reports) {
+                if (!report.isSuccessful()) {
+                    return EXIT_FAILURE;
+                }
+            }
+            return EXIT_SUCCESS;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return EXIT_ERROR;
+        }
+    }
+
+    /**
+     * Returns false if only the usage should be shown.
+     */
+    private boolean parseArgs(String[] args) throws IOException {
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            switch (arg) {
+                case "-h":
+                case "--help":
+                    return false;
+                case "-f":
+                case "--file":
+                    readAddresses(getValue(args, ++i, arg));
+                    break;
+                case "-j":
+                case "--jobs":
+                    jobs = parsePositive(getValue(args, ++i, arg), arg);
+                    break;
+                case "-r":
+                case "--attempts":
+                    attempts = parsePositive(getValue(args, ++i, arg), arg);
+                    break;
+                case "-w":
+                case "--wait":
+                    waitMillis = parsePositive(getValue(args, ++i, arg), arg);
+                    break;
+                case "-t":
+                case "--timeout":
+                    timeoutMillis = parsePositive(getValue(args, ++i, arg), arg);
+                    break;
+                case "-a":
+                case "--adb":
+                    adbServerAddress = parseServerAddress(getValue(args, ++i, arg));
+                    break;
+                case "-d":
+                case "--disconnect":
+                    isDisconnect = true;
+                    break;
+                default:
+                    if (arg.startsWith("-")) {
+                        throw new IllegalArgumentException("unknown option " + arg);
+                    }
+                    addresses.add(normalizeAddress(arg));
+                    break;
+            }
+        }
+        return true;
+    }
+
+    private void readAddresses(String fileName) throws IOException {
+        InputStream inputStream = "-".equals(fileName)
+            ? System.in
+            : new FileInputStream(fileName);
+        BufferedReader reader = new BufferedReader(
+            new InputStreamReader(inputStream, AdbServerClient.CHARSET));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                int commentIndex = line.indexOf('#');
+                if (commentIndex >= 0) {
+                    line = line.substring(0, commentIndex);
+                }
+                line = line.trim();
+                if (!line.isEmpty()) {
+                    addresses.add(normalizeAddress(line));
+                }
+            }
+        } finally {
+            if (inputStream != System.in) {
+                reader.close();
+            }
+        }
+    }
+
+    private List<DeviceReport> runAll(final DeviceConnector connector)
+            throws InterruptedException {
+        List<String> addressList = new ArrayList<>(addresses);
+        ExecutorService executor = Executors.newFixedThreadPool(
+            Math.min(jobs, addressList.size()),
+            new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "DeviceConnector");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        try {
+            CompletionService<DeviceReport> completionService =
+                new ExecutorCompletionService<>(executor);
+            List<Future<DeviceReport>> futures = new ArrayList<>();
+            for (final String address : addressList) {
+                futures.add(completionService.submit(new Callable<DeviceReport>() {
+                    @Override
+                    public DeviceReport call() throws InterruptedException {
+                        return isDisconnect
+                            ? connector.disconnect(address)
+                            : connector.connect(address);
+                    }
+                }));
+            }
+            // Show progress as devices finish, the report comes in the original order
+            for (int i = 0; i < futures.size(); i++) {
+                DeviceReport report = getReport(completionService.take());
+                err.printf("[%d/%d] %s%n", i + 1, futures.size(), report);
+            }
+            List<DeviceReport> reports = new ArrayList<>();
+            for (Future<DeviceReport> future : futures) {
+                reports.add(getReport(future));
+            }
+            return reports;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static DeviceReport getReport(Future<DeviceReport> future)
+            throws InterruptedException {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            // DeviceConnector reports its own failures, so this is a bug
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    private void printReports(List<DeviceReport> reports) {
+        int addressWidth = "ADDRESS".length();
+        for (DeviceReport report : reports) {
+            addressWidth = Math.max(addressWidth, report.getAddress().length());
+        }
+        String format = "%-" + addressWidth + "s  %-12s  %8s  %10s  %10s  %10s  %s";
+        printRow(format, "ADDRESS", "STATUS", "ATTEMPTS", "CONNECT", "VERIFY", "TOTAL",
+            "MESSAGE");
+        Map<DeviceReport.Status, Integer> statusCounts =
+            new EnumMap<>(DeviceReport.Status.class);
+        List<Double> connectTimes = new ArrayList<>();
+        for (DeviceReport report : reports) {
+            printRow(format,
+                report.getAddress(),
+                report.getStatus().name().toLowerCase(Locale.US),
+                report.getAttempts(),
+                formatMillis(report.getConnectMillis()),
+                formatMillis(report.getVerifyMillis()),
+                formatMillis(report.getTotalMillis()),
+                report.getMessage());
+            Integer count = statusCounts.get(report.getStatus());
+            statusCounts.put(report.getStatus(), count == null ? 1 : count + 1);
+            if (report.getConnectMillis() >= 0) {
+                connectTimes.add(report.getConnectMillis());
+            }
+        }
+
+        StringBuilder summary = new StringBuilder();
+        summary.append(reports.size()).append(" device(s):");
+        for (Map.Entry<DeviceReport.Status, Integer> entry : statusCounts.entrySet()) {
+            summary.append(' ').append(entry.getValue()).append(' ')
+                .append(entry.getKey().name().toLowerCase(Locale.US));
+        }
+        out.println();
+        out.println(summary);
+        if (!isDisconnect && !connectTimes.isEmpty()) {
+            Double[] sortedTimes = connectTimes.toArray(new Double[0]);
+            Arrays.sort(sortedTimes);
+            out.printf(Locale.US, "Connect latency: p50 %s, p90 %s, max %s%n",
+                formatMillis(getPercentile(sortedTimes, 50)),
+                formatMillis(getPercentile(sortedTimes, 90)),
+                formatMillis(sortedTimes[sortedTimes.length - 1]));
+        }
+    }
+
+    private void printRow(String format, Object... values) {
+        // Remove the padding after the last column, which is often empty
+        out.println(String.format(Locale.US, format, values).replaceAll("\\s+$", ""));
+    }
+
+    private static double getPercentile(Double[] sortedValues, double percentile) {
+        int rank = (int) Math.ceil(percentile / 100 * sortedValues.length);
+        return sortedValues[Math.max(rank - 1, 0)];
+    }
+
+    private static String formatMillis(double millis) {
+        return millis >= 0 ? String.format(Locale.US, "%.1f ms", millis) : "-";
+    }
+
+    /**
+     * Adds the default port unless there is one already. IPv6 addresses must be in
+     * brackets when they come with a port, as in "[fe80::1]:5555".
+     */
+    static String normalizeAddress(String address) {
+        if (address.startsWith("[")) {
+            return address.contains("]:") ? address : address + ":" + DEFAULT_ADB_TCP_PORT;
+        }
+        int colonCount = address.length() - address.replace(":", "").length();
+        if (colonCount == 0) {
+            return address + ":" + DEFAULT_ADB_TCP_PORT;
+        }
+        if (colonCount > 1) {
+            return "[" + address + "]:" + DEFAULT_ADB_TCP_PORT;
+        }
+        return address;
+    }
+
+    private static InetSocketAddress parseServerAddress(String address) {
+        int colonIndex = address.lastIndexOf(':');
+        if (colonIndex < 0) {
+            return new InetSocketAddress(address, AdbServerClient.DEFAULT_PORT);
+        }
+        return new InetSocketAddress(
+            address.substring(0, colonIndex),
+            parsePositive(address.substring(colonIndex + 1), "--adb"));
+    }
+
+    private static String formatAddress(InetSocketAddress address) {
+        return address.getHostString() + ":" + address.getPort();
+    }
+
+    private static String getValue(String[] args, int index, String option) {
+        if (index >= args.length) {
+            throw new IllegalArgumentException(option + " needs a value");
+        }
+        return args[index];
+    }
+
+    private static int parsePositive(String value, String option) {
+        try {
+            int number = Integer.parseInt(value);
+            if (number > 0) {
+                return number;
+            }
+        } catch (NumberFormatException e) {
+            // Handled below
+        }
+        throw new IllegalArgumentException("invalid value for " + option + ": " + value);
+    }
+}